@@ -0,0 +1,335 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.lucene.document.Document;
+
+/**
+ * A columnar, memory-mapped copy of the stored attributes that query
+ * evaluation and LeToR read per document, so that reading one of them
+ * doesn't decompress the whole stored document.  Fixed-width columns
+ * hold the spam score, the URL depth (number of '/' in rawUrl), the
+ * wikipedia.org and .edu flags of rawUrl and, optionally, PageRank.
+ * External ids and raw URLs are stored as long offsets into UTF-8
+ * bytes, so the store may be larger than 2GB ({@link MappedFile}).
+ * <p>
+ * The store is built offline from the index:
+ * <pre>
+ *   java AttributeStore indexPath [pageRankFile]
+ * </pre>
+ * It is a sidecar file ({@link Idx#getSidecarFile}) that records the
+ * index fingerprint.  {@link Idx} maps it when an attribute is first
+ * read and serves attribute reads from it; without a valid store, attributes
+ * are read from the stored documents.
+ */
+public class AttributeStore {
+
+	private static final int MAGIC = 0x41545432;	// "ATT2"
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+	private static final String FILE_NAME = "attributes.col";
+
+	private static final int HAS_EXTERNAL_ID = 1;
+	private static final int HAS_RAW_URL = 2;
+	private static final int HAS_SCORE = 4;
+	private static final int WIKIPEDIA = 8;
+	private static final int EDU = 16;
+
+	private final MappedFile buffer;
+	private final int maxDoc;
+	private final boolean hasPageRank;
+
+	//  Column offsets in buffer.
+
+	private final long flagsAt;
+	private final long spamAt;
+	private final long depthAt;
+	private final long pageRankAt;
+	private final long externalIdOffsetsAt;
+	private final long rawUrlOffsetsAt;
+	private final long externalIdsAt;
+	private final long rawUrlsAt;
+
+	private AttributeStore(MappedFile buffer, int maxDoc, boolean hasPageRank) {
+		this.buffer = buffer;
+		this.maxDoc = maxDoc;
+		this.hasPageRank = hasPageRank;
+		this.flagsAt = HEADER_BYTES;
+		this.spamAt = flagsAt + maxDoc;
+		this.depthAt = spamAt + 2L * maxDoc;
+		this.pageRankAt = depthAt + 2L * maxDoc;
+		this.externalIdOffsetsAt = pageRankAt + (hasPageRank ? 4L * maxDoc : 0);
+		this.rawUrlOffsetsAt = externalIdOffsetsAt + 8L * (maxDoc + 1);
+		this.externalIdsAt = rawUrlOffsetsAt + 8L * (maxDoc + 1);
+		this.rawUrlsAt = externalIdsAt + buffer.getLong(externalIdOffsetsAt + 8L * maxDoc);
+	}
+
+	/**
+	 * Map the attribute store of the open index.
+	 * @return the store, or null if it is missing or stale
+	 * @throws IOException Error reading the store.
+	 */
+	public static AttributeStore open() throws IOException {
+		File file = Idx.getSidecarFile(FILE_NAME);
+		if (!file.canRead()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < HEADER_BYTES) {
+				return null;
+			}
+			MappedFile buffer = new MappedFile(raf.getChannel());
+			int maxDoc = Idx.getMaxDoc();
+			if (buffer.getInt(0) != MAGIC
+					|| buffer.getInt(4) != maxDoc
+					|| buffer.getLong(8) != Idx.getIndexFingerprint()) {
+				System.err.println("Warning: ignoring stale attribute store " + file);
+				return null;
+			}
+			return new AttributeStore(buffer, maxDoc, buffer.getInt(16) != 0);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Build the attribute store of the open index.
+	 * @param pageRankFileName a PageRank file, or null
+	 * @throws IOException Error accessing the index or writing the store.
+	 */
+	public static void build(String pageRankFileName) throws IOException {
+		build((pageRankFileName == null) ? null : PageRankLoader.load(pageRankFileName));
+	}
+
+	/**
+	 * Build the attribute store of the open index.
+	 * @param pageRank PageRank scores indexed by docid, or null
+	 * @throws IOException Error accessing the index or writing the store.
+	 */
+	public static void build(float[] pageRank) throws IOException {
+		int maxDoc = Idx.getMaxDoc();
+		byte[] flags = new byte[maxDoc];
+		short[] spam = new short[maxDoc];
+		short[] depth = new short[maxDoc];
+		long[] externalIdOffsets = new long[maxDoc + 1];
+		long[] rawUrlOffsets = new long[maxDoc + 1];
+
+		//  The strings are streamed to temporary files, which are
+		//  appended to the store after the fixed-width columns.
+
+		File file = Idx.createSidecarFile(FILE_NAME);
+		File tmp = new File(file.getPath() + ".tmp");
+		File externalIdsTmp = new File(file.getPath() + ".externalIds.tmp");
+		File rawUrlsTmp = new File(file.getPath() + ".rawUrls.tmp");
+		try {
+			OutputStream externalIds = new BufferedOutputStream(new FileOutputStream(externalIdsTmp), 1 << 16);
+			OutputStream rawUrls = new BufferedOutputStream(new FileOutputStream(rawUrlsTmp), 1 << 16);
+			try {
+				long externalIdsSize = 0;
+				long rawUrlsSize = 0;
+				for (int docid = 0; docid < maxDoc; docid++) {
+					Document d = Idx.INDEXREADER.document(docid);
+					String externalId = d.get("externalId");
+					String rawUrl = d.get("rawUrl");
+					String score = d.get("score");
+					int f = 0;
+					if (externalId != null) {
+						f |= HAS_EXTERNAL_ID;
+						byte[] bytes = externalId.getBytes(StandardCharsets.UTF_8);
+						externalIds.write(bytes);
+						externalIdsSize += bytes.length;
+					}
+					if (rawUrl != null) {
+						f |= HAS_RAW_URL;
+						byte[] bytes = rawUrl.getBytes(StandardCharsets.UTF_8);
+						rawUrls.write(bytes);
+						rawUrlsSize += bytes.length;
+						f |= rawUrl.contains("wikipedia.org") ? WIKIPEDIA : 0;
+						f |= rawUrl.contains(".edu") ? EDU : 0;
+						int slashes = 0;
+						for (int i = 0; i < rawUrl.length(); i++) {
+							if (rawUrl.charAt(i) == '/') {
+								slashes++;
+							}
+						}
+						depth[docid] = (short) Math.min(slashes, Short.MAX_VALUE);
+					}
+					if (score != null) {
+						f |= HAS_SCORE;
+						spam[docid] = Short.parseShort(score.trim());
+					}
+					flags[docid] = (byte) f;
+					externalIdOffsets[docid + 1] = externalIdsSize;
+					rawUrlOffsets[docid + 1] = rawUrlsSize;
+				}
+			} finally {
+				externalIds.close();
+				rawUrls.close();
+			}
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(maxDoc);
+				out.writeLong(Idx.getIndexFingerprint());
+				out.writeInt((pageRank == null) ? 0 : 1);
+				out.write(flags);
+				for (short s : spam) {
+					out.writeShort(s);
+				}
+				for (short s : depth) {
+					out.writeShort(s);
+				}
+				if (pageRank != null) {
+					for (float p : pageRank) {
+						out.writeFloat(p);
+					}
+				}
+				for (long offset : externalIdOffsets) {
+					out.writeLong(offset);
+				}
+				for (long offset : rawUrlOffsets) {
+					out.writeLong(offset);
+				}
+				Files.copy(externalIdsTmp.toPath(), out);
+				Files.copy(rawUrlsTmp.toPath(), out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			externalIdsTmp.delete();
+			rawUrlsTmp.delete();
+		}
+		if (!(tmp.renameTo(file) || (file.delete() && tmp.renameTo(file)))) {
+			throw new IOException("Unable to replace " + file);
+		}
+	}
+
+	private int flags(int docid) {
+		return buffer.get(flagsAt + docid);
+	}
+
+	/**
+	 * @param name an attribute name
+	 * @return true if getAttribute can read the attribute
+	 */
+	public boolean hasAttribute(String name) {
+		return name.equals("externalId") || name.equals("rawUrl") || name.equals("score");
+	}
+
+	/**
+	 * Read an attribute as {@link Idx#getAttribute} does.  The spam
+	 * score is stored as a number, so its string is in canonical form.
+	 * @param name externalId, rawUrl or score
+	 * @param docid an internal docid
+	 * @return the attribute value, or null if the document doesn't have it
+	 */
+	public String getAttribute(String name, int docid) {
+		if (name.equals("externalId")) {
+			return getExternalId(docid);
+		} else if (name.equals("rawUrl")) {
+			return getRawUrl(docid);
+		} else if (name.equals("score")) {
+			return ((flags(docid) & HAS_SCORE) != 0) ? Integer.toString(getSpamScore(docid)) : null;
+		}
+		throw new IllegalArgumentException("The attribute store doesn't have " + name);
+	}
+
+	/**
+	 * @param docid an internal docid
+	 * @return the external id, or null if the document doesn't have one
+	 */
+	public String getExternalId(int docid) {
+		if ((flags(docid) & HAS_EXTERNAL_ID) == 0) {
+			return null;
+		}
+		return string(externalIdsAt, externalIdOffsetsAt, docid);
+	}
+
+	/**
+	 * @param docid an internal docid
+	 * @return the raw URL, or null if the document doesn't have one
+	 */
+	public String getRawUrl(int docid) {
+		if ((flags(docid) & HAS_RAW_URL) == 0) {
+			return null;
+		}
+		return string(rawUrlsAt, rawUrlOffsetsAt, docid);
+	}
+
+	private String string(long bytesAt, long offsetsAt, int docid) {
+		long start = buffer.getLong(offsetsAt + 8L * docid);
+		long end = buffer.getLong(offsetsAt + 8L * (docid + 1));
+		byte[] bytes = new byte[(int) (end - start)];
+		buffer.get(bytesAt + start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param docid an internal docid
+	 * @return the spam score (0 if the document doesn't have one)
+	 */
+	public int getSpamScore(int docid) {
+		return buffer.getShort(spamAt + 2L * docid);
+	}
+
+	/**
+	 * @param docid an internal docid
+	 * @return the number of '/' characters in the raw URL
+	 */
+	public int getUrlDepth(int docid) {
+		return buffer.getShort(depthAt + 2L * docid);
+	}
+
+	/**
+	 * @param docid an internal docid
+	 * @return true if the raw URL contains "wikipedia.org"
+	 */
+	public boolean isWikipedia(int docid) {
+		return (flags(docid) & WIKIPEDIA) != 0;
+	}
+
+	/**
+	 * @param docid an internal docid
+	 * @return true if the raw URL contains ".edu"
+	 */
+	public boolean isEdu(int docid) {
+		return (flags(docid) & EDU) != 0;
+	}
+
+	/**
+	 * @return true if the store was built with a PageRank file
+	 */
+	public boolean hasPageRank() {
+		return this.hasPageRank;
+	}
+
+	/**
+	 * @param docid an internal docid
+	 * @return the document's PageRank score
+	 */
+	public float getPageRank(int docid) {
+		return buffer.getFloat(pageRankAt + 4L * docid);
+	}
+
+	/**
+	 * Build the attribute store of an index.
+	 * @param args indexPath [pageRankFile]
+	 * @throws Exception Error accessing the index or writing the store.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage:  java AttributeStore indexPath [pageRankFile]");
+			System.exit(1);
+		}
+		Idx.initialize(args[0]);
+		build((args.length > 1) ? args[1] : null);
+		System.out.println("Wrote " + Idx.getSidecarFile(FILE_NAME));
+	}
+}
@@ -0,0 +1,39 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BM25 document length normalization tables for quantized document
+ * lengths.  With one-byte length codes (Idx.hasQuantizedLengths), the
+ * normalization k1 * ((1 - b) + b * docLen / avgdocLen) takes only 256
+ * values per field, so it is tabulated once and looked up by code:
+ * <pre>
+ *   tfWeight = tf / (tf + table[Idx.getFieldLengthCode (field, docid)])
+ * </pre>
+ * Tables are built on first use and cached by field, avgdocLen, k1
+ * and b.
+ */
+public class BM25LengthNorms {
+
+	private static final Map<String, double[]> TABLES = new HashMap<String, double[]>();
+
+	/**
+	 * @param field the field
+	 * @param avgdocLen the average field length that the caller uses
+	 * @return table[code] is the length normalization of length code
+	 */
+	public static synchronized double[] get(String field, double avgdocLen) {
+		double k1 = RetrievalModelBM25.k1;
+		double b = RetrievalModelBM25.b;
+		String key = field + "|" + avgdocLen + "|" + k1 + "|" + b;
+		double[] table = TABLES.get(key);
+		if (table == null) {
+			table = new double[256];
+			for (int code = 0; code < table.length; code++) {
+				double docLen = DocLengthStore.decodeLength(code);
+				table[code] = k1 * ((1 - b) + b * docLen / avgdocLen);
+			}
+			TABLES.put(key, table);
+		}
+		return table;
+	}
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A term's posting list with the BM25 score of each posting, for
+ * evaluators that work on whole lists ({@link BatchEvaluator},
+ * {@link TaatEvaluator}).  Postings are read without positions.
+ * Scores are computed as QrySopScore computes them, with
+ * {@link RetrievalModelBM25}'s parameters and a query term frequency
+ * of 1, so they are bit-identical.
+ */
+public class BM25Postings {
+
+	/**
+	 * The documents that contain the term, in increasing order.
+	 */
+	public final int[] docids;
+
+	/**
+	 * The term's BM25 score in each document.
+	 */
+	public final double[] scores;
+
+	/**
+	 * The largest score, or 0 if the list is empty.
+	 */
+	public final double maxScore;
+
+	private BM25Postings(int[] docids, double[] scores) {
+		this.docids = docids;
+		this.scores = scores;
+		double max = 0;
+		for (double score : scores) {
+			max = Math.max(max, score);
+		}
+		this.maxScore = max;
+	}
+
+	/**
+	 * Read a posting list and compute its BM25 scores.
+	 * @param termString the processed term
+	 * @param field the field that the term occurs in
+	 * @return the posting list
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static BM25Postings read(String termString, String field) throws IOException {
+		BytesRef termBytes = new BytesRef(termString);
+		int maxDf = Idx.INDEXREADER.docFreq(new Term(field, termBytes));
+		DocsEnum docs = (maxDf < 1) ? null : MultiFields.getTermDocsEnum(Idx.INDEXREADER,
+				MultiFields.getLiveDocs(Idx.INDEXREADER), field, termBytes, DocsEnum.FLAG_FREQS);
+		if (docs == null) {
+			return new BM25Postings(new int[0], new double[0]);
+		}
+
+		int[] docids = new int[maxDf];
+		int[] tfs = new int[maxDf];
+		int df = 0;
+		while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+			docids[df] = docs.docID();
+			tfs[df] = docs.freq();
+			df++;
+		}
+
+		double N = Idx.getNumDocs();
+		double qtf = 1;
+		double k1 = RetrievalModelBM25.k1;
+		double b = RetrievalModelBM25.b;
+		double k3 = RetrievalModelBM25.k3;
+		double avgdocLen = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
+		long[] stats = Idx.getOriginalTermStats(field, termString);
+		int termDf = (stats != null) ? (int) stats[0] : df;	// pruned indexes keep the original df
+		double idf = Math.max(0, Math.log( (N-termDf+0.5)/(termDf+0.5) ));
+		double userWeight = (k3+1) * qtf / (k3+qtf);
+		double[] lengthNorms = Idx.hasQuantizedLengths() ? BM25LengthNorms.get(field, avgdocLen) : null;
+
+		int[] listDocids = new int[df];
+		double[] scores = new double[df];
+		for (int p = 0; p < df; p++) {
+			double tf = tfs[p];
+			double tfWeight;
+			if (lengthNorms != null) {
+				tfWeight = tf / (tf + lengthNorms[Idx.getFieldLengthCode(field, docids[p])]);
+			} else {
+				double docLen = Idx.getFieldLength(field, docids[p]);
+				tfWeight = tf / (tf + k1*((1-b)+b*docLen/avgdocLen));
+			}
+			listDocids[p] = docids[p];
+			scores[p] = idf * tfWeight * userWeight;
+		}
+		return new BM25Postings(listDocids, scores);
+	}
+}
@@ -0,0 +1,277 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Precomputed BM25 term weights.  The document-dependent part of a
+ * BM25 term score,
+ * <pre>
+ *   tfWeight = tf / (tf + k1 * ((1 - b) + b * docLen / avgdocLen))
+ * </pre>
+ * depends only on the posting and on k1 and b, so it is computed
+ * once for every posting of every term and quantized to 16 bits
+ * (tfWeight is in (0, 1)).  Each term's weights are stored in the
+ * order of its postings (increasing docid), so the i'th weight belongs
+ * to the term's i'th posting.  QrySopScore reads a weight instead of
+ * tf and the document length; idf still uses the query-time df.
+ * <p>
+ * The weights are a sidecar file ({@link Idx#getSidecarFile}) that
+ * records the index fingerprint, k1 and b.  It is built offline:
+ * <pre>
+ *   java BM25WeightStore indexPath k1 b
+ * </pre>
+ * or by {@link #prepare} when the retrieval model is initialized, if
+ * it is missing or stale; it is never built during a query.  Offsets
+ * are longs, and the file is mapped with {@link MappedFile}, so it may
+ * be larger than 2GB.
+ */
+public class BM25WeightStore {
+
+	private static final int MAGIC = 0x42573132;	// "BW12"
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8 + 8 + 4;
+	private static final String FILE_NAME = "bm25-weights.bin";
+	private static final double LEVELS = 65535.0;
+
+	private static BM25WeightStore opened = null;
+	private static String openedKey = null;
+
+	private final MappedFile buffer;
+	private final Map<String, long[]> dictionary;	// field \0 term -> {offset, count}
+
+	private BM25WeightStore(MappedFile buffer, Map<String, long[]> dictionary) {
+		this.buffer = buffer;
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * One term's weights.
+	 */
+	public static class Weights {
+		private final MappedFile buffer;
+		private final long offset;
+
+		private Weights(MappedFile buffer, long offset) {
+			this.buffer = buffer;
+			this.offset = offset;
+		}
+
+		/**
+		 * @param i a posting index
+		 * @return the tfWeight of the term's i'th posting
+		 */
+		public double get(int i) {
+			return this.buffer.getChar(this.offset + 2L * i) / LEVELS;
+		}
+	}
+
+	/**
+	 * Make sure that the open index has a weight store for the current
+	 * BM25 parameters, building it if it is missing or stale.  This is
+	 * done once, before queries are evaluated.
+	 * @return true if the weight store is ready; false if it couldn't
+	 *         be built, in which case scores are computed from tf and
+	 *         document lengths
+	 * @throws IOException Error accessing the index.
+	 */
+	public static synchronized boolean prepare() throws IOException {
+		if (get() != null) {
+			return true;
+		}
+		System.out.println("Building BM25 weights for k1=" + RetrievalModelBM25.k1
+				+ ", b=" + RetrievalModelBM25.b);
+		try {
+			build();
+		} catch (IOException e) {
+			System.err.println("Warning: unable to build BM25 weights: " + e.getMessage());
+			return false;
+		}
+		return get() != null;
+	}
+
+	/**
+	 * The weight store of the open index for the current BM25
+	 * parameters.  It is mapped on first use, but never built.
+	 * @return the weight store, or null if it is missing or stale
+	 * @throws IOException Error reading the weight store.
+	 */
+	public static synchronized BM25WeightStore get() throws IOException {
+		String key = Idx.getIndexId() + "|" + RetrievalModelBM25.k1 + "|" + RetrievalModelBM25.b;
+		if (!key.equals(openedKey)) {
+			opened = open();
+			openedKey = key;
+		}
+		return opened;
+	}
+
+	/**
+	 * @param term a processed term
+	 * @param field the field that the term occurs in
+	 * @param df the number of postings in the term's inverted list
+	 * @return the term's weights, or null if the store doesn't have df
+	 *         weights for it
+	 */
+	public Weights getWeights(String term, String field, int df) {
+		long[] entry = this.dictionary.get(field + "\u0000" + term);
+		if (entry == null || entry[1] != df) {
+			return null;
+		}
+		return new Weights(this.buffer, entry[0]);
+	}
+
+	/**
+	 * @return the store, or null if it is missing or stale
+	 */
+	private static BM25WeightStore open() throws IOException {
+		File file = Idx.getSidecarFile(FILE_NAME);
+		if (!file.canRead()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < HEADER_BYTES) {
+				return null;
+			}
+			MappedFile buffer = new MappedFile(raf.getChannel());
+			if (buffer.getInt(0) != MAGIC
+					|| buffer.getInt(4) != Idx.getMaxDoc()
+					|| buffer.getLong(8) != Idx.getIndexFingerprint()
+					|| buffer.getDouble(16) != RetrievalModelBM25.k1
+					|| buffer.getDouble(24) != RetrievalModelBM25.b) {
+				return null;
+			}
+			int numTerms = buffer.getInt(40);
+			Map<String, long[]> dictionary = new HashMap<String, long[]>(2 * numTerms);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(raf.getChannel().position(buffer.getLong(32))), 1 << 16));
+			for (int i = 0; i < numTerms; i++) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				long offset = in.readLong();
+				int count = in.readInt();
+				dictionary.put(new String(bytes, StandardCharsets.UTF_8), new long[] { offset, count });
+			}
+			return new BM25WeightStore(buffer, dictionary);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Build the weight store of the open index for the current BM25
+	 * parameters.
+	 * @throws IOException Error accessing the index or writing the weight store.
+	 */
+	public static void build() throws IOException {
+		double k1 = RetrievalModelBM25.k1;
+		double b = RetrievalModelBM25.b;
+
+		//  The weights are streamed to the store file and the
+		//  dictionary to a temporary file, which is appended to it.
+		//  The dictionary's offset and size are written last.
+
+		File file = Idx.createSidecarFile(FILE_NAME);
+		File tmp = new File(file.getPath() + ".tmp");
+		File dictionaryTmp = new File(file.getPath() + ".dictionary.tmp");
+		try {
+			DataOutputStream weights = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			DataOutputStream dictionary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dictionaryTmp), 1 << 16));
+			long weightsEnd = HEADER_BYTES;
+			int numTerms = 0;
+			try {
+				weights.writeInt(MAGIC);
+				weights.writeInt(Idx.getMaxDoc());
+				weights.writeLong(Idx.getIndexFingerprint());
+				weights.writeDouble(k1);
+				weights.writeDouble(b);
+				weights.writeLong(0);
+				weights.writeInt(0);
+
+				Fields fields = MultiFields.getFields(Idx.INDEXREADER);
+				for (String field : fields) {
+					Terms terms = fields.terms(field);
+					if (terms == null || MultiDocValues.getNormValues(Idx.INDEXREADER, field) == null) {
+						continue;	// BM25 needs field lengths
+					}
+					double avgdocLen = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
+					TermsEnum ti = terms.iterator(null);
+					BytesRef termBytes;
+					while ((termBytes = ti.next()) != null) {
+						DocsEnum docs = ti.docs(MultiFields.getLiveDocs(Idx.INDEXREADER), null, DocsEnum.FLAG_FREQS);
+						long offset = weightsEnd;
+						int count = 0;
+						while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+							double tf = docs.freq();
+							double docLen = Idx.getFieldLength(field, docs.docID());
+							double tfWeight = tf / (tf + k1*((1-b)+b*docLen/avgdocLen));
+							weights.writeChar((int) Math.max(1, Math.min(LEVELS, Math.round(tfWeight * LEVELS))));
+							count++;
+						}
+						weightsEnd += 2L * count;
+						byte[] key = (field + "\u0000" + termBytes.utf8ToString()).getBytes(StandardCharsets.UTF_8);
+						dictionary.writeInt(key.length);
+						dictionary.write(key);
+						dictionary.writeLong(offset);
+						dictionary.writeInt(count);
+						numTerms++;
+					}
+				}
+			} finally {
+				dictionary.close();
+				weights.close();
+			}
+			RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				out.seek(weightsEnd);
+				Files.copy(dictionaryTmp.toPath(), Channels.newOutputStream(out.getChannel()));
+				out.seek(32);
+				out.writeLong(weightsEnd);
+				out.writeInt(numTerms);
+			} finally {
+				out.close();
+			}
+		} finally {
+			dictionaryTmp.delete();
+		}
+		if (!(tmp.renameTo(file) || (file.delete() && tmp.renameTo(file)))) {
+			throw new IOException("Unable to replace " + file);
+		}
+		synchronized (BM25WeightStore.class) {
+			openedKey = null;
+		}
+	}
+
+	/**
+	 * Build the weight store of an index.
+	 * @param args indexPath k1 b
+	 * @throws Exception Error accessing the index or writing the weight store.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			System.err.println("Usage:  java BM25WeightStore indexPath k1 b");
+			System.exit(1);
+		}
+		Idx.initialize(args[0]);
+		new RetrievalModelBM25(args[1], args[2], Double.toString(RetrievalModelBM25.k3));
+		build();
+		System.out.println("Wrote " + Idx.getSidecarFile(FILE_NAME));
+	}
+}
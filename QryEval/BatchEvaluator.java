@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared-scan evaluation of a batch of BM25 queries.  Queries in a
+ * batch often share terms, and evaluating them one at a time reads,
+ * copies and scores the same postings once per query.  Here each
+ * distinct (term, field) leaf of the batch is read from the index once,
+ * without positions, and its BM25 term scores are computed once.  The
+ * shared lists are then scanned together in windows of docids, and
+ * each window of a list feeds every query that has the list as a leaf
+ * while it is still in cache.
+ * <p>
+ * A query can be batched if it is a #SUM of terms or a single term
+ * (see {@link #leaves}).  Term scores are computed as in
+ * {@link QrySopScore} and added in argument order, as #SUM adds them,
+ * so scores are bit-identical to query-at-a-time evaluation.
+ * <p>
+ * Only the top results of each query are kept: a document is dropped
+ * once depth other documents score higher, so the batch's memory
+ * doesn't grow with the number of matches, and the kept results rank
+ * the same as the top of the complete results.
+ */
+public class BatchEvaluator {
+
+	private static final int WINDOW_SIZE = 1 << 14;
+
+	/**
+	 * A posting list that is shared by the queries of a batch.
+	 */
+	private static class SharedList {
+		final int[] docids;
+		final double[] scores;
+		int start = 0;	// the postings in the current window
+		int end = 0;
+
+		SharedList(BM25Postings postings) {
+			this.docids = postings.docids;
+			this.scores = postings.scores;
+		}
+	}
+
+	/**
+	 * The candidates for a query's top depth results, in docid order,
+	 * and a min-heap of the depth best scores.
+	 */
+	private static class TopCandidates {
+		final double[] heap;
+		int heapSize = 0;
+		int[] docids = new int[64];
+		double[] scores = new double[64];
+		int size = 0;
+
+		TopCandidates(int depth) {
+			this.heap = new double[depth];
+		}
+
+		/**
+		 * @return a score below the depth'th best, which can't be in the
+		 *         top depth results
+		 */
+		double threshold() {
+			return (this.heapSize < this.heap.length) ? Double.NEGATIVE_INFINITY : this.heap[0];
+		}
+
+		void add(int docid, double score) {
+			if (score < this.threshold()) {
+				return;
+			}
+			if (this.heapSize < this.heap.length) {
+				int i = this.heapSize++;
+				while (i > 0 && this.heap[(i - 1) / 2] > score) {
+					this.heap[i] = this.heap[(i - 1) / 2];
+					i = (i - 1) / 2;
+				}
+				this.heap[i] = score;
+			} else if (score > this.heap[0]) {
+				int i = 0;
+				while (2 * i + 1 < this.heapSize) {
+					int c = 2 * i + 1;
+					if (c + 1 < this.heapSize && this.heap[c + 1] < this.heap[c]) {
+						c++;
+					}
+					if (this.heap[c] >= score) {
+						break;
+					}
+					this.heap[i] = this.heap[c];
+					i = c;
+				}
+				this.heap[i] = score;
+			}
+			if (this.size == this.docids.length) {
+				this.compact();
+				if (this.size * 2 > this.docids.length) {
+					this.docids = Arrays.copyOf(this.docids, 2 * this.docids.length);
+					this.scores = Arrays.copyOf(this.scores, 2 * this.scores.length);
+				}
+			}
+			this.docids[this.size] = docid;
+			this.scores[this.size] = score;
+			this.size++;
+		}
+
+		/**
+		 * Drop the candidates below the threshold.
+		 */
+		void compact() {
+			double threshold = this.threshold();
+			int m = 0;
+			for (int i = 0; i < this.size; i++) {
+				if (this.scores[i] >= threshold) {
+					this.docids[m] = this.docids[i];
+					this.scores[m] = this.scores[i];
+					m++;
+				}
+			}
+			this.size = m;
+		}
+
+		ScoreList toScoreList() {
+			this.compact();
+			ScoreList r = new ScoreList();
+			for (int i = 0; i < this.size; i++) {
+				r.add(this.docids[i], this.scores[i]);
+			}
+			return r;
+		}
+	}
+
+	/**
+	 * @param q an optimized query
+	 * @return the terms that q sums, in argument order, or null if q
+	 *         isn't a #SUM of terms or a single term
+	 */
+	public static QryIopTerm[] leaves(Qry q) {
+		if (q instanceof QrySopScore && q.args.get(0) instanceof QryIopTerm) {
+			return new QryIopTerm[] { (QryIopTerm) q.args.get(0) };
+		}
+		if (!(q instanceof QrySopSum) || q.args.size() == 0) {
+			return null;
+		}
+		QryIopTerm[] terms = new QryIopTerm[q.args.size()];
+		for (int i = 0; i < terms.length; i++) {
+			Qry q_i = q.args.get(i);
+			if (!(q_i instanceof QrySopScore && q_i.args.get(0) instanceof QryIopTerm)) {
+				return null;
+			}
+			terms[i] = (QryIopTerm) q_i.args.get(0);
+		}
+		return terms;
+	}
+
+	/**
+	 * Evaluate a batch of queries.
+	 * Scores use {@link RetrievalModelBM25}'s parameters.
+	 * @param queries queries for which {@link #leaves} isn't null
+	 * @param depth the number of results needed
+	 * @return the top results of each query, in the same order; they
+	 *         may include documents that tie with the depth'th result
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static ScoreList[] evaluate(List<Qry> queries, int depth) throws IOException {
+
+		//  Map each query's leaves to the batch's shared lists.
+
+		Map<String, Integer> listIds = new HashMap<String, Integer>();
+		List<SharedList> lists = new ArrayList<SharedList>();
+		int[][] queryLists = new int[queries.size()][];
+		for (int i = 0; i < queries.size(); i++) {
+			QryIopTerm[] terms = leaves(queries.get(i));
+			queryLists[i] = new int[terms.length];
+			for (int j = 0; j < terms.length; j++) {
+				String key = terms[j].getField() + "\u0000" + terms[j].getTerm();
+				Integer id = listIds.get(key);
+				if (id == null) {
+					id = lists.size();
+					listIds.put(key, id);
+					lists.add(new SharedList(BM25Postings.read(terms[j].getTerm(), terms[j].getField())));
+				}
+				queryLists[i][j] = id;
+			}
+		}
+
+		//  Scan the shared lists a window at a time.
+
+		TopCandidates[] top = new TopCandidates[queries.size()];
+		for (int i = 0; i < top.length; i++) {
+			top[i] = new TopCandidates(depth);
+		}
+		double[] acc = new double[WINDOW_SIZE];
+		long[] hits = new long[WINDOW_SIZE / 64];
+		int maxDoc = Idx.getMaxDoc();
+
+		for (int base = 0; base < maxDoc; base += WINDOW_SIZE) {
+			int limit = base + WINDOW_SIZE;
+			for (SharedList list : lists) {
+				list.start = list.end;
+				while (list.end < list.docids.length && list.docids[list.end] < limit) {
+					list.end++;
+				}
+			}
+			for (int i = 0; i < queryLists.length; i++) {
+				boolean match = false;
+				for (int id : queryLists[i]) {
+					SharedList list = lists.get(id);
+					for (int p = list.start; p < list.end; p++) {
+						int k = list.docids[p] - base;
+						acc[k] += list.scores[p];
+						hits[k >>> 6] |= 1L << k;
+					}
+					match |= list.end > list.start;
+				}
+				if (match) {
+					collect(base, acc, hits, top[i]);
+				}
+			}
+		}
+
+		ScoreList[] results = new ScoreList[queries.size()];
+		for (int i = 0; i < results.length; i++) {
+			results[i] = top[i].toScoreList();
+		}
+		return results;
+	}
+
+	/**
+	 * Add a window's matches to a query's results, in docid order, and
+	 * clear the window.
+	 */
+	private static void collect(int base, double[] acc, long[] hits, TopCandidates r) {
+		for (int w = 0; w < hits.length; w++) {
+			long word = hits[w];
+			while (word != 0) {
+				int k = (w << 6) + Long.numberOfTrailingZeros(word);
+				r.add(base + k, acc[k]);
+				acc[k] = 0;
+				word &= word - 1;
+			}
+			hits[w] = 0;
+		}
+	}
+}
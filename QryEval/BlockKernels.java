@@ -0,0 +1,126 @@
+/**
+ * Term-scoring kernels for blocks of candidate documents.  Each kernel
+ * is a counted loop over primitive arrays with no branches, calls or
+ * object accesses in its body, which is the shape that HotSpot's
+ * superword optimization compiles into SIMD instructions.  The
+ * arithmetic is the same, operation for operation, as the
+ * one-document-at-a-time code, so block scores are bit-identical.
+ * <p>
+ * If VectorBlockKernels (vector/VectorBlockKernels.java, which uses
+ * the incubating Vector API) is on the classpath and the JVM runs with
+ * --add-modules jdk.incubator.vector, the kernels use it instead;
+ * otherwise they use the scalar loops below.
+ */
+public final class BlockKernels {
+
+	/**
+	 * The largest number of candidates in one block.
+	 */
+	public static final int BLOCK_SIZE = 128;
+
+	/**
+	 * The operations that an implementation of the kernels provides.
+	 */
+	interface Kernels {
+		void bm25Norms(int n, double[] len, double k1, double b, double avgdocLen, double[] out);
+		void bm25Accumulate(int n, double[] tf, double[] norm, double idf, double userWeight, double[] scores);
+		void indriSmooth(int n, double[] tf, double[] len, double oneMinusLambda, double muPMLE,
+				double mu, double lambdaPMLE, double[] out);
+		void weightedSum(int n, double[] s, double weight, double[] acc);
+	}
+
+	private static final Kernels KERNELS = load();
+
+	private BlockKernels() {
+	}
+
+	/**
+	 * @return the Vector API kernels if they can be loaded, else the
+	 *         scalar kernels
+	 */
+	private static Kernels load() {
+		try {
+			Kernels k = (Kernels) Class.forName("VectorBlockKernels").getDeclaredConstructor().newInstance();
+			k.weightedSum(1, new double[1], 1, new double[1]);	// links the vector classes
+			return k;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return new Scalar();
+		}
+	}
+
+	/**
+	 * @return the name of the kernels in use, for reports
+	 */
+	public static String implementation() {
+		return (KERNELS instanceof Scalar) ? "scalar" : "vector";
+	}
+
+	/**
+	 * BM25 length normalization: out[i] = k1 * ((1 - b) + b * len[i] / avgdocLen).
+	 */
+	public static void bm25Norms(int n, double[] len, double k1, double b, double avgdocLen, double[] out) {
+		KERNELS.bm25Norms(n, len, k1, b, avgdocLen, out);
+	}
+
+	/**
+	 * Add one term's BM25 scores: scores[i] += idf * tfWeight * userWeight,
+	 * where tfWeight = tf[i] / (tf[i] + norm[i]).  A document without
+	 * the term (tf 0) adds 0, so norm must be positive.
+	 */
+	public static void bm25Accumulate(int n, double[] tf, double[] norm, double idf, double userWeight,
+			double[] scores) {
+		KERNELS.bm25Accumulate(n, tf, norm, idf, userWeight, scores);
+	}
+
+	/**
+	 * Indri Dirichlet smoothing:
+	 * out[i] = (oneMinusLambda * (tf[i] + muPMLE) / (len[i] + mu)) + lambdaPMLE.
+	 * A document without the term (tf 0) gets the default score.
+	 */
+	public static void indriSmooth(int n, double[] tf, double[] len, double oneMinusLambda, double muPMLE,
+			double mu, double lambdaPMLE, double[] out) {
+		KERNELS.indriSmooth(n, tf, len, oneMinusLambda, muPMLE, mu, lambdaPMLE, out);
+	}
+
+	/**
+	 * Weighted sum: acc[i] += weight * s[i].
+	 */
+	public static void weightedSum(int n, double[] s, double weight, double[] acc) {
+		KERNELS.weightedSum(n, s, weight, acc);
+	}
+
+	/**
+	 * The kernels as counted loops, for HotSpot's superword pass.
+	 */
+	static final class Scalar implements Kernels {
+		@Override
+		public void bm25Norms(int n, double[] len, double k1, double b, double avgdocLen, double[] out) {
+			for (int i = 0; i < n; i++) {
+				out[i] = k1 * ((1 - b) + b * len[i] / avgdocLen);
+			}
+		}
+
+		@Override
+		public void bm25Accumulate(int n, double[] tf, double[] norm, double idf, double userWeight,
+				double[] scores) {
+			for (int i = 0; i < n; i++) {
+				scores[i] += idf * (tf[i] / (tf[i] + norm[i])) * userWeight;
+			}
+		}
+
+		@Override
+		public void indriSmooth(int n, double[] tf, double[] len, double oneMinusLambda, double muPMLE,
+				double mu, double lambdaPMLE, double[] out) {
+			for (int i = 0; i < n; i++) {
+				out[i] = (oneMinusLambda * (tf[i] + muPMLE) / (len[i] + mu)) + lambdaPMLE;
+			}
+		}
+
+		@Override
+		public void weightedSum(int n, double[] s, double weight, double[] acc) {
+			for (int i = 0; i < n; i++) {
+				acc[i] += weight * s[i];
+			}
+		}
+	}
+}
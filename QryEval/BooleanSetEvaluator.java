@@ -0,0 +1,251 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Set-at-a-time evaluation of UnrankedBoolean queries.  Every match
+ * has score 1.0, so a query is just a set of documents: #OR is the
+ * union of its arguments' sets and #AND their intersection, computed
+ * with {@link RoaringDocidSet}.  Term sets are read from Lucene's
+ * postings without frequencies or positions; other inverted list
+ * operators (e.g., #NEAR/n) are evaluated as usual and converted.
+ * #FILTER and #EXCLUDE keep the members that pass their bitsets.
+ * <p>
+ * All scores tie, so results are ranked by external docid.  Instead
+ * of looking up the external docid of every match, the matches are
+ * ranked with a table of the documents' positions in external docid
+ * order, and only the top ones are returned.  The table is built when
+ * a query first has more matches than are needed, and is cached in a
+ * sidecar file ({@link Idx#getSidecarFile}) that records the index
+ * fingerprint, so later runs don't read every external docid.
+ */
+public class BooleanSetEvaluator {
+
+	private static final int MAGIC = 0x454f5231;	// "EOR1"
+	private static final String FILE_NAME = "extid-order.bin";
+
+	private static int[] order = null;	// docids in external docid order
+	private static int[] rank = null;	// rank[docid] = position in order
+	private static IndexReader orderReader = null;	// the index that order and rank are for
+
+	/**
+	 * @param q a query
+	 * @param r the retrieval model, which must be UnrankedBoolean
+	 * @return the query's matches, or null if q has operators that this
+	 *         class doesn't evaluate
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static RoaringDocidSet evaluate(Qry q, RetrievalModel r) throws IOException {
+		if (q instanceof QryIopTerm) {
+			QryIopTerm t = (QryIopTerm) q;
+			BytesRef termBytes = new BytesRef(t.getTerm());
+			if (Idx.INDEXREADER.docFreq(new Term(t.getField(), termBytes)) < 1) {
+				return RoaringDocidSet.EMPTY;
+			}
+			DocsEnum docs = MultiFields.getTermDocsEnum(Idx.INDEXREADER, MultiFields.getLiveDocs(Idx.INDEXREADER),
+					t.getField(), termBytes, DocsEnum.FLAG_NONE);
+			return (docs == null) ? RoaringDocidSet.EMPTY : RoaringDocidSet.fromDocs(docs);
+		}
+		if (q instanceof QryIopSyn && allTerms(q)) {
+			return combine(q, r, false);
+		}
+		if (q instanceof QryIop) {
+			q.initialize(r);
+			return RoaringDocidSet.fromInvList(((QryIop) q).invertedList);
+		}
+		if (q instanceof QrySopScore) {
+			return evaluate(q.args.get(0), r);
+		}
+		if (q instanceof QrySopFilter) {
+			RoaringDocidSet s = evaluate(q.args.get(0), r);
+			return (s == null) ? null : filter(s, (QrySopFilter) q);
+		}
+		if (q instanceof QrySopOr) {
+			return combine(q, r, false);
+		}
+		if (q instanceof QrySopAnd) {
+			return combine(q, r, true);
+		}
+		return null;
+	}
+
+	private static RoaringDocidSet filter(RoaringDocidSet s, QrySopFilter f) throws IOException {
+		BitSet bits = DocFilters.get(f.getSpec());
+		RoaringDocidSet.Builder builder = new RoaringDocidSet.Builder();
+		for (int docid : s.toArray()) {
+			if (bits.get(docid) != f.isExclude()) {
+				builder.add(docid);
+			}
+		}
+		return builder.build();
+	}
+
+	private static boolean allTerms(Qry q) {
+		for (Qry q_i : q.args) {
+			if (!(q_i instanceof QryIopTerm)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static RoaringDocidSet combine(Qry q, RetrievalModel r, boolean intersect) throws IOException {
+		RoaringDocidSet result = null;
+		for (Qry q_i : q.args) {
+			RoaringDocidSet s = evaluate(q_i, r);
+			if (s == null) {
+				return null;
+			}
+			if (result == null) {
+				result = s;
+			} else {
+				result = intersect ? RoaringDocidSet.intersection(result, s) : RoaringDocidSet.union(result, s);
+			}
+		}
+		return (result == null) ? RoaringDocidSet.EMPTY : result;
+	}
+
+	/**
+	 * @param matches a query's matches
+	 * @param depth the number of results needed
+	 * @return the first depth matches in external docid order, with
+	 *         score 1.0
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static ScoreList toScoreList(RoaringDocidSet matches, int depth) throws IOException {
+		ScoreList r = new ScoreList();
+		int[] docids = matches.toArray();
+		if (docids.length <= depth) {
+			for (int docid : docids) {
+				r.add(docid, 1.0);
+			}
+			return r;
+		}
+		initializeOrder();
+		int[] ranks = new int[docids.length];
+		for (int i = 0; i < docids.length; i++) {
+			ranks[i] = rank[docids[i]];
+		}
+		Arrays.sort(ranks);
+		for (int i = 0; i < depth; i++) {
+			r.add(order[ranks[i]], 1.0);
+		}
+		return r;
+	}
+
+	/**
+	 * Order the documents as ScoreList.sort orders documents with equal
+	 * scores: by external docid, ignoring case, then by internal docid.
+	 * The tables are read from the sidecar file, or built and cached,
+	 * when {@link Idx} opens another index.
+	 */
+	private static synchronized void initializeOrder() throws IOException {
+		if (order != null && orderReader == Idx.INDEXREADER) {
+			return;
+		}
+		int maxDoc = Idx.getMaxDoc();
+		int[] newOrder = readOrder();
+		if (newOrder == null) {
+			newOrder = buildOrder();
+			writeOrder(newOrder);
+		}
+		int[] newRank = new int[maxDoc];
+		for (int i = 0; i < maxDoc; i++) {
+			newRank[newOrder[i]] = i;
+		}
+		order = newOrder;
+		rank = newRank;
+		orderReader = Idx.INDEXREADER;
+	}
+
+	private static int[] buildOrder() throws IOException {
+		int maxDoc = Idx.getMaxDoc();
+		final String[] externalIds = new String[maxDoc];
+		Integer[] docids = new Integer[maxDoc];
+		for (int docid = 0; docid < maxDoc; docid++) {
+			externalIds[docid] = Idx.getExternalDocid(docid);
+			docids[docid] = docid;
+		}
+		Arrays.sort(docids, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer d1, Integer d2) {
+				int c = externalIds[d1].compareToIgnoreCase(externalIds[d2]);
+				return (c != 0) ? c : Integer.compare(d1, d2);
+			}
+		});
+		int[] newOrder = new int[maxDoc];
+		for (int i = 0; i < maxDoc; i++) {
+			newOrder[i] = docids[i];
+		}
+		return newOrder;
+	}
+
+	/**
+	 * @return the order from the sidecar file, or null if it is missing
+	 *         or stale
+	 */
+	private static int[] readOrder() throws IOException {
+		File file = Idx.getSidecarFile(FILE_NAME);
+		if (!file.canRead()) {
+			return null;
+		}
+		int maxDoc = Idx.getMaxDoc();
+		if (file.length() != 4 + 4 + 8 + 4L * maxDoc) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC
+					|| in.readInt() != maxDoc
+					|| in.readLong() != Idx.getIndexFingerprint()) {
+				return null;
+			}
+			int[] newOrder = new int[maxDoc];
+			for (int i = 0; i < maxDoc; i++) {
+				newOrder[i] = in.readInt();
+			}
+			return newOrder;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeOrder(int[] newOrder) {
+		File file = Idx.getSidecarFile(FILE_NAME);
+		try {
+			file = Idx.createSidecarFile(FILE_NAME);
+			File tmp = new File(file.getPath() + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(Idx.getMaxDoc());
+				out.writeLong(Idx.getIndexFingerprint());
+				for (int docid : newOrder) {
+					out.writeInt(docid);
+				}
+			} finally {
+				out.close();
+			}
+			if (!(tmp.renameTo(file) || (file.delete() && tmp.renameTo(file)))) {
+				throw new IOException("Unable to replace " + file);
+			}
+		} catch (IOException e) {
+			// The cache is only an optimization.
+			System.err.println("Warning: unable to write " + file + ": " + e.getMessage());
+		}
+	}
+}
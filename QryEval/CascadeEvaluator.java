@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Two-stage cascade evaluation.  A cheap first stage selects the top
+ * candidates for a query's terms, and the retrieval model scores only
+ * those candidates:
+ * <pre>
+ *   bm25      BM25 #SUM of the query's terms; the top depth documents
+ *             ({@link BatchEvaluator})
+ *   boolean   a best-match Boolean OR: the depth documents that contain
+ *             the most distinct query terms, ties in docid order (term
+ *             sets from {@link BooleanSetEvaluator})
+ * </pre>
+ * The second stage reads only the candidates' postings of the terms
+ * that it scores, skipping from one candidate to the next in Lucene's
+ * postings, and then visits the candidates in docid order, skipping
+ * each query operator to them with docIteratorAdvanceTo, so documents
+ * between candidates are never decoded or scored.  A candidate gets the same
+ * score as in a full evaluation, and candidates that the query doesn't
+ * match are dropped, so the results are the full results restricted
+ * to the candidates.
+ */
+public class CascadeEvaluator {
+
+	/**
+	 * @param firstStage a first stage name
+	 * @throws IllegalArgumentException the name is unknown
+	 */
+	public static void validate(String firstStage) {
+		if (!firstStage.equals("bm25") && !firstStage.equals("boolean")) {
+			throw new IllegalArgumentException("Unknown cascade:firstStage " + firstStage);
+		}
+	}
+
+	/**
+	 * Select the candidates for a query.
+	 * @param q a query
+	 * @param firstStage bm25 or boolean
+	 * @param depth the number of candidates
+	 * @return the candidates, with their first stage scores
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static ScoreList firstStage(Qry q, String firstStage, int depth) throws IOException {
+		List<QryIopTerm> terms = new ArrayList<QryIopTerm>();
+		collectTerms(q, terms, firstStage.equals("boolean") ? new HashSet<String>() : null);
+		if (terms.isEmpty()) {
+			return new ScoreList();
+		}
+		if (firstStage.equals("boolean")) {
+			return bestMatch(terms, depth);
+		}
+		QrySopSum sum = new QrySopSum();
+		for (QryIopTerm t : terms) {
+			QrySopScore score = new QrySopScore();
+			score.appendArg(t);
+			sum.appendArg(score);
+		}
+		List<Qry> batch = new ArrayList<Qry>();
+		batch.add(sum);
+		ScoreList r = BatchEvaluator.evaluate(batch, depth)[0];
+		r.sort();
+		r.truncate(depth);
+		return r;
+	}
+
+	/**
+	 * The documents that contain the most terms.  A strict #AND would
+	 * lose every document that misses one term, and external docid order
+	 * would pick candidates regardless of how well they match.
+	 * @param terms distinct terms
+	 * @param depth the number of candidates
+	 * @return the candidates, with the number of terms that they contain
+	 *         as their scores
+	 */
+	private static ScoreList bestMatch(List<QryIopTerm> terms, int depth) throws IOException {
+		RetrievalModel r = new RetrievalModelUnrankedBoolean();
+		int[] counts = new int[Idx.getMaxDoc()];
+		int[] matched = new int[16];
+		int n = 0;
+		for (QryIopTerm t : terms) {
+			for (int docid : BooleanSetEvaluator.evaluate(t, r).toArray()) {
+				if (counts[docid]++ == 0) {
+					if (n == matched.length) {
+						matched = Arrays.copyOf(matched, 2 * n);
+					}
+					matched[n++] = docid;
+				}
+			}
+		}
+		Arrays.sort(matched, 0, n);
+
+		//  The smallest count that is selected, and how many documents
+		//  with that count fit.
+
+		int[] histogram = new int[terms.size() + 1];
+		for (int i = 0; i < n; i++) {
+			histogram[counts[matched[i]]]++;
+		}
+		int threshold = terms.size();
+		int above = 0;
+		while (threshold > 1 && above + histogram[threshold] < depth) {
+			above += histogram[threshold];
+			threshold--;
+		}
+		int atThreshold = depth - above;
+
+		ScoreList candidates = new ScoreList();
+		for (int i = 0; i < n; i++) {
+			int count = counts[matched[i]];
+			if (count > threshold || (count == threshold && atThreshold-- > 0)) {
+				candidates.add(matched[i], count);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Collect copies of the query's terms, in query order.
+	 * @param seen the terms collected so far, to skip duplicates, or null
+	 *        to keep them
+	 */
+	private static void collectTerms(Qry q, List<QryIopTerm> terms, Set<String> seen) {
+		if (q instanceof QryIopTerm) {
+			QryIopTerm t = (QryIopTerm) q;
+			if (seen == null || seen.add(t.getField() + "\u0000" + t.getTerm())) {
+				terms.add(new QryIopTerm(t.getTerm(), t.getField()));
+			}
+			return;
+		}
+		for (Qry q_i : q.args) {
+			collectTerms(q_i, terms, seen);
+		}
+	}
+
+	/**
+	 * Restrict the terms that are scored directly (the arguments of
+	 * #SCORE) to the candidates, so that only the candidates' postings
+	 * are read.  Terms inside other inverted list operators (e.g.,
+	 * #NEAR/n) need their full lists for the operators' statistics.
+	 * @param q a query that hasn't been initialized
+	 * @param candidates the candidates
+	 */
+	public static void restrictTerms(Qry q, ScoreList candidates) {
+		restrictTerms(q, sortedDocids(candidates));
+	}
+
+	private static void restrictTerms(Qry q, int[] docids) {
+		if (q instanceof QrySopScore && q.args.get(0) instanceof QryIopTerm) {
+			((QryIopTerm) q.args.get(0)).restrictTo(docids);
+		} else if (q instanceof QrySop) {
+			for (Qry q_i : q.args) {
+				restrictTerms(q_i, docids);
+			}
+		}
+	}
+
+	private static int[] sortedDocids(ScoreList candidates) {
+		int[] docids = new int[candidates.size()];
+		for (int i = 0; i < docids.length; i++) {
+			docids[i] = candidates.getDocid(i);
+		}
+		Arrays.sort(docids);
+		return docids;
+	}
+
+	/**
+	 * Score the candidates with the retrieval model.
+	 * @param q an initialized query
+	 * @param r the retrieval model
+	 * @param candidates the candidates
+	 * @return the candidates that q matches, with their scores
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static ScoreList rerank(Qry q, RetrievalModel r, ScoreList candidates) throws IOException {
+		int[] docids = sortedDocids(candidates);
+
+		ScoreList result = new ScoreList();
+		QrySop sop = (QrySop) q;
+		int scored = 0;
+		for (int docid : docids) {
+			sop.docIteratorAdvanceTo(docid);
+			if (!sop.docIteratorHasMatch(r)) {
+				break;
+			}
+			if (sop.docIteratorGetMatch() == docid) {
+				result.add(docid, sop.getScore(r));
+				if (++scored % BlockKernels.BLOCK_SIZE == 0 && QueryBudget.scored(BlockKernels.BLOCK_SIZE)) {
+					break;
+				}
+			}
+		}
+		return result;
+	}
+}
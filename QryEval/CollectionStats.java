@@ -0,0 +1,167 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The collection statistics of an unpruned index, kept with an index
+ * that {@link IndexPruner} wrote.  Pruning removes postings, so the
+ * pruned index's own df, ctf, field lengths and field document counts
+ * are smaller; {@link Idx} reports these statistics instead, so that
+ * scores from the pruned index are comparable with scores from the
+ * unpruned index.  Only the terms whose statistics changed are stored.
+ * <p>
+ * The statistics are a sidecar file ({@link Idx#getSidecarFile}) of
+ * the pruned index that records its fingerprint; they are ignored if
+ * the pruned index changes.
+ */
+public class CollectionStats {
+
+	private static final int MAGIC = 0x43535431;	// "CST1"
+	private static final String FILE_NAME = "collection-stats.bin";
+
+	private final Map<String, long[]> fields;	// field -> {docCount, sumTotalTermFreq}
+	private final Map<String, long[]> terms;	// field \0 term -> {df, ctf}
+	private String source = null;	// the file the statistics were read from
+
+	/**
+	 * An empty set of statistics, to be filled by the pruner.
+	 */
+	public CollectionStats() {
+		this.fields = new HashMap<String, long[]>();
+		this.terms = new HashMap<String, long[]>();
+	}
+
+	/**
+	 * Record a field's statistics in the unpruned index.
+	 * @param field the field
+	 * @param docCount the number of documents that have the field
+	 * @param sumTotalTermFreq the sum of the field's lengths
+	 */
+	public void putField(String field, long docCount, long sumTotalTermFreq) {
+		this.fields.put(field, new long[] { docCount, sumTotalTermFreq });
+	}
+
+	/**
+	 * Record a term's statistics in the unpruned index.
+	 * @param field the field that the term occurs in
+	 * @param term a processed term
+	 * @param df the term's document frequency
+	 * @param ctf the term's collection term frequency
+	 */
+	public void putTerm(String field, String term, long df, long ctf) {
+		this.terms.put(field + "\u0000" + term, new long[] { df, ctf });
+	}
+
+	/**
+	 * @param field a field
+	 * @return {docCount, sumTotalTermFreq} of the field, or null if
+	 *         they weren't recorded
+	 */
+	public long[] getFieldStats(String field) {
+		return this.fields.get(field);
+	}
+
+	/**
+	 * @param field the field that the term occurs in
+	 * @param term a processed term
+	 * @return {df, ctf} of the term, or null if pruning didn't change them
+	 */
+	public long[] getTermStats(String field, String term) {
+		return this.terms.get(field + "\u0000" + term);
+	}
+
+	/**
+	 * @return the number of terms whose statistics are recorded
+	 */
+	public int numTerms() {
+		return this.terms.size();
+	}
+
+	/**
+	 * @return a description of the file that the statistics were read
+	 *         from (path, size and modification time), e.g. for cache
+	 *         keys, or null if they weren't read from a file
+	 */
+	public String getSource() {
+		return this.source;
+	}
+
+	/**
+	 * Read the statistics of the open index.
+	 * @return the statistics, or null if the index has none or they
+	 *         are stale
+	 * @throws IOException Error reading the statistics.
+	 */
+	public static CollectionStats open() throws IOException {
+		File file = Idx.getSidecarFile(FILE_NAME);
+		if (!file.canRead()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC
+					|| in.readInt() != Idx.getMaxDoc()
+					|| in.readLong() != Idx.getIndexFingerprint()) {
+				System.err.println("Warning: ignoring stale collection statistics " + file);
+				return null;
+			}
+			CollectionStats stats = new CollectionStats();
+			int numFields = in.readInt();
+			for (int i = 0; i < numFields; i++) {
+				String field = in.readUTF();
+				stats.fields.put(field, new long[] { in.readLong(), in.readLong() });
+			}
+			int numTerms = in.readInt();
+			for (int i = 0; i < numTerms; i++) {
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				stats.terms.put(new String(key, "UTF-8"), new long[] { in.readLong(), in.readLong() });
+			}
+			stats.source = file.getAbsolutePath() + "," + file.length() + "," + file.lastModified();
+			return stats;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the statistics as the sidecar of the open index.
+	 * @throws IOException Error writing the statistics.
+	 */
+	public void write() throws IOException {
+		File file = Idx.createSidecarFile(FILE_NAME);
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(Idx.getMaxDoc());
+			out.writeLong(Idx.getIndexFingerprint());
+			out.writeInt(this.fields.size());
+			for (Map.Entry<String, long[]> entry : this.fields.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue()[0]);
+				out.writeLong(entry.getValue()[1]);
+			}
+			out.writeInt(this.terms.size());
+			for (Map.Entry<String, long[]> entry : this.terms.entrySet()) {
+				byte[] key = entry.getKey().getBytes("UTF-8");
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeLong(entry.getValue()[0]);
+				out.writeLong(entry.getValue()[1]);
+			}
+		} finally {
+			out.close();
+		}
+		if (!(tmp.renameTo(file) || (file.delete() && tmp.renameTo(file)))) {
+			throw new IOException("Unable to replace " + file);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Docid bitsets for the metadata constraints of the #FILTER and
+ * #EXCLUDE operators ({@link QrySopFilter}).  A filter spec names a
+ * document property that is computed from stored fields:
+ * <pre>
+ *   spam:N        the "score" attribute (Waterloo spam percentile) is below N
+ *   host:suffix   the host of the "rawUrl" attribute ends with suffix,
+ *                 e.g. host:.edu or host:wikipedia.org
+ * </pre>
+ * The bitset of each spec is built once per index by reading every
+ * document, then cached in a sidecar file ({@link Idx#getSidecarFile})
+ * and in memory.  The sidecar records the index fingerprint, and it is
+ * rebuilt when the index changes.
+ */
+public class DocFilters {
+
+	private static final int MAGIC = 0x44464c31;	// "DFL1"
+	private static final int HEADER_BYTES = 4 + 4 + 8;
+
+	private static final Map<String, BitSet> BITSETS = new HashMap<String, BitSet>();
+
+	/**
+	 * @param spec a filter spec
+	 * @return the documents that have the property, indexed by internal docid
+	 * @throws IllegalArgumentException the spec is malformed
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static synchronized BitSet get(String spec) throws IOException {
+		String key = Idx.getIndexId() + "|" + spec;
+		BitSet bits = BITSETS.get(key);
+		if (bits == null) {
+			String cacheName = "filter-" + fileName(spec) + ".bits";
+			bits = readCache(Idx.getSidecarFile(cacheName));
+			if (bits == null) {
+				bits = build(spec);
+				writeCache(cacheName, bits);
+			}
+			BITSETS.put(key, bits);
+		}
+		return bits;
+	}
+
+	/**
+	 * Check that a spec is well formed, without building its bitset.
+	 * @param spec a filter spec
+	 * @throws IllegalArgumentException the spec is malformed
+	 */
+	public static void validate(String spec) {
+		int colon = spec.indexOf(':');
+		String property = (colon < 0) ? spec : spec.substring(0, colon);
+		String value = (colon < 0) ? "" : spec.substring(colon + 1);
+		if (property.equals("spam")) {
+			try {
+				Integer.parseInt(value);
+				return;
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Expecting a number in filter spec " + spec);
+			}
+		} else if (property.equals("host") && value.length() > 0) {
+			return;
+		}
+		throw new IllegalArgumentException("Unknown filter spec " + spec);
+	}
+
+	private static BitSet build(String spec) throws IOException {
+		validate(spec);
+		String value = spec.substring(spec.indexOf(':') + 1);
+		boolean spam = spec.startsWith("spam:");
+		int threshold = spam ? Integer.parseInt(value) : 0;
+		String suffix = value.toLowerCase();
+		int maxDoc = Idx.getMaxDoc();
+		BitSet bits = new BitSet(maxDoc);
+		for (int docid = 0; docid < maxDoc; docid++) {
+			if (spam) {
+				String score = Idx.getAttribute("score", docid);
+				bits.set(docid, score != null && Integer.parseInt(score.trim()) < threshold);
+			} else {
+				String rawUrl = Idx.getAttribute("rawUrl", docid);
+				bits.set(docid, rawUrl != null && hostMatches(host(rawUrl), suffix));
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * @param url a URL
+	 * @return its lower-cased host name
+	 */
+	static String host(String url) {
+		int start = url.indexOf("://");
+		start = (start < 0) ? 0 : start + 3;
+		int end = start;
+		while (end < url.length() && "/:?#".indexOf(url.charAt(end)) < 0) {
+			end++;
+		}
+		return url.substring(start, end).toLowerCase();
+	}
+
+	/**
+	 * A suffix that starts with '.' matches any host that ends with it;
+	 * otherwise it must match whole labels ("wikipedia.org" matches
+	 * en.wikipedia.org but not notwikipedia.org).
+	 */
+	private static boolean hostMatches(String host, String suffix) {
+		if (suffix.startsWith(".")) {
+			return host.endsWith(suffix);
+		}
+		return host.equals(suffix) || host.endsWith("." + suffix);
+	}
+
+	private static String fileName(String spec) {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < spec.length(); i++) {
+			char c = spec.charAt(i);
+			name.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c : '_');
+		}
+		return name.append('-').append(Integer.toHexString(spec.hashCode())).toString();
+	}
+
+	/**
+	 * @return the cached bitset, or null if the cache is missing or stale
+	 */
+	private static BitSet readCache(File cacheFile) throws IOException {
+		if (!cacheFile.canRead()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			int maxDoc = Idx.getMaxDoc();
+			int words = (maxDoc + 63) / 64;
+			if (channel.size() != HEADER_BYTES + 8L * words) {
+				return null;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC
+					|| buffer.getInt() != maxDoc
+					|| buffer.getLong() != Idx.getIndexFingerprint()) {
+				return null;
+			}
+			LongBuffer longs = buffer.asLongBuffer();
+			return BitSet.valueOf(longs);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeCache(String cacheName, BitSet bits) {
+		File cacheFile = Idx.getSidecarFile(cacheName);
+		try {
+			cacheFile = Idx.createSidecarFile(cacheName);
+			int maxDoc = Idx.getMaxDoc();
+			long[] words = bits.toLongArray();
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(cacheFile), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(maxDoc);
+				out.writeLong(Idx.getIndexFingerprint());
+				for (int w = 0; w < (maxDoc + 63) / 64; w++) {
+					out.writeLong((w < words.length) ? words[w] : 0);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// The cache is only an optimization.
+			System.err.println("Warning: unable to write " + cacheFile + ": " + e.getMessage());
+		}
+	}
+}
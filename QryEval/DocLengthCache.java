@@ -0,0 +1,64 @@
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * A per-thread cache of the most recent field length lookup in each
+ * field.  Query evaluation asks for the length of the same (field,
+ * document) once per query term, e.g. once for every Indri #AND
+ * argument that needs a default score; with this cache, only the first
+ * of those goes to {@link Idx}.  The cache is emptied when {@link Idx}
+ * opens another index.
+ */
+public class DocLengthCache {
+
+	private static final ThreadLocal<DocLengthCache> CACHE = new ThreadLocal<DocLengthCache>() {
+		@Override
+		protected DocLengthCache initialValue() {
+			return new DocLengthCache();
+		}
+	};
+
+	private String[] fields = new String[4];
+	private int[] docids = new int[4];
+	private int[] lengths = new int[4];
+	private int size = 0;
+	private IndexReader reader = null;
+
+	/**
+	 * The same as {@link Idx#getFieldLength}, through this thread's cache.
+	 * @param field the field name
+	 * @param docid an internal docid
+	 * @return the length of the field in the document
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static int getFieldLength(String field, int docid) throws IOException {
+		return CACHE.get().lookup(field, docid);
+	}
+
+	private int lookup(String field, int docid) throws IOException {
+		if (reader != Idx.INDEXREADER) {
+			reader = Idx.INDEXREADER;
+			size = 0;
+		}
+		int i = 0;
+		while (i < size && fields[i] != field && !fields[i].equals(field)) {
+			i++;
+		}
+		if (i == size) {
+			if (size == fields.length) {
+				fields = java.util.Arrays.copyOf(fields, 2 * size);
+				docids = java.util.Arrays.copyOf(docids, 2 * size);
+				lengths = java.util.Arrays.copyOf(lengths, 2 * size);
+			}
+			fields[size] = field;
+			docids[size] = Qry.INVALID_DOCID;
+			size++;
+		}
+		if (docids[i] != docid) {
+			lengths[i] = Idx.getFieldLength(field, docid);
+			docids[i] = docid;
+		}
+		return lengths[i];
+	}
+}
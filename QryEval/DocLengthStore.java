@@ -9,23 +9,105 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.SmallFloat;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * In quantized mode, each length is stored in one byte, as a small
+ * float with a 4-bit mantissa (exact up to 16, within about 6% above
+ * that), and the index's norms are not kept.  Every length lookup
+ * then returns the decoded length, and BM25 can replace its length
+ * normalization with a 256-entry table per field (BM25LengthNorms).
  */
 public class DocLengthStore  {
 
+  private static final int MANTISSA_BITS = 4;
+  private static final int ZERO_EXPONENT = 4;
+
+  /**
+   * DECODE[code] is the length that a one-byte code stands for.
+   */
+  private static final long[] DECODE = new long[256];
+
+  static {
+    for (int code = 0; code < 256; code++) {
+      DECODE[code] = (long) SmallFloat.byteToFloat ((byte) code, MANTISSA_BITS, ZERO_EXPONENT);
+    }
+  }
+
   private IndexReader reader;
   private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private Map<String, byte[]> codes = null;
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, false);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param quantize store one-byte quantized lengths
+   */
+  public DocLengthStore(IndexReader reader, boolean quantize) throws IOException {
     this.reader = reader;
     for (String field : MultiFields.getIndexedFields(reader)) {
       this.values.put(field, MultiDocValues.getNormValues(reader, field));      
     }
+    if (quantize) {
+      this.codes = new HashMap<String, byte[]>();
+      for (Map.Entry<String, NumericDocValues> entry : this.values.entrySet()) {
+        NumericDocValues norms = entry.getValue();
+        byte[] fieldCodes = new byte[reader.maxDoc()];
+        if (norms != null) {
+          for (int docid = 0; docid < fieldCodes.length; docid++) {
+            fieldCodes[docid] = (byte) encodeLength (norms.get (docid));
+          }
+        }
+        this.codes.put (entry.getKey(), fieldCodes);
+      }
+      this.values = null;
+    }
+  }
+
+  /**
+   * @param length a document length
+   * @return the one-byte code (0-255) whose length is closest to length
+   */
+  public static int encodeLength(long length) {
+    int code = SmallFloat.floatToByte ((float) length, MANTISSA_BITS, ZERO_EXPONENT) & 0xFF;
+    if (code < 255 && DECODE[code + 1] - length < length - DECODE[code]) {
+      code++;
+    }
+    return code;
+  }
+
+  /**
+   * @param code a one-byte length code
+   * @return the length that the code stands for
+   */
+  public static long decodeLength(int code) {
+    return DECODE[code];
+  }
+
+  /**
+   * @return true if lengths are quantized
+   */
+  public boolean isQuantized() {
+    return this.codes != null;
+  }
+
+  /**
+   * Returns the one-byte code of the length of the specified field in
+   * the specified document; only available in quantized mode.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @param docid The internal docid in the lucene index.
+   */
+  public int getDocLengthCode(String fieldname, int docid) {
+    return codes.get(fieldname)[docid] & 0xFF;
   }
 
   /**
@@ -36,6 +118,9 @@ public class DocLengthStore  {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
+    if (codes != null) {
+      return DECODE[codes.get(fieldname)[docid] & 0xFF];
+    }
     return values.get(fieldname).get(docid);
   }
 }
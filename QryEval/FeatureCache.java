@@ -0,0 +1,215 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An on-disk cache of raw (unnormalized) LeToR feature values, so that
+ * reruns that only change svmRankParamC or featureDisable don't
+ * recompute every feature.
+ * <p>
+ * One cache file exists per (index, model parameters) combination;
+ * the index is identified by {@link Idx#getIndexId} (its absolute path
+ * and segments), because the cache directory may be shared by indexes
+ * whose docids mean different documents.  The file's name is derived
+ * from a hash of the key, and the file records the key.  Inside a file,
+ * values are keyed by (query, internal docid, feature id).  The query
+ * key is the qid plus the stemmed query, so editing a query invalidates
+ * its cached values.  Each cell is present or missing independently,
+ * which lets callers compute only the missing cells.
+ * <p>
+ * The cache is loaded by {@link #initialize} and written back by
+ * {@link #save}.  All methods are synchronized.
+ */
+public class FeatureCache {
+
+	private static final int MAGIC = 0x46544332;	// "FTC2"
+
+	private static File cacheFile = null;
+	private static String cacheKey = null;
+	private static Map<String, Map<Integer, Entry>> entries = new HashMap<String, Map<Integer, Entry>>();
+	private static boolean dirty = false;
+
+	/**
+	 * The cached feature values of one query-document pair.  Bit
+	 * (fi - 1) of mask is set when feature fi is cached.
+	 */
+	public static class Entry {
+		long mask = 0;
+		double[] values = new double[FeatureValue.numOfFeatureVectors];
+
+		public boolean has(int fi) {
+			return (mask & (1L << (fi - 1))) != 0;
+		}
+
+		public double get(int fi) {
+			return values[fi - 1];
+		}
+	}
+
+	/**
+	 * Open (or create) the cache file for the current index and model
+	 * parameters.
+	 * @param cacheDir directory that holds cache files
+	 * @param modelParameters a description of every parameter that
+	 *        affects feature values
+	 * @throws IOException Error reading an existing cache file.
+	 */
+	public static synchronized void initialize(String cacheDir, String modelParameters) throws IOException {
+		File dir = new File(cacheDir);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("Unable to create feature cache directory " + cacheDir);
+		}
+		String key = Idx.getIndexId() + "|" + modelParameters;
+		cacheFile = new File(dir, "features-" + Long.toHexString(hash(key)) + ".cache");
+		cacheKey = key;
+		entries = new HashMap<String, Map<Integer, Entry>>();
+		dirty = false;
+		if (cacheFile.canRead()) {
+			load();
+		}
+	}
+
+	public static synchronized boolean isEnabled() {
+		return cacheFile != null;
+	}
+
+	/**
+	 * @param qid the query id
+	 * @param stemQuery the stemmed query terms
+	 * @return the key used for this query's entries
+	 */
+	public static String queryKey(String qid, String[] stemQuery) {
+		StringBuilder key = new StringBuilder(qid).append(':');
+		for (String stem : stemQuery) {
+			key.append(' ').append(stem);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the cached features of a query-document pair, or null
+	 */
+	public static synchronized Entry get(String queryKey, int docid) {
+		Map<Integer, Entry> docs = entries.get(queryKey);
+		return (docs == null) ? null : docs.get(docid);
+	}
+
+	/**
+	 * Record a raw feature value.
+	 * @param queryKey from {@link #queryKey}
+	 * @param docid internal docid
+	 * @param fi feature id, 1-based
+	 * @param value the unnormalized feature value
+	 */
+	public static synchronized void put(String queryKey, int docid, int fi, double value) {
+		Map<Integer, Entry> docs = entries.get(queryKey);
+		if (docs == null) {
+			docs = new HashMap<Integer, Entry>();
+			entries.put(queryKey, docs);
+		}
+		Entry entry = docs.get(docid);
+		if (entry == null) {
+			entry = new Entry();
+			docs.put(docid, entry);
+		}
+		entry.values[fi - 1] = value;
+		entry.mask |= 1L << (fi - 1);
+		dirty = true;
+	}
+
+	/**
+	 * Write the cache back to disk if anything was added.  The file is
+	 * replaced atomically, so an interrupted run leaves the old cache.
+	 * @throws IOException Error writing the cache file.
+	 */
+	public static synchronized void save() throws IOException {
+		if (cacheFile == null || !dirty) {
+			return;
+		}
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeUTF(cacheKey);
+			for (Map.Entry<String, Map<Integer, Entry>> query : entries.entrySet()) {
+				out.writeBoolean(true);
+				out.writeUTF(query.getKey());
+				out.writeInt(query.getValue().size());
+				for (Map.Entry<Integer, Entry> doc : query.getValue().entrySet()) {
+					Entry entry = doc.getValue();
+					out.writeInt(doc.getKey());
+					out.writeLong(entry.mask);
+					for (int fi = 1; fi <= FeatureValue.numOfFeatureVectors; fi++) {
+						if (entry.has(fi)) {
+							out.writeDouble(entry.get(fi));
+						}
+					}
+				}
+			}
+			out.writeBoolean(false);
+		} finally {
+			out.close();
+		}
+		if (!(tmp.renameTo(cacheFile) || (cacheFile.delete() && tmp.renameTo(cacheFile)))) {
+			throw new IOException("Unable to replace " + cacheFile);
+		}
+		dirty = false;
+	}
+
+	private static void load() throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(cacheFile), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				System.err.println("Warning: ignoring invalid feature cache " + cacheFile);
+				return;
+			}
+			if (!in.readUTF().equals(cacheKey)) {
+				System.err.println("Warning: ignoring feature cache " + cacheFile + " of another index or model");
+				return;
+			}
+			while (in.readBoolean()) {
+				String queryKey = in.readUTF();
+				int numDocs = in.readInt();
+				Map<Integer, Entry> docs = new HashMap<Integer, Entry>(numDocs * 2);
+				for (int i = 0; i < numDocs; i++) {
+					int docid = in.readInt();
+					Entry entry = new Entry();
+					entry.mask = in.readLong();
+					for (int fi = 1; fi <= FeatureValue.numOfFeatureVectors; fi++) {
+						if (entry.has(fi)) {
+							entry.values[fi - 1] = in.readDouble();
+						}
+					}
+					docs.put(docid, entry);
+				}
+				entries.put(queryKey, docs);
+			}
+		} catch (EOFException e) {
+			System.err.println("Warning: feature cache " + cacheFile + " is truncated; using the part that was read.");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a hash.
+	 */
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+}
@@ -1,10 +1,7 @@
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
 
 import org.apache.lucene.index.Term;
 
@@ -16,9 +13,10 @@ import org.apache.lucene.index.Term;
 public class FeatureValue {
 	public static final int numOfFeatureVectors = 18;
 	public static ArrayList<Integer> featureDisable;
+	public static boolean usePostingsForTextFeatures = true;
 	public int relValue;
 	public String qid;
-	public static HashMap<Integer, Double> pageRank;
+	public static float[] pageRank;
 	public double[] featureVector;
 	public String externalDocid;
 	public FeatureValue(int relValue, String qid, double[] featureVector, String externalDocid) {
@@ -37,111 +35,201 @@ public class FeatureValue {
 	 * @throws IOException
 	 */
 	public static double[] creatNewFeatureValue(int docid, String[] stemQuery) throws IOException {
+		return creatNewFeatureValue(null, docid, stemQuery);
+	}
 
-		double[] featureVector = new double[numOfFeatureVectors];
-		String rawUrl = Idx.getAttribute ("rawUrl", docid);
-		//System.out.println(rawUrl);
-		int fi = 1; // Spam score for document
-		if (!featureDisable.contains(fi)) {
-			featureVector[0] = Integer.parseInt(Idx.getAttribute("score", docid));
-		}
-		
-		fi = 2; // count Url depth for d(number of '/' in the rawUrl field). 
-		if (!featureDisable.contains(fi)) {
-			for (int i = 0; i < rawUrl.length(); i++) {
-				if (rawUrl.charAt(i) == '/') {
-					featureVector[1]++;
+	/**
+	 * Create non-normalized feature value for one query - document pair.
+	 * When the {@link FeatureCache} is enabled, cached features are reused
+	 * and only the missing ones are computed (and then cached).
+	 * @param qid query id, or null to bypass the cache
+	 * @param docid
+	 * @param stemQuery
+	 * @return
+	 * @throws IOException
+	 */
+	public static double[] creatNewFeatureValue(String qid, int docid, String[] stemQuery) throws IOException {
+		return creatNewFeatureValue(qid, docid, stemQuery, null);
+	}
+
+	/**
+	 * Create non-normalized feature values for several documents of one
+	 * query.  Unless usePostingsForTextFeatures is false, the text
+	 * features (5-16) that aren't cached are computed for all of the
+	 * documents in one pass over the query terms' postings by
+	 * {@link PostingsFeatureScorer}.
+	 * @param qid query id, or null to bypass the cache
+	 * @param docids internal docids, in any order
+	 * @param stemQuery
+	 * @return featureVectors[i] belongs to docids[i]
+	 * @throws IOException
+	 */
+	public static double[][] creatNewFeatureValues(String qid, int[] docids, String[] stemQuery) throws IOException {
+
+		double[][] textFeatures = new double[docids.length][];
+		if (usePostingsForTextFeatures) {
+
+			//  Find the documents that need text features, and the
+			//  features that they need.
+
+			boolean[] wanted = new boolean[numOfFeatureVectors];
+			int[] missing = new int[docids.length];
+			int numMissing = 0;
+			String queryKey = (qid != null && FeatureCache.isEnabled()) ? FeatureCache.queryKey(qid, stemQuery) : null;
+			for (int i = 0; i < docids.length; i++) {
+				FeatureCache.Entry cached = (queryKey == null) ? null : FeatureCache.get(queryKey, docids[i]);
+				boolean docMissing = false;
+				for (int fi = 1; fi <= numOfFeatureVectors; fi++) {
+					if (PostingsFeatureScorer.isTextFeature(fi) && !featureDisable.contains(fi)
+							&& (cached == null || !cached.has(fi))) {
+						wanted[fi - 1] = true;
+						docMissing = true;
+					}
+				}
+				if (docMissing) {
+					missing[numMissing++] = docids[i];
 				}
 			}
-		}
-		
-		fi = 3; // FromWikipedia score
-		if (!featureDisable.contains(fi)) {
-			featureVector[2] = rawUrl.contains("wikipedia.org") ? 1 : 0;
-		}
-		
-		fi = 4; // PageRank score
-		if (!featureDisable.contains(fi)) {
-			if (pageRank.containsKey(docid)) {
-				featureVector[3] = pageRank.get(docid);
+
+			if (numMissing > 0) {
+				int[] sorted = Arrays.copyOf(missing, numMissing);
+				Arrays.sort(sorted);
+				double[][] scores = PostingsFeatureScorer.score(sorted, stemQuery, wanted);
+				for (int i = 0; i < docids.length; i++) {
+					int j = Arrays.binarySearch(sorted, docids[i]);
+					if (j >= 0) {
+						textFeatures[i] = scores[j];
+					}
+				}
 			}
 		}
-		
-		fi = 5;
-		if (!featureDisable.contains(fi)) {
-			featureVector[4] = BM25Score(docid, stemQuery, "body");
-		}
-		
-		fi = 6;
-		if (!featureDisable.contains(fi)) {
-			featureVector[5] = IndriScore(docid, stemQuery, "body");
-		}
-		
-		fi = 7;
-		if (!featureDisable.contains(fi)) {
-			featureVector[6] = termOverlapScore(docid, stemQuery, "body");
-		}
-		
-		fi = 8;
-		if (!featureDisable.contains(fi)) {
-			featureVector[7] = BM25Score(docid, stemQuery, "title");
-		}
-		
-		fi = 9;
-		if (!featureDisable.contains(fi)) {
-			featureVector[8] = IndriScore(docid, stemQuery, "title");
-		}
-		
-		fi = 10;
-		if (!featureDisable.contains(fi)) {
-			featureVector[9] = termOverlapScore(docid, stemQuery, "title");
-		}
-		
-		fi = 11;
-		if (!featureDisable.contains(fi)) {
-			featureVector[10] = BM25Score(docid, stemQuery, "url");
-		}
-		
-		fi = 12;
-		if (!featureDisable.contains(fi)) {
-			featureVector[11] = IndriScore(docid, stemQuery, "url");
-		}
-		
-		fi = 13;
-		if (!featureDisable.contains(fi)) {
-			featureVector[12] = termOverlapScore(docid, stemQuery, "url");
-		}
-		
-		fi = 14;
-		if (!featureDisable.contains(fi)) {
-			featureVector[13] = BM25Score(docid, stemQuery, "inlink");
-		}
-		
-		fi = 15;
-		if (!featureDisable.contains(fi)) {
-			featureVector[14] = IndriScore(docid, stemQuery, "inlink");
+
+		double[][] featureVectors = new double[docids.length][];
+		for (int i = 0; i < docids.length; i++) {
+			featureVectors[i] = creatNewFeatureValue(qid, docids[i], stemQuery, textFeatures[i]);
 		}
-		
-		fi = 16;
-		if (!featureDisable.contains(fi)) {
-			featureVector[15] = termOverlapScore(docid, stemQuery, "inlink");
+		return featureVectors;
+	}
+
+	/**
+	 * Create non-normalized feature value for one query - document pair.
+	 * @param qid query id, or null to bypass the cache
+	 * @param docid
+	 * @param stemQuery
+	 * @param textFeatures precomputed text features (5-16) indexed by
+	 *        feature id - 1, or null to compute them from term vectors
+	 * @return
+	 * @throws IOException
+	 */
+	private static double[] creatNewFeatureValue(String qid, int docid, String[] stemQuery, double[] textFeatures)
+			throws IOException {
+
+		double[] featureVector = new double[numOfFeatureVectors];
+		String queryKey = null;
+		FeatureCache.Entry cached = null;
+		if (qid != null && FeatureCache.isEnabled()) {
+			queryKey = FeatureCache.queryKey(qid, stemQuery);
+			cached = FeatureCache.get(queryKey, docid);
 		}
-		
-		fi = 17;
-		if (!featureDisable.contains(fi)) {
-			featureVector[16] = rawUrl.contains(".edu") ? 1 : 0;
+		String rawUrl = null;
+		for (int fi = 1; fi <= numOfFeatureVectors; fi++) {
+			if (featureDisable.contains(fi)) {
+				continue;
+			}
+			if (cached != null && cached.has(fi)) {
+				featureVector[fi - 1] = cached.get(fi);
+				continue;
+			}
+			if (textFeatures != null && PostingsFeatureScorer.isTextFeature(fi)) {
+				featureVector[fi - 1] = textFeatures[fi - 1];
+			} else {
+				if (rawUrl == null) {
+					rawUrl = Idx.getAttribute ("rawUrl", docid);
+				}
+				featureVector[fi - 1] = computeFeature(fi, docid, stemQuery, rawUrl);
+			}
+			if (queryKey != null) {
+				FeatureCache.put(queryKey, docid, fi, featureVector[fi - 1]);
+			}
 		}
-		
-		fi = 18;
-		if (!featureDisable.contains(fi)) {
+		return featureVector;
+	}
+
+	/**
+	 * Compute one non-normalized feature.
+	 * @param fi feature id, 1-based
+	 * @param docid
+	 * @param stemQuery
+	 * @param rawUrl the document's rawUrl attribute
+	 * @return the feature value
+	 * @throws IOException
+	 */
+	private static double computeFeature(int fi, int docid, String[] stemQuery, String rawUrl) throws IOException {
+		AttributeStore attributes = Idx.getAttributeStore();
+		switch (fi) {
+		case 1: // Spam score for document
+			if (attributes != null) {
+				return attributes.getSpamScore(docid);
+			}
+			return Integer.parseInt(Idx.getAttribute("score", docid));
+		case 2: // count Url depth for d(number of '/' in the rawUrl field).
+			if (attributes != null) {
+				return attributes.getUrlDepth(docid);
+			}
+			int depth = 0;
+			for (int i = 0; i < rawUrl.length(); i++) {
+				if (rawUrl.charAt(i) == '/') {
+					depth++;
+				}
+			}
+			return depth;
+		case 3: // FromWikipedia score
+			if (attributes != null) {
+				return attributes.isWikipedia(docid) ? 1 : 0;
+			}
+			return rawUrl.contains("wikipedia.org") ? 1 : 0;
+		case 4: // PageRank score
+			return pageRank[docid];
+		case 5:
+			return BM25Score(docid, stemQuery, "body");
+		case 6:
+			return IndriScore(docid, stemQuery, "body");
+		case 7:
+			return termOverlapScore(docid, stemQuery, "body");
+		case 8:
+			return BM25Score(docid, stemQuery, "title");
+		case 9:
+			return IndriScore(docid, stemQuery, "title");
+		case 10:
+			return termOverlapScore(docid, stemQuery, "title");
+		case 11:
+			return BM25Score(docid, stemQuery, "url");
+		case 12:
+			return IndriScore(docid, stemQuery, "url");
+		case 13:
+			return termOverlapScore(docid, stemQuery, "url");
+		case 14:
+			return BM25Score(docid, stemQuery, "inlink");
+		case 15:
+			return IndriScore(docid, stemQuery, "inlink");
+		case 16:
+			return termOverlapScore(docid, stemQuery, "inlink");
+		case 17: // from an .edu site
+			if (attributes != null) {
+				return attributes.isEdu(docid) ? 1 : 0;
+			}
+			return rawUrl.contains(".edu") ? 1 : 0;
+		case 18: // number of query terms in the rawUrl
+			int matches = 0;
 			for (String stem : stemQuery) {
 				if (rawUrl.contains(stem)) {
-					featureVector[17]++;
+					matches++;
 				}
 			}
+			return matches;
+		default:
+			throw new IllegalArgumentException("Unknown feature " + fi);
 		}
-		
-		return featureVector;
 	}
 	
 	/**
@@ -194,9 +282,9 @@ public class FeatureValue {
 				hasMatch = true;
 				tf = termVector.stemFreq(stemIndex);
 			}
-			double lengthC = Idx.INDEXREADER.getSumTotalTermFreq(field);
+			double lengthC = Idx.getSumOfFieldLengths(field);
 			double lengthD = Idx.getFieldLength(field, docid);
-			long ctf = Idx.INDEXREADER.totalTermFreq(new Term(field, stemQuery[i]));
+			long ctf = Idx.getTotalTermFreq(new Term(field, stemQuery[i]));
 			double pMLE = ctf / lengthC;
 			double docScore = ( (1 - lambda) * ( tf + mu * pMLE) / (lengthD + mu) ) + lambda * pMLE;
 			score *= Math.pow(docScore, 1.0 / (double)stemQuery.length);
@@ -227,6 +315,9 @@ public class FeatureValue {
 		double N = Idx.getNumDocs();
 		int docLen = Idx.getFieldLength(field, docid);
 		double avgdocLen = Idx.getSumOfFieldLengths(field) / Idx.getDocCount(field);
+		double lengthNorm = Idx.hasQuantizedLengths()
+				? BM25LengthNorms.get(field, avgdocLen)[Idx.getFieldLengthCode(field, docid)]
+				: k1 * ((1 - b) + b * docLen / avgdocLen);
 		double score = 0;
 		for (int i = 0; i < stemQuery.length; i++) {
 			int stemIndex = termVector.indexOfStem(stemQuery[i]);
@@ -237,7 +328,7 @@ public class FeatureValue {
 			int df = termVector.stemDf(stemIndex);
 			int qtf = 1;
 			double idf = Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
-			double tfWeight = tf / (tf + k1 * ((1 - b) + b * docLen / avgdocLen));
+			double tfWeight = tf / (tf + lengthNorm);
 			double userWeight = (k3 + 1) * qtf / (k3 + qtf);
 			score += idf * tfWeight * userWeight;
 		}
@@ -315,29 +406,13 @@ public class FeatureValue {
 		return min;
 	}
 	/**
-	 * Read pageRankFile and store it to pageRank HashMap
+	 * Read pageRankFile and store it to the docid-indexed pageRank array
 	 * @param pageRankFileName
-	 * @throws FileNotFoundException 
+	 * @throws IOException 
 	 */
-	public static void initializePageRank(String pageRankFileName) throws FileNotFoundException {
+	public static void initializePageRank(String pageRankFileName) throws IOException {
 		System.out.println("initial begin...");
-		pageRank = new HashMap<Integer, Double>();
-		File file = new File(pageRankFileName);
-		Scanner scanner = new Scanner(file);
-		while (scanner.hasNextLine()) {
-			String line = scanner.nextLine();
-			String externalDocid = line.split("\t")[0];
-			int docid;
-			try {
-				docid = Idx.getInternalDocid(externalDocid);
-				double score = Double.parseDouble(line.split("\t")[1]);
-				pageRank.put(docid, score);
-			} catch (Exception e) {
-				// simply ignore it when externalDocid is not in the collection
-			}
-			
-		}
-		scanner.close();
+		pageRank = PageRankLoader.load(pageRankFileName);
 		System.out.println("initial end.");
 	}
 }
@@ -0,0 +1,348 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary file of LeToR feature vectors.
+ * <p>
+ * The layout is a fixed header, fixed-width rows, and the rows'
+ * strings:
+ * <pre>
+ *   int    MAGIC, VERSION, numRows, numFeatures, valueBytes (4 or 8)
+ *   long   offset of the string section
+ *   row[numRows]:  int relValue, long stringAt, float|double feature[numFeatures]
+ *   strings:       int length, UTF-8 qid, int length, UTF-8 external docid
+ * </pre>
+ * stringAt is the offset of the row's strings in the string section.
+ * Rows are written as they arrive, so a file of any size is written
+ * in constant memory.  Files are memory-mapped for reading
+ * ({@link MappedFile}), so opening one is cheap.  svm_rank only reads
+ * SVM-light text, so this class also converts to and from that format.
+ */
+public class FeatureVectorFile {
+
+	private static final int MAGIC = 0x46564231;	// "FVB1"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 5 * 4 + 8;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final MappedFile buffer;
+	private final int numRows;
+	private final int numFeatures;
+	private final int valueBytes;
+	private final int rowBytes;
+	private final long stringsOffset;
+
+	/**
+	 * Memory-map a binary feature vector file.
+	 * @param file a file produced by {@link Writer} or {@link #fromSvmLight}
+	 * @throws IOException Error reading the file, or it is not a feature vector file.
+	 */
+	public FeatureVectorFile(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < HEADER_BYTES) {
+				throw new IOException(file + " is not a binary feature vector file.");
+			}
+			this.buffer = new MappedFile(raf.getChannel());
+		} finally {
+			raf.close();
+		}
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException(file + " is not a binary feature vector file.");
+		}
+		this.numRows = buffer.getInt(8);
+		this.numFeatures = buffer.getInt(12);
+		this.valueBytes = buffer.getInt(16);
+		this.rowBytes = 4 + 8 + numFeatures * valueBytes;
+		this.stringsOffset = buffer.getLong(20);
+	}
+
+	public int size() {
+		return numRows;
+	}
+
+	public int numFeatures() {
+		return numFeatures;
+	}
+
+	private long rowOffset(int row) {
+		return HEADER_BYTES + (long) row * rowBytes;
+	}
+
+	public int getRelValue(int row) {
+		return buffer.getInt(rowOffset(row));
+	}
+
+	/**
+	 * @param row the row (document) index
+	 * @param feature the 0-based feature index
+	 * @return the feature value, widened to double
+	 */
+	public double getFeature(int row, int feature) {
+		long position = rowOffset(row) + 4 + 8 + (long) feature * valueBytes;
+		return (valueBytes == 4) ? buffer.getFloat(position) : buffer.getDouble(position);
+	}
+
+	public double[] getFeatureVector(int row) {
+		double[] featureVector = new double[numFeatures];
+		for (int j = 0; j < numFeatures; j++) {
+			featureVector[j] = getFeature(row, j);
+		}
+		return featureVector;
+	}
+
+	public String getQid(int row) {
+		return getString(stringsOffset + buffer.getLong(rowOffset(row) + 4));
+	}
+
+	public String getExternalDocid(int row) {
+		long qidAt = stringsOffset + buffer.getLong(rowOffset(row) + 4);
+		return getString(qidAt + 4 + buffer.getInt(qidAt));
+	}
+
+	public FeatureValue getFeatureValue(int row) {
+		return new FeatureValue(getRelValue(row), getQid(row), getFeatureVector(row), getExternalDocid(row));
+	}
+
+	private String getString(long offset) {
+		byte[] bytes = new byte[buffer.getInt(offset)];
+		buffer.get(offset + 4, bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Writes FeatureValues to a binary file as they are added.  The
+	 * rows go straight to the file and their strings to a temporary
+	 * file, which is appended when the writer is closed; then the row
+	 * count is written into the header.
+	 */
+	public static class Writer {
+		private final File file;
+		private final File stringsFile;
+		private final boolean useFloat;
+		private final DataOutputStream rows;
+		private final DataOutputStream strings;
+		private int numRows = 0;
+		private int numFeatures = -1;
+		private long stringsSize = 0;
+
+		/**
+		 * @param file the output file
+		 * @param useFloat store feature values as float32 instead of float64
+		 * @throws IOException Error creating the file.
+		 */
+		public Writer(File file, boolean useFloat) throws IOException {
+			this.file = file;
+			this.stringsFile = new File(file.getPath() + ".strings.tmp");
+			this.useFloat = useFloat;
+			this.rows = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			this.strings = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stringsFile), 1 << 16));
+			rows.write(new byte[HEADER_BYTES]);	// written by close
+		}
+
+		/**
+		 * @param fv the next row
+		 * @throws IllegalArgumentException fv has a different number of
+		 *         features than the rows before it
+		 * @throws IOException Error writing the file.
+		 */
+		public void add(FeatureValue fv) throws IOException {
+			if (numFeatures < 0) {
+				numFeatures = fv.featureVector.length;
+			} else if (fv.featureVector.length != numFeatures) {
+				throw new IllegalArgumentException("Expecting " + numFeatures + " features, not "
+						+ fv.featureVector.length);
+			}
+			rows.writeInt(fv.relValue);
+			rows.writeLong(stringsSize);
+			for (double value : fv.featureVector) {
+				if (useFloat) {
+					rows.writeFloat((float) value);
+				} else {
+					rows.writeDouble(value);
+				}
+			}
+			stringsSize += writeString(fv.qid) + writeString(fv.externalDocid);
+			numRows++;
+		}
+
+		public void addAll(List<FeatureValue> fvList) throws IOException {
+			for (FeatureValue fv : fvList) {
+				add(fv);
+			}
+		}
+
+		private int writeString(String s) throws IOException {
+			byte[] bytes = s.getBytes(UTF8);
+			strings.writeInt(bytes.length);
+			strings.write(bytes);
+			return 4 + bytes.length;
+		}
+
+		public void close() throws IOException {
+			int valueBytes = useFloat ? 4 : 8;
+			if (numFeatures < 0) {
+				numFeatures = FeatureValue.numOfFeatureVectors;
+			}
+			long stringsOffset = HEADER_BYTES + (long) numRows * (4 + 8 + numFeatures * valueBytes);
+			try {
+				strings.close();
+				rows.close();
+				RandomAccessFile out = new RandomAccessFile(file, "rw");
+				try {
+					out.seek(stringsOffset);
+					Files.copy(stringsFile.toPath(), Channels.newOutputStream(out.getChannel()));
+					out.seek(0);
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeInt(numRows);
+					out.writeInt(numFeatures);
+					out.writeInt(valueBytes);
+					out.writeLong(stringsOffset);
+				} finally {
+					out.close();
+				}
+			} finally {
+				stringsFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Append one feature vector to an SVM-light file in the format
+	 * svm_rank expects: "rel qid:Q 1:v1 2:v2 ... # externalDocid".
+	 * @param writer the output
+	 * @param fv the feature vector
+	 * @param line a reusable buffer
+	 * @throws IOException Error writing the file.
+	 */
+	static void writeSvmLightLine(java.io.Writer writer, FeatureValue fv, StringBuilder line) throws IOException {
+		line.setLength(0);
+		line.append(fv.relValue).append(" qid:").append(fv.qid).append(' ');
+		for (int i = 1; i <= fv.featureVector.length; i++) {
+			line.append(i).append(':').append(fv.featureVector[i - 1]).append(' ');
+		}
+		line.append("# ").append(fv.externalDocid).append('\n');
+		writer.write(line.toString());
+	}
+
+	/**
+	 * Parse one line of an SVM-light file.  Features that are absent
+	 * from the line are 0.
+	 * @param line a line written by {@link #writeSvmLightLine}
+	 * @param numFeatures the length of the feature vector to create
+	 * @return the feature vector, or null for blank and comment lines
+	 */
+	static FeatureValue parseSvmLightLine(String line, int numFeatures) {
+		int hash = line.indexOf('#');
+		String externalDocid = (hash < 0) ? "" : line.substring(hash + 1).trim();
+		String body = (hash < 0) ? line.trim() : line.substring(0, hash).trim();
+		if (body.length() == 0) {
+			return null;
+		}
+		String[] tokens = body.split("\\s+");
+		int relValue = (int) Double.parseDouble(tokens[0]);
+		String qid = null;
+		double[] featureVector = new double[numFeatures];
+		for (int t = 1; t < tokens.length; t++) {
+			int colon = tokens[t].indexOf(':');
+			String key = tokens[t].substring(0, colon);
+			String value = tokens[t].substring(colon + 1);
+			if (key.equals("qid")) {
+				qid = value;
+			} else {
+				featureVector[Integer.parseInt(key) - 1] = Double.parseDouble(value);
+			}
+		}
+		return new FeatureValue(relValue, qid, featureVector, externalDocid);
+	}
+
+	/**
+	 * Convert a binary feature vector file to SVM-light text.
+	 * @param binaryFile the input
+	 * @param textFile the output
+	 * @throws IOException Error reading or writing.
+	 */
+	public static void toSvmLight(File binaryFile, File textFile) throws IOException {
+		FeatureVectorFile in = new FeatureVectorFile(binaryFile);
+		BufferedWriter out = new BufferedWriter(new FileWriter(textFile), 1 << 16);
+		StringBuilder line = new StringBuilder();
+		try {
+			for (int i = 0; i < in.size(); i++) {
+				writeSvmLightLine(out, in.getFeatureValue(i), line);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Convert an SVM-light text file to the binary format.
+	 * @param textFile the input
+	 * @param binaryFile the output
+	 * @param useFloat store feature values as float32 instead of float64
+	 * @throws IOException Error reading or writing.
+	 */
+	public static void fromSvmLight(File textFile, File binaryFile, boolean useFloat) throws IOException {
+		Writer out = new Writer(binaryFile, useFloat);
+		for (FeatureValue fv : readSvmLight(textFile, FeatureValue.numOfFeatureVectors)) {
+			out.add(fv);
+		}
+		out.close();
+	}
+
+	/**
+	 * Read every feature vector in an SVM-light text file.
+	 * @param textFile the input
+	 * @param numFeatures the length of the feature vectors to create
+	 * @return the feature vectors, in file order
+	 * @throws IOException Error reading the file.
+	 */
+	public static List<FeatureValue> readSvmLight(File textFile, int numFeatures) throws IOException {
+		List<FeatureValue> fvList = new ArrayList<FeatureValue>();
+		BufferedReader in = new BufferedReader(new FileReader(textFile), 1 << 16);
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				FeatureValue fv = parseSvmLightLine(line, numFeatures);
+				if (fv != null) {
+					fvList.add(fv);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return fvList;
+	}
+
+	/**
+	 * Command line converter.
+	 * @param args "-toText in.fvb out.txt" or "-toBinary in.txt out.fvb [-float]"
+	 * @throws IOException Error reading or writing.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 3 && args[0].equals("-toText")) {
+			toSvmLight(new File(args[1]), new File(args[2]));
+		} else if (args.length >= 3 && args[0].equals("-toBinary")) {
+			boolean useFloat = (args.length > 3 && args[3].equals("-float"));
+			fromSvmLight(new File(args[1]), new File(args[2]), useFloat);
+		} else {
+			System.err.println("Usage:  java FeatureVectorFile -toText IN.fvb OUT.txt\n"
+					+ "        java FeatureVectorFile -toBinary IN.txt OUT.fvb [-float]");
+			System.exit(1);
+		}
+	}
+}
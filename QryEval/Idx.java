@@ -2,11 +2,14 @@
  *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.*;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 /**
  *  The interface to the Lucene index.
@@ -17,6 +20,13 @@ public class Idx {
 
   public static IndexReader INDEXREADER=null;
   private static DocLengthStore DOCLENGTHSTORE;
+  private static String INDEXPATH=null;
+  private static String INDEXID=null;
+  private static long FINGERPRINT=0;
+  private static AttributeStore ATTRIBUTES=null;
+  private static boolean ATTRIBUTESOPENED=false;
+  private static CollectionStats STATS=null;
+  private static boolean STATSOPENED=false;
 
   //  --------------- Methods ---------------------------------------
 
@@ -28,20 +38,74 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getAttribute (String attributeName, int docid) throws IOException {
+    AttributeStore attributes = Idx.getAttributeStore ();
+    if ((attributes != null) && attributes.hasAttribute (attributeName)) {
+      return attributes.getAttribute (attributeName, docid);
+    }
     Document d = Idx.INDEXREADER.document (docid);
     return d.get (attributeName);
   }
 
+  /**
+   *  Get the collection statistics of the unpruned index, if the open
+   *  index was written by IndexPruner.  They are read the first time
+   *  that they are needed, and only if the index has them.
+   *  @return the statistics, or null
+   *  @throws IOException Error reading the statistics.
+   */
+  public static synchronized CollectionStats getCollectionStats () throws IOException {
+    if (! Idx.STATSOPENED) {
+      Idx.STATS = CollectionStats.open ();
+      Idx.STATSOPENED = true;
+    }
+    return Idx.STATS;
+  }
+
+  /**
+   *  Get the columnar attribute store, if the index has a valid one.
+   *  The store is opened the first time that it is needed.
+   *  @return the attribute store, or null
+   *  @throws IOException Error reading the attribute store.
+   */
+  public static synchronized AttributeStore getAttributeStore () throws IOException {
+    if (! Idx.ATTRIBUTESOPENED) {
+      Idx.ATTRIBUTES = AttributeStore.open ();
+      Idx.ATTRIBUTESOPENED = true;
+    }
+    return Idx.ATTRIBUTES;
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
+   *  For a pruned index, this is the count in the unpruned index.
    *  @param fieldName the field name
    *  @return the number of documents that contain the field
    *  @throws IOException Error accessing the Lucene index.
    */
   public static int getDocCount (String fieldName) throws IOException {
+    CollectionStats collectionStats = Idx.getCollectionStats ();
+    long[] stats = (collectionStats != null) ? collectionStats.getFieldStats (fieldName) : null;
+    if (stats != null) {
+      return (int) stats[0];
+    }
     return Idx.INDEXREADER.getDocCount (fieldName);
   }
 
+  /**
+   *  Get the document frequency of a term.  For a pruned index, this
+   *  is the term's df in the unpruned index.
+   *  @param term the term
+   *  @return the number of documents that contain the term
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocFreq (Term term) throws IOException {
+    long[] stats = Idx.getOriginalTermStats (term.field (), term.text ());
+    if (stats != null) {
+      return (int) stats[0];
+    }
+    return Idx.INDEXREADER.docFreq (term);
+  }
+
   /**
    * Get the external document id for a document specified by an internal
    * document id.
@@ -49,6 +113,10 @@ public class Idx {
    * @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
+    AttributeStore attributes = Idx.getAttributeStore ();
+    if (attributes != null) {
+      return attributes.getExternalId (iid);
+    }
     Document d = Idx.INDEXREADER.document(iid);
     String eid = d.get("externalId");
     return eid;
@@ -65,6 +133,117 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the one-byte code of the length of the specified field in the
+   *  specified document.  Only available if hasQuantizedLengths is true.
+   *  @param fieldName Name of field to access lengths.
+   *  @param docid The internal docid in the lucene index.
+   *  @return the length code, 0-255; see DocLengthStore.decodeLength.
+   */
+  public static int getFieldLengthCode (String fieldName, int docid) {
+    return Idx.DOCLENGTHSTORE.getDocLengthCode (fieldName, docid);
+  }
+
+  /**
+   *  Get a value that identifies the open index.  It is a hash of
+   *  getIndexId, so it changes whenever the index is rebuilt, modified
+   *  or moved, and it can be used to validate files that cache
+   *  docid-indexed data.
+   *  @return the index fingerprint
+   */
+  public static long getIndexFingerprint () {
+    return Idx.FINGERPRINT;
+  }
+
+  /**
+   *  Get a string that identifies the open index: its absolute path,
+   *  its commit (segments file, generation, version and time) and its
+   *  segments (name, document count and deletions generation).  Two
+   *  indexes written by the same tool (e.g., IndexReorderer) may have
+   *  the same segments, but not the same path, so in-memory caches of
+   *  docid-indexed data are keyed by this string.
+   *  @return the index id
+   */
+  public static String getIndexId () {
+    return Idx.INDEXID;
+  }
+
+  /**
+   *  Read the id of the open index.
+   *  @return the index id
+   *  @throws IOException Error reading the index's segments.
+   */
+  private static String readIndexId () throws IOException {
+    StringBuilder id = new StringBuilder (Idx.INDEXPATH);
+    if (Idx.INDEXREADER instanceof DirectoryReader) {
+      DirectoryReader reader = (DirectoryReader) Idx.INDEXREADER;
+      IndexCommit commit = reader.getIndexCommit ();
+      String segmentsFileName = commit.getSegmentsFileName ();
+      id.append ('|').append (segmentsFileName)
+        .append ('|').append (commit.getGeneration ())
+        .append ('|').append (reader.getVersion ())
+        .append ('|').append (new File (Idx.INDEXPATH, segmentsFileName).lastModified ());
+      SegmentInfos infos = new SegmentInfos ();
+      infos.read (reader.directory (), segmentsFileName);
+      for (SegmentInfoPerCommit info : infos) {
+        id.append ('|').append (info.info.name)
+          .append (':').append (info.info.getDocCount ())
+          .append (':').append (info.getDelGen ());
+      }
+    }
+    id.append ('|').append (Idx.INDEXREADER.maxDoc ());
+    return id.toString ();
+  }
+
+  /**
+   *  A 64-bit hash of a string: the first 8 bytes of its MD5 digest.
+   *  @param s The string.
+   *  @return The hash.
+   */
+  private static long hash64 (String s) {
+    try {
+      byte[] digest = java.security.MessageDigest.getInstance ("MD5").digest (s.getBytes ("UTF-8"));
+      long h = 0;
+      for (int i = 0; i < 8; i++) {
+        h = (h << 8) | (digest[i] & 0xff);
+      }
+      return h;
+    } catch (java.security.NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      throw new IllegalStateException (e);
+    }
+  }
+
+  /**
+   *  Get a file for data that is derived from the index and cached
+   *  between runs (e.g., filter bitsets).  Sidecar files are kept in
+   *  the directory indexPath.sidecar, next to the index, so that
+   *  Lucene never sees them.  This is only a lookup; the file and its
+   *  directory may not exist, and nothing is created, so it is safe
+   *  for read-only indexes.  Callers should validate the contents
+   *  with getIndexFingerprint.
+   *  @param name The file name.
+   *  @return The sidecar file.
+   */
+  public static File getSidecarFile (String name) {
+    return new File (new File (Idx.INDEXPATH + ".sidecar"), name);
+  }
+
+  /**
+   *  Get a sidecar file (see getSidecarFile) to write, creating the
+   *  sidecar directory if necessary.
+   *  @param name The file name.
+   *  @return The sidecar file.
+   *  @throws IOException Unable to create the sidecar directory.
+   */
+  public static File createSidecarFile (String name) throws IOException {
+    File file = Idx.getSidecarFile (name);
+    File dir = file.getParentFile ();
+    if (! dir.isDirectory () && ! dir.mkdirs ()) {
+      throw new IOException ("Unable to create sidecar directory " + dir);
+    }
+    return file;
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
@@ -90,6 +269,82 @@ public class Idx {
     }
   }
 
+  /**
+   * Get the internal document ids for many documents at once.  The
+   * external ids are sorted and resolved with one pass of a TermsEnum
+   * over the externalId field, which is much faster than a search per
+   * document.
+   * @param externalIds External document ids, in any order.
+   * @return internal docids aligned with externalIds; -1 where the
+   *         external id does not exist.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public static int[] getInternalDocids (final String[] externalIds)
+    throws IOException {
+
+    int[] docids = new int[externalIds.length];
+    Arrays.fill (docids, -1);
+
+    Terms terms = MultiFields.getTerms (Idx.INDEXREADER, "externalId");
+
+    if (terms == null) {
+      return docids;
+    }
+
+    //  Seeking in sorted order keeps the TermsEnum moving forward
+    //  through the term dictionary.
+
+    Integer[] order = new Integer[externalIds.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort (order, new Comparator<Integer>() {
+      public int compare (Integer a, Integer b) {
+        return externalIds[a].compareTo (externalIds[b]);
+      }
+    });
+
+    Bits liveDocs = MultiFields.getLiveDocs (Idx.INDEXREADER);
+    TermsEnum termsEnum = terms.iterator (null);
+    DocsEnum docsEnum = null;
+
+    for (int i : order) {
+      if (termsEnum.seekExact (new BytesRef (externalIds[i]), false)) {
+        docsEnum = termsEnum.docs (liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+        int docid = docsEnum.nextDoc ();
+        if (docid != DocIdSetIterator.NO_MORE_DOCS) {
+          docids[i] = docid;
+        }
+      }
+    }
+
+    return docids;
+  }
+
+  /**
+   *  Get the number of docid slots in the index, including deleted
+   *  documents.  Arrays indexed by internal docid need this size.
+   *  @return One more than the largest internal docid.
+   */
+  public static int getMaxDoc () {
+    return Idx.INDEXREADER.maxDoc ();
+  }
+
+  /**
+   *  Get the statistics that a term had before the index was pruned
+   *  (see IndexPruner).
+   *  @param fieldName the field that the term occurs in
+   *  @param termString the processed term
+   *  @return {df, ctf} in the unpruned index, or null if the index
+   *          isn't pruned or pruning didn't change the term's postings
+   *  @throws IOException Error reading the statistics.
+   */
+  public static long[] getOriginalTermStats (String fieldName, String termString)
+    throws IOException {
+    CollectionStats collectionStats = Idx.getCollectionStats ();
+    return (collectionStats != null) ? collectionStats.getTermStats (fieldName, termString) : null;
+  }
+
   /**
    *  Get the total number of documents in the corpus.
    *  @return The total number of documents.
@@ -102,16 +357,44 @@ public class Idx {
   /**
    *  Get the total number of term occurrences contained in all
    *  instances of the specified field in the corpus (e.g., add up the
-   *  lengths of every TITLE field in the corpus).
+   *  lengths of every TITLE field in the corpus).  For a pruned index,
+   *  this is the sum in the unpruned index.
    *  @param fieldName The field name.
    *  @return The total number of term occurrence
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
+    CollectionStats collectionStats = Idx.getCollectionStats ();
+    long[] stats = (collectionStats != null) ? collectionStats.getFieldStats (fieldName) : null;
+    if (stats != null) {
+      return stats[1];
+    }
     return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
   }
 
+  /**
+   *  Get the collection term frequency of a term.  For a pruned index,
+   *  this is the term's ctf in the unpruned index.
+   *  @param term the term
+   *  @return the number of occurrences of the term
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long getTotalTermFreq (Term term) throws IOException {
+    long[] stats = Idx.getOriginalTermStats (term.field (), term.text ());
+    if (stats != null) {
+      return stats[1];
+    }
+    return Idx.INDEXREADER.totalTermFreq (term);
+  }
+
+  /**
+   *  @return true if document lengths are stored as one-byte codes.
+   */
+  public static boolean hasQuantizedLengths () {
+    return Idx.DOCLENGTHSTORE.isQuantized ();
+  }
+
   /**
    *  Open a Lucene index and the associated DocLengthStore.
    *  @param indexPath A directory that contains a Lucene index.
@@ -120,6 +403,18 @@ public class Idx {
    */
   public static void initialize (String indexPath)
     throws IllegalArgumentException, IOException {
+    Idx.initialize (indexPath, false);
+  }
+
+  /**
+   *  Open the Lucene index and the document length store.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param quantizedLengths Store one-byte quantized document lengths.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void initialize (String indexPath, boolean quantizedLengths)
+    throws IllegalArgumentException, IOException {
 
     //  Open the Lucene index
 
@@ -129,15 +424,33 @@ public class Idx {
     if (Idx.INDEXREADER == null) {
       throw new IllegalArgumentException ("Unable to open the index.");
     }
+
+    Idx.INDEXPATH = new File (indexPath).getAbsolutePath ();
+    Idx.INDEXID = Idx.readIndexId ();
+    Idx.FINGERPRINT = Idx.hash64 (Idx.INDEXID);
   
     //  Lucene doesn't store field lengths the way that we want them,
     //  so we have our own document length store.
 
-    Idx.DOCLENGTHSTORE = new DocLengthStore (Idx.INDEXREADER);
+    Idx.DOCLENGTHSTORE = new DocLengthStore (Idx.INDEXREADER, quantizedLengths);
   
     if (Idx.DOCLENGTHSTORE == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
+
+    //  Stored attributes are read from the columnar attribute store,
+    //  if it has been built (java AttributeStore indexPath).  It is
+    //  opened when it is first needed.
+
+    Idx.ATTRIBUTES = null;
+    Idx.ATTRIBUTESOPENED = false;
+
+    //  An index written by IndexPruner reports the collection
+    //  statistics of the unpruned index.  They are read when they are
+    //  first needed.
+
+    Idx.STATS = null;
+    Idx.STATSOPENED = false;
   }
 
 }
@@ -0,0 +1,306 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * An impact-ordered copy of the index for BM25.  Each posting's BM25
+ * term score (with a query term frequency of 1) is quantized to an
+ * integer impact in 1..2^bits-1, linearly in the largest score of the
+ * index (a score of 0, e.g. of a term with idf 0, has impact 0), and
+ * each term's postings are grouped into segments of equal impact,
+ * highest first, with increasing docids in a segment.
+ * {@link SaatEvaluator} evaluates queries from it a segment at a time.
+ * <p>
+ * The index is built offline for the k1 and b that queries will use:
+ * <pre>
+ *   java ImpactIndex indexPath [k1 b [bits]]
+ * </pre>
+ * It is a sidecar file ({@link Idx#getSidecarFile}) that records the
+ * index fingerprint, k1 and b; it is ignored if any of them changes.
+ * Offsets are longs, and the file is mapped with {@link MappedFile},
+ * so it may be larger than 2GB.
+ */
+public class ImpactIndex {
+
+	private static final int MAGIC = 0x494d5032;	// "IMP2"
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8 + 8 + 8 + 4;
+	private static final String FILE_NAME = "impacts.idx";
+
+	private static ImpactIndex opened = null;
+	private static String openedKey = null;
+
+	private final MappedFile buffer;
+	private final double scale;
+	private final Map<String, long[]> dictionary;	// field \0 term -> {offset, segments}
+
+	private ImpactIndex(MappedFile buffer, double scale, Map<String, long[]> dictionary) {
+		this.buffer = buffer;
+		this.scale = scale;
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * The impact index of the open index for the current BM25
+	 * parameters, mapped on first use.
+	 * @return the impact index, or null if it is missing or stale
+	 * @throws IOException Error reading the impact index.
+	 */
+	public static synchronized ImpactIndex get() throws IOException {
+		String key = Idx.getIndexId() + "|" + RetrievalModelBM25.k1 + "|" + RetrievalModelBM25.b;
+		if (!key.equals(openedKey)) {
+			opened = open();
+			openedKey = key;
+		}
+		return opened;
+	}
+
+	private static ImpactIndex open() throws IOException {
+		File file = Idx.getSidecarFile(FILE_NAME);
+		if (!file.canRead()) {
+			System.err.println("Warning: no impact index " + file + "; build it with java ImpactIndex");
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < HEADER_BYTES) {
+				return null;
+			}
+			MappedFile buffer = new MappedFile(raf.getChannel());
+			if (buffer.getInt(0) != MAGIC
+					|| buffer.getInt(4) != Idx.getMaxDoc()
+					|| buffer.getLong(8) != Idx.getIndexFingerprint()
+					|| buffer.getDouble(16) != RetrievalModelBM25.k1
+					|| buffer.getDouble(24) != RetrievalModelBM25.b) {
+				System.err.println("Warning: ignoring stale impact index " + file);
+				return null;
+			}
+			double scale = buffer.getDouble(40);
+			int numTerms = buffer.getInt(48);
+
+			//  The dictionary follows the postings.
+
+			Map<String, long[]> dictionary = new HashMap<String, long[]>(2 * numTerms);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(raf.getChannel().position(buffer.getLong(32))), 1 << 16));
+			for (int i = 0; i < numTerms; i++) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				long offset = in.readLong();
+				int segments = in.readInt();
+				dictionary.put(new String(bytes, StandardCharsets.UTF_8), new long[] { offset, segments });
+			}
+			return new ImpactIndex(buffer, scale, dictionary);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the BM25 score of one unit of impact
+	 */
+	public double getScale() {
+		return this.scale;
+	}
+
+	/**
+	 * A term's segments, highest impact first.  Segment i has
+	 * counts[i] postings of impact impacts[i], whose docids are at
+	 * offsets[i] in the index buffer.
+	 */
+	public static class Segments {
+		public int[] impacts;
+		public int[] counts;
+		public long[] offsets;
+	}
+
+	/**
+	 * @param term a processed term
+	 * @param field the field that the term occurs in
+	 * @return the term's segments, which are empty if the index doesn't
+	 *         have the term
+	 */
+	public Segments getSegments(String term, String field) {
+		long[] entry = this.dictionary.get(field + "\u0000" + term);
+		int n = (entry == null) ? 0 : (int) entry[1];
+		Segments s = new Segments();
+		s.impacts = new int[n];
+		s.counts = new int[n];
+		s.offsets = new long[n];
+		long at = (entry == null) ? 0 : entry[0];
+		for (int i = 0; i < n; i++) {
+			s.impacts[i] = this.buffer.getInt(at);
+			s.counts[i] = this.buffer.getInt(at + 4);
+			s.offsets[i] = at + 8;
+			at += 8 + 4L * s.counts[i];
+		}
+		return s;
+	}
+
+	/**
+	 * @param offset the offset of a posting in the index buffer
+	 * @return its docid
+	 */
+	public int getDocid(long offset) {
+		return this.buffer.getInt(offset);
+	}
+
+	/**
+	 * Build the impact index of the open index for the current BM25
+	 * parameters.
+	 * @param bits the number of bits of an impact, 1 to 16
+	 * @throws IOException Error accessing the index or writing the impact index.
+	 */
+	public static void build(int bits) throws IOException {
+		if (bits < 1 || bits > 16) {
+			throw new IllegalArgumentException("Impacts must have 1 to 16 bits.");
+		}
+		int levels = (1 << bits) - 1;
+
+		//  The first pass finds the largest score; the second quantizes.
+
+		List<String> fields = new ArrayList<String>();
+		List<String> terms = new ArrayList<String>();
+		Fields indexFields = MultiFields.getFields(Idx.INDEXREADER);
+		for (String field : indexFields) {
+			Terms fieldTerms = indexFields.terms(field);
+			if (fieldTerms == null || MultiDocValues.getNormValues(Idx.INDEXREADER, field) == null) {
+				continue;	// BM25 needs field lengths
+			}
+			TermsEnum ti = fieldTerms.iterator(null);
+			BytesRef termBytes;
+			while ((termBytes = ti.next()) != null) {
+				fields.add(field);
+				terms.add(termBytes.utf8ToString());
+			}
+		}
+		double maxScore = 0;
+		for (int i = 0; i < terms.size(); i++) {
+			maxScore = Math.max(maxScore, BM25Postings.read(terms.get(i), fields.get(i)).maxScore);
+		}
+		double scale = (maxScore > 0) ? maxScore / levels : 1;
+
+		//  The postings are streamed to the index file and the
+		//  dictionary to a temporary file, which is appended to it.
+		//  The dictionary's offset and size are written last.
+
+		File file = Idx.createSidecarFile(FILE_NAME);
+		File tmp = new File(file.getPath() + ".tmp");
+		File dictionaryTmp = new File(file.getPath() + ".dictionary.tmp");
+		try {
+			DataOutputStream postings = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			DataOutputStream dictionary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dictionaryTmp), 1 << 16));
+			long postingsEnd = HEADER_BYTES;
+			int numTerms = 0;
+			try {
+				postings.writeInt(MAGIC);
+				postings.writeInt(Idx.getMaxDoc());
+				postings.writeLong(Idx.getIndexFingerprint());
+				postings.writeDouble(RetrievalModelBM25.k1);
+				postings.writeDouble(RetrievalModelBM25.b);
+				postings.writeLong(0);
+				postings.writeDouble(scale);
+				postings.writeInt(0);
+				for (int i = 0; i < terms.size(); i++) {
+					BM25Postings list = BM25Postings.read(terms.get(i), fields.get(i));
+
+					//  Sort postings by impact (descending), then docid.
+
+					long[] entries = new long[list.docids.length];
+					int n = 0;
+					for (int p = 0; p < list.docids.length; p++) {
+						int impact = (list.scores[p] > 0)
+								? (int) Math.max(1, Math.min(levels, Math.round(list.scores[p] / scale))) : 0;
+						entries[n++] = ((long) (levels - impact) << 32) | list.docids[p];
+					}
+					if (n == 0) {
+						continue;
+					}
+					Arrays.sort(entries, 0, n);
+
+					long offset = postingsEnd;
+					int segments = 0;
+					for (int start = 0; start < n; ) {
+						int end = start;
+						while (end < n && (entries[end] >>> 32) == (entries[start] >>> 32)) {
+							end++;
+						}
+						postings.writeInt(levels - (int) (entries[start] >>> 32));
+						postings.writeInt(end - start);
+						for (int p = start; p < end; p++) {
+							postings.writeInt((int) entries[p]);
+						}
+						postingsEnd += 8 + 4L * (end - start);
+						segments++;
+						start = end;
+					}
+					byte[] key = (fields.get(i) + "\u0000" + terms.get(i)).getBytes(StandardCharsets.UTF_8);
+					dictionary.writeInt(key.length);
+					dictionary.write(key);
+					dictionary.writeLong(offset);
+					dictionary.writeInt(segments);
+					numTerms++;
+				}
+			} finally {
+				dictionary.close();
+				postings.close();
+			}
+			RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				out.seek(postingsEnd);
+				Files.copy(dictionaryTmp.toPath(), Channels.newOutputStream(out.getChannel()));
+				out.seek(32);
+				out.writeLong(postingsEnd);
+				out.seek(48);
+				out.writeInt(numTerms);
+			} finally {
+				out.close();
+			}
+		} finally {
+			dictionaryTmp.delete();
+		}
+		if (!(tmp.renameTo(file) || (file.delete() && tmp.renameTo(file)))) {
+			throw new IOException("Unable to replace " + file);
+		}
+		synchronized (ImpactIndex.class) {
+			openedKey = null;
+		}
+	}
+
+	/**
+	 * Build the impact index of an index.
+	 * @param args indexPath [k1 b [bits]]
+	 * @throws Exception Error accessing the index or writing the impact index.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1 && args.length != 3 && args.length != 4) {
+			System.err.println("Usage:  java ImpactIndex indexPath [k1 b [bits]]");
+			System.exit(1);
+		}
+		Idx.initialize(args[0]);
+		if (args.length >= 3) {
+			new RetrievalModelBM25(args[1], args[2], Double.toString(RetrievalModelBM25.k3));
+		}
+		build((args.length == 4) ? Integer.parseInt(args[3]) : 8);
+		System.out.println("Wrote " + Idx.getSidecarFile(FILE_NAME));
+	}
+}
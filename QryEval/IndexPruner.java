@@ -0,0 +1,535 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ * Static index pruning.  Writes a copy of the index without the
+ * postings that contribute least to BM25 or Indri scores, so that the
+ * index that serves queries is smaller.  A posting's contribution is
+ * its BM25 term score, or for Indri, how much it raises the document's
+ * log score over the term's default score.  Two strategies decide
+ * which postings to keep:
+ * <pre>
+ *   term       (Carmel et al.) keep a term's postings whose contribution
+ *              is at least prune:epsilon times the term's prune:k'th
+ *              largest contribution; terms with at most prune:k
+ *              postings keep them all
+ *   document   (Buttcher and Clarke) keep the prune:lambda fraction of
+ *              each document's postings in a field that contribute most
+ * </pre>
+ * Only fields with lengths (norms) are pruned.  Documents, stored
+ * fields, term vectors, positions and lengths are copied unchanged.
+ * The pruned index gets the unpruned index's collection statistics
+ * ({@link CollectionStats}), which {@link Idx} reports, so scores
+ * computed from it are comparable with scores from the unpruned index.
+ * Other sidecar files, e.g. the {@link AttributeStore}, aren't copied;
+ * build them for the pruned index.
+ * <p>
+ * The pruner reads a QryEval parameter file, which selects the index,
+ * the retrieval model and its parameters, and these parameters:
+ * <pre>
+ *   prune:indexPath   the directory of the pruned index (required)
+ *   prune:method      term or document (default term)
+ *   prune:k           default 10
+ *   prune:epsilon     default 0.5
+ *   prune:lambda      default 0.5
+ * </pre>
+ * It reports the number of postings and the size of both indexes, and
+ * the overlap of the top 10 and 100 documents that the queries in
+ * queryFilePath retrieve from them:
+ * <pre>
+ *   java IndexPruner parameterFile
+ * </pre>
+ */
+public class IndexPruner {
+
+	private static final int[] OVERLAP_DEPTHS = { 10, 100 };
+
+	private final String method;
+	private final int k;
+	private final double epsilon;
+	private final double lambda;
+	private final boolean indri;
+
+	/**
+	 * For document-centric pruning, the smallest contribution that a
+	 * document keeps in each field.
+	 */
+	private final Map<String, float[]> cutoffs = new HashMap<String, float[]>();
+
+	private final CollectionStats stats = new CollectionStats();
+	private long postingsBefore = 0;
+	private long postingsAfter = 0;
+
+	/**
+	 * @param method term or document
+	 * @param k the rank of the contribution that term-centric pruning is relative to
+	 * @param epsilon the fraction of that contribution that a posting needs
+	 * @param lambda the fraction of a document's postings that document-centric pruning keeps
+	 * @param model the model whose scores decide which postings are kept
+	 */
+	public IndexPruner(String method, int k, double epsilon, double lambda, RetrievalModel model) {
+		if (!method.equals("term") && !method.equals("document")) {
+			throw new IllegalArgumentException("Unknown prune:method " + method);
+		}
+		if (!(model instanceof RetrievalModelBM25) && !(model instanceof RetrievalModelIndri)) {
+			throw new IllegalArgumentException("Index pruning needs the BM25 or Indri retrieval model.");
+		}
+		this.method = method;
+		this.k = k;
+		this.epsilon = epsilon;
+		this.lambda = lambda;
+		this.indri = (model instanceof RetrievalModelIndri);
+	}
+
+	/**
+	 * A term's postings in a field and their contributions.
+	 */
+	private static class Contributions {
+		int[] docids;
+		double[] scores;
+		long ctf;
+	}
+
+	/**
+	 * Read a term's postings from the open index and compute their
+	 * contributions.
+	 */
+	private Contributions read(String term, String field) throws IOException {
+		DocsEnum docs = MultiFields.getTermDocsEnum(Idx.INDEXREADER,
+				MultiFields.getLiveDocs(Idx.INDEXREADER), field, new BytesRef(term), DocsEnum.FLAG_FREQS);
+		int[] docids = new int[16];
+		int[] tfs = new int[16];
+		int df = 0;
+		long ctf = 0;
+		while (docs != null && docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+			if (df == docids.length) {
+				docids = Arrays.copyOf(docids, 2 * df);
+				tfs = Arrays.copyOf(tfs, 2 * df);
+			}
+			docids[df] = docs.docID();
+			tfs[df] = docs.freq();
+			ctf += tfs[df];
+			df++;
+		}
+
+		Contributions c = new Contributions();
+		c.docids = Arrays.copyOf(docids, df);
+		c.scores = new double[df];
+		c.ctf = ctf;
+		if (this.indri) {
+			IndriTermScorer scorer = new IndriTermScorer(field, ctf);
+			for (int p = 0; p < df; p++) {
+				c.scores[p] = Math.log(scorer.score(tfs[p], docids[p])) - Math.log(scorer.defaultScore(docids[p]));
+			}
+		} else {
+			double N = Idx.getNumDocs();
+			double k1 = RetrievalModelBM25.k1;
+			double b = RetrievalModelBM25.b;
+			double avgdocLen = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
+			double idf = Math.max(0, Math.log( (N-df+0.5)/(df+0.5) ));
+			for (int p = 0; p < df; p++) {
+				double tf = tfs[p];
+				double docLen = Idx.getFieldLength(field, docids[p]);
+				c.scores[p] = idf * tf / (tf + k1*((1-b)+b*docLen/avgdocLen));
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Decide which of a term's postings are kept, and record the
+	 * term's statistics if any are dropped.
+	 * @return the kept docids, in increasing order
+	 */
+	private int[] keep(String term, String field) throws IOException {
+		Contributions c = read(term, field);
+		int n = c.docids.length;
+		int[] kept = new int[n];
+		int m = 0;
+		if (this.method.equals("term")) {
+			double threshold = 0;
+			if (n > this.k) {
+				double[] sorted = c.scores.clone();
+				Arrays.sort(sorted);
+				threshold = this.epsilon * sorted[n - this.k];
+			}
+			for (int p = 0; p < n; p++) {
+				if (c.scores[p] >= threshold) {
+					kept[m++] = c.docids[p];
+				}
+			}
+		} else {
+			float[] cutoff = this.cutoffs.get(field);
+			for (int p = 0; p < n; p++) {
+				if ((float) c.scores[p] >= cutoff[c.docids[p]]) {
+					kept[m++] = c.docids[p];
+				}
+			}
+		}
+		if (m < n) {
+			this.stats.putTerm(field, term, n, c.ctf);
+		}
+		this.postingsBefore += n;
+		this.postingsAfter += m;
+		return Arrays.copyOf(kept, m);
+	}
+
+	/**
+	 * For document-centric pruning, find the smallest contribution
+	 * that each document keeps in a field.  One pass over the field's
+	 * postings counts each document's postings, and a second collects
+	 * their contributions, grouped by document.
+	 */
+	private float[] documentCutoffs(String field, List<String> terms) throws IOException {
+		int maxDoc = Idx.getMaxDoc();
+		int[] starts = new int[maxDoc + 1];
+		for (String term : terms) {
+			for (int docid : read(term, field).docids) {
+				starts[docid + 1]++;
+			}
+		}
+		long total = 0;
+		for (int docid = 0; docid < maxDoc; docid++) {
+			total += starts[docid + 1];
+			if (total > Integer.MAX_VALUE - 8) {
+				throw new IOException("Field " + field + " has too many postings for document-centric pruning.");
+			}
+			starts[docid + 1] = (int) total;
+		}
+
+		float[] scores = new float[(int) total];
+		int[] next = Arrays.copyOf(starts, maxDoc);
+		for (String term : terms) {
+			Contributions c = read(term, field);
+			for (int p = 0; p < c.docids.length; p++) {
+				scores[next[c.docids[p]]++] = (float) c.scores[p];
+			}
+		}
+
+		float[] cutoff = new float[maxDoc];
+		for (int docid = 0; docid < maxDoc; docid++) {
+			int n = starts[docid + 1] - starts[docid];
+			if (n > 0) {
+				Arrays.sort(scores, starts[docid], starts[docid + 1]);
+				int keep = Math.max(1, (int) Math.ceil(this.lambda * n));
+				cutoff[docid] = scores[starts[docid + 1] - keep];
+			}
+		}
+		return cutoff;
+	}
+
+	/**
+	 * Write the pruned copy of the open index and its collection
+	 * statistics.  The open index is then the pruned index.
+	 * @param prunedPath the directory of the pruned index
+	 * @throws IOException Error reading the index or writing the pruned index.
+	 */
+	public void prune(String prunedPath) throws IOException {
+		boolean quantizedLengths = Idx.hasQuantizedLengths();
+		final Set<String> pruned = new HashSet<String>();
+		Fields fields = MultiFields.getFields(Idx.INDEXREADER);
+		for (String field : fields) {
+			Terms terms = fields.terms(field);
+			if (terms == null || MultiDocValues.getNormValues(Idx.INDEXREADER, field) == null) {
+				continue;	// scores need field lengths
+			}
+			pruned.add(field);
+			this.stats.putField(field, Idx.getDocCount(field), Idx.getSumOfFieldLengths(field));
+			if (this.method.equals("document")) {
+				List<String> fieldTerms = new ArrayList<String>();
+				TermsEnum ti = terms.iterator(null);
+				BytesRef termBytes;
+				while ((termBytes = ti.next()) != null) {
+					fieldTerms.add(termBytes.utf8ToString());
+				}
+				this.cutoffs.put(field, documentCutoffs(field, fieldTerms));
+			}
+		}
+
+		//  The pruned index is the merge of a reader that hides the
+		//  dropped postings; everything else is copied as it is.
+
+		AtomicReader reader = new FilterAtomicReader(SlowCompositeReaderWrapper.wrap(Idx.INDEXREADER)) {
+			@Override
+			public Fields fields() throws IOException {
+				return new FilterFields(super.fields()) {
+					@Override
+					public Terms terms(final String field) throws IOException {
+						Terms terms = super.terms(field);
+						if (terms == null || !pruned.contains(field)) {
+							return terms;
+						}
+						return new FilterTerms(terms) {
+							@Override
+							public TermsEnum iterator(TermsEnum reuse) throws IOException {
+								return new PrunedTermsEnum(super.iterator(null), field);
+							}
+						};
+					}
+				};
+			}
+		};
+
+		IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, null);
+		config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+		IndexWriter writer = new IndexWriter(FSDirectory.open(new File(prunedPath)), config);
+		try {
+			writer.addIndexes(reader);
+		} finally {
+			writer.close();
+		}
+
+		//  The statistics are validated with the pruned index's
+		//  fingerprint, so they are written once it is open, and read
+		//  when it is opened again.
+
+		Idx.initialize(prunedPath, quantizedLengths);
+		this.stats.write();
+		Idx.initialize(prunedPath, quantizedLengths);
+	}
+
+	/**
+	 * A field's terms, whose postings are the kept postings.
+	 */
+	private class PrunedTermsEnum extends FilterAtomicReader.FilterTermsEnum {
+
+		private final String field;
+
+		PrunedTermsEnum(TermsEnum in, String field) {
+			super(in);
+			this.field = field;
+		}
+
+		@Override
+		public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags) throws IOException {
+			DocsEnum docs = this.in.docs(liveDocs, null, flags);
+			return (docs == null) ? null : new PrunedDocsEnum(docs, keep(this.in.term().utf8ToString(), field));
+		}
+
+		@Override
+		public DocsAndPositionsEnum docsAndPositions(Bits liveDocs, DocsAndPositionsEnum reuse, int flags)
+				throws IOException {
+			DocsAndPositionsEnum docs = this.in.docsAndPositions(liveDocs, null, flags);
+			return (docs == null) ? null : new PrunedDocsEnum(docs, keep(this.in.term().utf8ToString(), field));
+		}
+	}
+
+	/**
+	 * A posting list that skips from one kept document to the next.
+	 * Frequencies and positions are the unpruned list's.
+	 */
+	private static class PrunedDocsEnum extends DocsAndPositionsEnum {
+
+		private final DocsEnum in;
+		private final int[] kept;
+		private int i = -1;
+		private int doc = -1;
+
+		PrunedDocsEnum(DocsEnum in, int[] kept) {
+			this.in = in;
+			this.kept = kept;
+		}
+
+		@Override
+		public int docID() {
+			return this.doc;
+		}
+
+		@Override
+		public int freq() throws IOException {
+			return this.in.freq();
+		}
+
+		@Override
+		public int nextDoc() throws IOException {
+			this.i++;
+			this.doc = (this.i < this.kept.length) ? this.in.advance(this.kept[this.i]) : NO_MORE_DOCS;
+			return this.doc;
+		}
+
+		@Override
+		public int advance(int target) throws IOException {
+			while (this.i + 1 < this.kept.length && this.kept[this.i + 1] < target) {
+				this.i++;
+			}
+			return nextDoc();
+		}
+
+		@Override
+		public long cost() {
+			return this.kept.length;
+		}
+
+		@Override
+		public int nextPosition() throws IOException {
+			return ((DocsAndPositionsEnum) this.in).nextPosition();
+		}
+
+		@Override
+		public int startOffset() throws IOException {
+			return ((DocsAndPositionsEnum) this.in).startOffset();
+		}
+
+		@Override
+		public int endOffset() throws IOException {
+			return ((DocsAndPositionsEnum) this.in).endOffset();
+		}
+
+		@Override
+		public BytesRef getPayload() throws IOException {
+			return ((DocsAndPositionsEnum) this.in).getPayload();
+		}
+	}
+
+	/**
+	 * @return the external ids of the top documents of each query in
+	 *         the open index
+	 */
+	private static List<List<String>> rankings(List<String[]> queries, RetrievalModel model) throws IOException {
+		int depth = OVERLAP_DEPTHS[OVERLAP_DEPTHS.length - 1];
+		List<List<String>> rankings = new ArrayList<List<String>>();
+		for (String[] query : queries) {
+			ScoreList r = QryEval.processQuery(query[0], query[1], model);
+			r.sort();
+			List<String> ranking = new ArrayList<String>();
+			for (int i = 0; i < Math.min(depth, r.size()); i++) {
+				ranking.add(Idx.getExternalDocid(r.getDocid(i)));
+			}
+			rankings.add(ranking);
+		}
+		return rankings;
+	}
+
+	/**
+	 * @return the average fraction of the unpruned index's top depth
+	 *         documents that the pruned index also retrieves there
+	 */
+	private static double overlap(List<List<String>> before, List<List<String>> after, int depth) {
+		double sum = 0;
+		int n = 0;
+		for (int q = 0; q < before.size(); q++) {
+			List<String> b = before.get(q);
+			List<String> a = after.get(q);
+			int size = Math.min(depth, b.size());
+			if (size == 0) {
+				continue;
+			}
+			Set<String> top = new HashSet<String>(a.subList(0, Math.min(depth, a.size())));
+			int common = 0;
+			for (String docid : b.subList(0, size)) {
+				if (top.contains(docid)) {
+					common++;
+				}
+			}
+			sum += common / (double) size;
+			n++;
+		}
+		return (n > 0) ? sum / n : 1;
+	}
+
+	/**
+	 * @return the total size of the files in an index directory
+	 */
+	private static long size(String indexPath) {
+		long size = 0;
+		File[] files = new File(indexPath).listFiles();
+		for (File file : (files != null) ? files : new File[0]) {
+			size += file.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Prune an index and report the results.
+	 * @param args parameterFile
+	 * @throws Exception Error accessing the indexes or the parameter file.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage:  java IndexPruner parameterFile");
+			System.exit(1);
+		}
+		Map<String, String> parameters = QryEval.readParameterFile(args[0]);
+		String indexPath = parameters.get("indexPath");
+		String prunedPath = parameters.get("prune:indexPath");
+		if (prunedPath == null) {
+			throw new IllegalArgumentException("Expecting parameter: prune:indexPath.");
+		}
+		if (new File(prunedPath).getAbsoluteFile().equals(new File(indexPath).getAbsoluteFile())) {
+			throw new IllegalArgumentException("prune:indexPath must not be the index that is pruned.");
+		}
+		String method = parameters.containsKey("prune:method") ? parameters.get("prune:method").toLowerCase() : "term";
+		int k = parameters.containsKey("prune:k") ? Integer.parseInt(parameters.get("prune:k")) : 10;
+		double epsilon = parameters.containsKey("prune:epsilon") ? Double.parseDouble(parameters.get("prune:epsilon")) : 0.5;
+		double lambda = parameters.containsKey("prune:lambda") ? Double.parseDouble(parameters.get("prune:lambda")) : 0.5;
+
+		QryEval.initializeAnalyzer();
+		Idx.initialize(indexPath, Boolean.parseBoolean(parameters.get("quantizedLengths")));
+		RetrievalModel model = QryEval.initializeRetrievalModel(parameters);
+		IndexPruner pruner = new IndexPruner(method, k, epsilon, lambda, model);
+
+		List<String[]> queries = new ArrayList<String[]>();
+		BufferedReader input = new BufferedReader(new FileReader(parameters.get("queryFilePath")));
+		try {
+			String qLine;
+			while ((qLine = input.readLine()) != null) {
+				int d = qLine.indexOf(':');
+				if (d < 0) {
+					throw new IllegalArgumentException ("Syntax error:  Missing ':' in query line.");
+				}
+				queries.add(new String[] { qLine.substring(0, d), qLine.substring(d + 1) });
+			}
+		} finally {
+			input.close();
+		}
+
+		Timer timer = new Timer();
+		timer.start();
+		List<List<String>> before = rankings(queries, model);
+		pruner.prune(prunedPath);
+		List<List<String>> after = rankings(queries, model);
+		timer.stop();
+
+		long sizeBefore = size(indexPath);
+		long sizeAfter = size(prunedPath);
+		System.out.println("Pruned index:  " + new File(prunedPath).getAbsolutePath());
+		System.out.println("Method:  " + method + ((method.equals("term"))
+				? " (k=" + k + ", epsilon=" + epsilon + ")" : " (lambda=" + lambda + ")"));
+		System.out.printf("Postings:  %d -> %d (%.1f%%)%n", pruner.postingsBefore, pruner.postingsAfter,
+				100.0 * pruner.postingsAfter / Math.max(1, pruner.postingsBefore));
+		System.out.printf("Index size:  %.1f MB -> %.1f MB (%.1f%%)%n", sizeBefore / 1048576.0,
+				sizeAfter / 1048576.0, 100.0 * sizeAfter / Math.max(1, sizeBefore));
+		System.out.println("Terms with original statistics:  " + pruner.stats.numTerms());
+		for (int depth : OVERLAP_DEPTHS) {
+			System.out.printf("Overlap@%d:  %.3f (%d queries)%n", depth, overlap(before, after, depth), queries.size());
+		}
+		System.out.println("Time:  " + timer);
+	}
+}
@@ -0,0 +1,903 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ * Document reordering.  Writes a copy of the index in which docids are
+ * assigned in a new order, so that documents with similar terms are
+ * near each other, the gaps between the docids of a posting list are
+ * smaller (they compress better), and matches cluster (skipping
+ * passes over more of a list at a time), or so that the best documents
+ * come first.  Three orders are supported:
+ * <pre>
+ *   url   documents sorted by rawUrl, so pages of a site are together;
+ *         documents without a URL follow, in docid order
+ *   bp    recursive graph bisection (Dhulipala et al.) of the
+ *         documents' terms in reorder:field: each half of a range
+ *         of documents is improved by swapping documents between
+ *         the halves that lower the estimated log-gap cost of the
+ *         terms' postings, then each half is bisected
+ *   static  documents in order of decreasing static score
+ *           (reorder:prior); the scores are kept with the reordered
+ *           index for {@link StaticOrderEvaluator} ({@link StaticScores})
+ * </pre>
+ * The bisection reads the documents' terms from the field's posting
+ * lists (terms in fewer than 2 documents can't change gaps and are
+ * ignored), so the index doesn't need term vectors.  Documents are
+ * copied unchanged, and their lengths (norms) move with them, so
+ * {@link DocLengthStore} and scores don't change.  The reordered index
+ * has a sidecar file ({@link Idx#getSidecarFile}), docmap.bin, with
+ * its fingerprint and the new docid of each docid of the original
+ * index.  Other sidecar files are validated with the index fingerprint
+ * and must be built for the reordered index; the reorderer builds the
+ * {@link AttributeStore} if the original index has one.
+ * <p>
+ * The reorderer reads a QryEval parameter file, which selects the
+ * index and the retrieval model, and these parameters:
+ * <pre>
+ *   reorder:indexPath      the directory of the reordered index (required)
+ *   reorder:method         url, bp or static (default bp)
+ *   reorder:field          the field whose terms bp uses (default body)
+ *   reorder:iterations     swap rounds per bisection (default 20)
+ *   reorder:minPartition   ranges this small aren't bisected (default 16)
+ *   reorder:prior          the static score, spam or pagerank (default spam)
+ *   reorder:pageRankFile   PageRank scores for pagerank; without it, the
+ *                          PageRank of the {@link AttributeStore} is used
+ * </pre>
+ * It reports the size of the postings files and the average log2 docid
+ * gap of reorder:field before and after, and the time to evaluate the
+ * queries in queryFilePath on each index (after one warm-up pass), and
+ * whether their results are the same:
+ * <pre>
+ *   java IndexReorderer parameterFile
+ * </pre>
+ */
+public class IndexReorderer {
+
+	private static final int MAGIC = 0x444d5031;	// "DMP1"
+	private static final String FILE_NAME = "docmap.bin";
+
+	/**
+	 * The URL order.
+	 * @return the original docids in their new order
+	 * @throws IOException Error accessing the index.
+	 */
+	public static int[] urlOrder() throws IOException {
+		int maxDoc = Idx.getMaxDoc();
+		final String[] urls = new String[maxDoc];
+		Integer[] order = new Integer[maxDoc];
+		for (int docid = 0; docid < maxDoc; docid++) {
+			urls[docid] = Idx.getAttribute("rawUrl", docid);
+			order[docid] = docid;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer d1, Integer d2) {
+				String u1 = urls[d1];
+				String u2 = urls[d2];
+				if (u1 == null || u2 == null) {
+					return (u1 != null) ? -1 : (u2 != null) ? 1 : Integer.compare(d1, d2);
+				}
+				int c = u1.compareTo(u2);
+				return (c != 0) ? c : Integer.compare(d1, d2);
+			}
+		});
+		int[] result = new int[maxDoc];
+		for (int i = 0; i < maxDoc; i++) {
+			result[i] = order[i];
+		}
+		return liveFirst(result);
+	}
+
+	/**
+	 * The static score order.
+	 * @param scores static scores indexed by docid
+	 * @return the original docids in order of decreasing static score,
+	 *         ties in docid order
+	 */
+	public static int[] staticOrder(float[] scores) {
+		long[] keys = new long[scores.length];
+		for (int docid = 0; docid < scores.length; docid++) {
+			int bits = Float.floatToIntBits(Math.max(0f, scores[docid]));	// sorts as the scores do
+			keys[docid] = ((long) (Integer.MAX_VALUE - bits) << 32) | docid;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[scores.length];
+		for (int i = 0; i < scores.length; i++) {
+			order[i] = (int) keys[i];
+		}
+		return liveFirst(order);
+	}
+
+	/**
+	 * Move deleted documents to the end of an order.
+	 */
+	private static int[] liveFirst(int[] order) {
+		Bits liveDocs = MultiFields.getLiveDocs(Idx.INDEXREADER);
+		if (liveDocs == null) {
+			return order;
+		}
+		int[] result = new int[order.length];
+		int n = 0;
+		for (int docid : order) {
+			if (liveDocs.get(docid)) {
+				result[n++] = docid;
+			}
+		}
+		for (int docid : order) {
+			if (!liveDocs.get(docid)) {
+				result[n++] = docid;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Recursive graph bisection over the terms of a field.
+	 */
+	private static class Bisection {
+
+		private final int iterations;
+		private final int minPartition;
+
+		//  The forward index: document d has terms
+		//  terms[starts[d]..starts[d+1]-1].
+
+		private int[] starts;
+		private int[] terms;
+
+		private int[] leftDegrees;
+		private int[] rightDegrees;
+		private double[] leftToRight;
+		private double[] rightToLeft;
+		private double[] gains;
+		private double[] log2;	// log2[i] = log2(i)
+
+		Bisection(int iterations, int minPartition) {
+			this.iterations = iterations;
+			this.minPartition = Math.max(2, minPartition);
+		}
+
+		/**
+		 * Build the forward index of a field's terms that occur in at
+		 * least 2 documents.
+		 */
+		void read(String field) throws IOException {
+			int maxDoc = Idx.getMaxDoc();
+			Bits liveDocs = MultiFields.getLiveDocs(Idx.INDEXREADER);
+			Terms fieldTerms = MultiFields.getTerms(Idx.INDEXREADER, field);
+			this.starts = new int[maxDoc + 1];
+			int numTerms = 0;
+			if (fieldTerms != null) {
+				TermsEnum ti = fieldTerms.iterator(null);
+				DocsEnum docs = null;
+				while (ti.next() != null) {
+					if (ti.docFreq() < 2) {
+						continue;
+					}
+					docs = ti.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+					for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
+						this.starts[d + 1]++;
+					}
+					numTerms++;
+				}
+			}
+			long total = 0;
+			for (int d = 0; d < maxDoc; d++) {
+				total += this.starts[d + 1];
+				if (total > Integer.MAX_VALUE - 8) {
+					throw new IOException("Field " + field + " has too many postings to bisect.");
+				}
+				this.starts[d + 1] = (int) total;
+			}
+			this.terms = new int[(int) total];
+			int[] next = Arrays.copyOf(this.starts, maxDoc);
+			if (fieldTerms != null) {
+				TermsEnum ti = fieldTerms.iterator(null);
+				DocsEnum docs = null;
+				int t = 0;
+				while (ti.next() != null) {
+					if (ti.docFreq() < 2) {
+						continue;
+					}
+					docs = ti.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+					for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
+						this.terms[next[d]++] = t;
+					}
+					t++;
+				}
+			}
+			this.leftDegrees = new int[numTerms];
+			this.rightDegrees = new int[numTerms];
+			this.leftToRight = new double[numTerms];
+			this.rightToLeft = new double[numTerms];
+			this.gains = new double[maxDoc];
+			this.log2 = new double[maxDoc + 2];
+			for (int i = 1; i < this.log2.length; i++) {
+				this.log2[i] = Math.log(i) / Math.log(2);
+			}
+		}
+
+		/**
+		 * @return the estimated cost, in bits, of the gaps of a term
+		 *         in degree of n documents
+		 */
+		private double cost(int degree, int n) {
+			return degree * (this.log2[n] - this.log2[degree + 1]);
+		}
+
+		/**
+		 * Bisect order[lo..hi-1], then each half.
+		 */
+		void bisect(int[] order, int lo, int hi) {
+			int n = hi - lo;
+			if (n <= this.minPartition) {
+				return;
+			}
+			int mid = lo + n / 2;
+			int n1 = mid - lo;
+			int n2 = hi - mid;
+			long[] left = new long[n1];
+			long[] right = new long[n2];
+			for (int iteration = 0; iteration < this.iterations; iteration++) {
+
+				//  Term degrees in each half, and each term's gain when
+				//  one of its documents moves to the other half.
+
+				for (int p = lo; p < hi; p++) {
+					int d = order[p];
+					for (int i = this.starts[d]; i < this.starts[d + 1]; i++) {
+						this.leftDegrees[this.terms[i]] = 0;
+						this.rightDegrees[this.terms[i]] = 0;
+					}
+				}
+				for (int p = lo; p < hi; p++) {
+					int d = order[p];
+					int[] degrees = (p < mid) ? this.leftDegrees : this.rightDegrees;
+					for (int i = this.starts[d]; i < this.starts[d + 1]; i++) {
+						degrees[this.terms[i]]++;
+					}
+				}
+				for (int p = lo; p < hi; p++) {
+					int d = order[p];
+					for (int i = this.starts[d]; i < this.starts[d + 1]; i++) {
+						int t = this.terms[i];
+						int dl = this.leftDegrees[t];
+						int dr = this.rightDegrees[t];
+						double before = cost(dl, n1) + cost(dr, n2);
+						this.leftToRight[t] = (dl > 0) ? before - cost(dl - 1, n1) - cost(dr + 1, n2) : 0;
+						this.rightToLeft[t] = (dr > 0) ? before - cost(dl + 1, n1) - cost(dr - 1, n2) : 0;
+					}
+				}
+
+				//  Each document's gain; swap the best pairs while the
+				//  pair's total gain is positive.
+
+				for (int p = lo; p < hi; p++) {
+					int d = order[p];
+					double[] termGains = (p < mid) ? this.leftToRight : this.rightToLeft;
+					double gain = 0;
+					for (int i = this.starts[d]; i < this.starts[d + 1]; i++) {
+						gain += termGains[this.terms[i]];
+					}
+					this.gains[p] = gain;
+				}
+				for (int p = lo; p < mid; p++) {
+					left[p - lo] = sortKey(this.gains[p], p);
+				}
+				for (int p = mid; p < hi; p++) {
+					right[p - mid] = sortKey(this.gains[p], p);
+				}
+				Arrays.sort(left);
+				Arrays.sort(right);
+				int swaps = 0;
+				for (int i = 0; i < Math.min(n1, n2); i++) {
+					int pl = (int) left[i];
+					int pr = (int) right[i];
+					if (this.gains[pl] + this.gains[pr] <= 0) {
+						break;
+					}
+					int d = order[pl];
+					order[pl] = order[pr];
+					order[pr] = d;
+					swaps++;
+				}
+				if (swaps == 0) {
+					break;
+				}
+			}
+			left = null;
+			right = null;
+			bisect(order, lo, mid);
+			bisect(order, mid, hi);
+		}
+
+		/**
+		 * @return a key that sorts by decreasing gain, with position p
+		 *         in the low 32 bits
+		 */
+		private static long sortKey(double gain, int p) {
+			int bits = Float.floatToIntBits((float) -gain);
+			bits ^= (bits >> 31) & 0x7fffffff;	// order negative floats correctly
+			return ((long) bits << 32) | (p & 0xffffffffL);
+		}
+	}
+
+	/**
+	 * The bisection order.
+	 * @param field the field whose terms are used
+	 * @param iterations swap rounds per bisection
+	 * @param minPartition ranges this small aren't bisected
+	 * @return the original docids in their new order
+	 * @throws IOException Error accessing the index.
+	 */
+	public static int[] bisectionOrder(String field, int iterations, int minPartition) throws IOException {
+		Bisection bisection = new Bisection(iterations, minPartition);
+		bisection.read(field);
+		int[] order = liveFirst(identity(Idx.getMaxDoc()));
+		int live = Idx.INDEXREADER.numDocs();
+		bisection.bisect(order, 0, live);
+		return order;
+	}
+
+	private static int[] identity(int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		return order;
+	}
+
+	/**
+	 * A reader that presents the documents of another reader in a new
+	 * order.  Posting lists are read, renumbered and sorted a term at a
+	 * time; everything else is looked up by the original docid.
+	 */
+	private static class ReorderedReader extends FilterAtomicReader {
+
+		private final int[] oldDocids;	// new docid -> original docid
+		private final int[] newDocids;	// original docid -> new docid
+
+		ReorderedReader(AtomicReader in, int[] order) {
+			super(in);
+			this.oldDocids = order;
+			this.newDocids = new int[order.length];
+			for (int i = 0; i < order.length; i++) {
+				this.newDocids[order[i]] = i;
+			}
+		}
+
+		@Override
+		public Bits getLiveDocs() {
+			final Bits liveDocs = super.getLiveDocs();
+			if (liveDocs == null) {
+				return null;
+			}
+			return new Bits() {
+				@Override
+				public boolean get(int index) {
+					return liveDocs.get(oldDocids[index]);
+				}
+
+				@Override
+				public int length() {
+					return oldDocids.length;
+				}
+			};
+		}
+
+		@Override
+		public void document(int docID, StoredFieldVisitor visitor) throws IOException {
+			super.document(this.oldDocids[docID], visitor);
+		}
+
+		@Override
+		public Fields getTermVectors(int docID) throws IOException {
+			return super.getTermVectors(this.oldDocids[docID]);
+		}
+
+		@Override
+		public NumericDocValues getNormValues(String field) throws IOException {
+			return reorder(super.getNormValues(field));
+		}
+
+		@Override
+		public NumericDocValues getNumericDocValues(String field) throws IOException {
+			return reorder(super.getNumericDocValues(field));
+		}
+
+		private NumericDocValues reorder(final NumericDocValues values) {
+			if (values == null) {
+				return null;
+			}
+			return new NumericDocValues() {
+				@Override
+				public long get(int docID) {
+					return values.get(oldDocids[docID]);
+				}
+			};
+		}
+
+		@Override
+		public BinaryDocValues getBinaryDocValues(String field) throws IOException {
+			final BinaryDocValues values = super.getBinaryDocValues(field);
+			if (values == null) {
+				return null;
+			}
+			return new BinaryDocValues() {
+				@Override
+				public void get(int docID, BytesRef result) {
+					values.get(oldDocids[docID], result);
+				}
+			};
+		}
+
+		@Override
+		public SortedDocValues getSortedDocValues(String field) throws IOException {
+			final SortedDocValues values = super.getSortedDocValues(field);
+			if (values == null) {
+				return null;
+			}
+			return new SortedDocValues() {
+				@Override
+				public int getOrd(int docID) {
+					return values.getOrd(oldDocids[docID]);
+				}
+
+				@Override
+				public void lookupOrd(int ord, BytesRef result) {
+					values.lookupOrd(ord, result);
+				}
+
+				@Override
+				public int getValueCount() {
+					return values.getValueCount();
+				}
+			};
+		}
+
+		@Override
+		public SortedSetDocValues getSortedSetDocValues(String field) throws IOException {
+			final SortedSetDocValues values = super.getSortedSetDocValues(field);
+			if (values == null) {
+				return null;
+			}
+			return new SortedSetDocValues() {
+				@Override
+				public long nextOrd() {
+					return values.nextOrd();
+				}
+
+				@Override
+				public void setDocument(int docID) {
+					values.setDocument(oldDocids[docID]);
+				}
+
+				@Override
+				public void lookupOrd(long ord, BytesRef result) {
+					values.lookupOrd(ord, result);
+				}
+
+				@Override
+				public long getValueCount() {
+					return values.getValueCount();
+				}
+			};
+		}
+
+		@Override
+		public Fields fields() throws IOException {
+			return new FilterFields(super.fields()) {
+				@Override
+				public Terms terms(String field) throws IOException {
+					Terms terms = super.terms(field);
+					if (terms == null) {
+						return null;
+					}
+					return new FilterTerms(terms) {
+						@Override
+						public TermsEnum iterator(TermsEnum reuse) throws IOException {
+							return new FilterTermsEnum(super.iterator(null)) {
+								@Override
+								public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags) throws IOException {
+									DocsEnum docs = this.in.docs(null, null, flags);
+									return (docs == null) ? null : new ReorderedDocsEnum(docs, newDocids, liveDocs);
+								}
+
+								@Override
+								public DocsAndPositionsEnum docsAndPositions(Bits liveDocs,
+										DocsAndPositionsEnum reuse, int flags) throws IOException {
+									DocsAndPositionsEnum docs = this.in.docsAndPositions(null, null, flags);
+									return (docs == null) ? null : new ReorderedDocsEnum(docs, newDocids, liveDocs);
+								}
+							};
+						}
+					};
+				}
+			};
+		}
+	}
+
+	/**
+	 * A posting list, renumbered and sorted by the new docids.
+	 */
+	private static class ReorderedDocsEnum extends DocsAndPositionsEnum {
+
+		private int[] docs = new int[16];
+		private int[] freqs = new int[16];
+		private int[] positionStarts = new int[17];
+		private int[] positions = new int[16];
+		private int[] startOffsets = new int[16];
+		private int[] endOffsets = new int[16];
+		private BytesRef[] payloads = null;
+		private int[] order;
+		private int count = 0;
+
+		private int i = -1;
+		private int doc = -1;
+		private int position = -1;
+
+		/**
+		 * Read a posting list.
+		 * @param in the original posting list
+		 * @param newDocids original docid -> new docid
+		 * @param liveDocs the new docids that are live, or null
+		 */
+		ReorderedDocsEnum(DocsEnum in, int[] newDocids, Bits liveDocs) throws IOException {
+			DocsAndPositionsEnum withPositions = (in instanceof DocsAndPositionsEnum) ? (DocsAndPositionsEnum) in : null;
+			int positionCount = 0;
+			for (int d = in.nextDoc(); d != NO_MORE_DOCS; d = in.nextDoc()) {
+				int newDoc = newDocids[d];
+				if (liveDocs != null && !liveDocs.get(newDoc)) {
+					continue;
+				}
+				if (this.count == this.docs.length) {
+					this.docs = Arrays.copyOf(this.docs, 2 * this.count);
+					this.freqs = Arrays.copyOf(this.freqs, 2 * this.count);
+					this.positionStarts = Arrays.copyOf(this.positionStarts, 2 * this.count + 1);
+				}
+				int freq = in.freq();
+				this.docs[this.count] = newDoc;
+				this.freqs[this.count] = freq;
+				if (withPositions != null) {
+					if (positionCount + freq > this.positions.length) {
+						int size = Math.max(2 * this.positions.length, positionCount + freq);
+						this.positions = Arrays.copyOf(this.positions, size);
+						this.startOffsets = Arrays.copyOf(this.startOffsets, size);
+						this.endOffsets = Arrays.copyOf(this.endOffsets, size);
+						if (this.payloads != null) {
+							this.payloads = Arrays.copyOf(this.payloads, size);
+						}
+					}
+					for (int j = 0; j < freq; j++) {
+						this.positions[positionCount] = withPositions.nextPosition();
+						this.startOffsets[positionCount] = withPositions.startOffset();
+						this.endOffsets[positionCount] = withPositions.endOffset();
+						BytesRef payload = withPositions.getPayload();
+						if (payload != null) {
+							if (this.payloads == null) {
+								this.payloads = new BytesRef[this.positions.length];
+							}
+							this.payloads[positionCount] = BytesRef.deepCopyOf(payload);
+						}
+						positionCount++;
+					}
+				}
+				this.count++;
+				this.positionStarts[this.count] = positionCount;
+			}
+
+			//  Visit the postings in new docid order.
+
+			long[] keys = new long[this.count];
+			for (int p = 0; p < this.count; p++) {
+				keys[p] = ((long) this.docs[p] << 32) | p;
+			}
+			Arrays.sort(keys);
+			this.order = new int[this.count];
+			for (int p = 0; p < this.count; p++) {
+				this.order[p] = (int) keys[p];
+			}
+		}
+
+		@Override
+		public int docID() {
+			return this.doc;
+		}
+
+		@Override
+		public int freq() {
+			return this.freqs[this.order[this.i]];
+		}
+
+		@Override
+		public int nextDoc() {
+			this.i++;
+			if (this.i >= this.count) {
+				this.doc = NO_MORE_DOCS;
+			} else {
+				this.doc = this.docs[this.order[this.i]];
+				this.position = this.positionStarts[this.order[this.i]] - 1;
+			}
+			return this.doc;
+		}
+
+		@Override
+		public int advance(int target) {
+			while (nextDoc() < target) {
+			}
+			return this.doc;
+		}
+
+		@Override
+		public long cost() {
+			return this.count;
+		}
+
+		@Override
+		public int nextPosition() {
+			return this.positions[++this.position];
+		}
+
+		@Override
+		public int startOffset() {
+			return this.startOffsets[this.position];
+		}
+
+		@Override
+		public int endOffset() {
+			return this.endOffsets[this.position];
+		}
+
+		@Override
+		public BytesRef getPayload() {
+			return (this.payloads == null) ? null : this.payloads[this.position];
+		}
+	}
+
+	/**
+	 * Write a reordered copy of the open index and its docid map, and
+	 * its attribute store if the open index has one.  The open index is
+	 * then the reordered index.
+	 * @param reorderedPath the directory of the reordered index
+	 * @param order the original docids in their new order
+	 * @throws IOException Error reading the index or writing the reordered index.
+	 */
+	public static void write(String reorderedPath, int[] order) throws IOException {
+		boolean quantizedLengths = Idx.hasQuantizedLengths();
+		AttributeStore attributes = Idx.getAttributeStore();
+		float[] pageRank = null;
+		if (attributes != null && attributes.hasPageRank()) {
+			pageRank = new float[order.length];
+			for (int i = 0; i < order.length; i++) {
+				pageRank[i] = attributes.getPageRank(order[i]);
+			}
+		}
+		ReorderedReader reader = new ReorderedReader(SlowCompositeReaderWrapper.wrap(Idx.INDEXREADER), order);
+		IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, null);
+		config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+		IndexWriter writer = new IndexWriter(FSDirectory.open(new File(reorderedPath)), config);
+		try {
+			writer.addIndexes(reader);
+		} finally {
+			writer.close();
+		}
+
+		//  Merging drops deleted documents, which are last in the new
+		//  order, so the other docids don't change again.
+
+		Idx.initialize(reorderedPath, quantizedLengths);
+		File file = Idx.createSidecarFile(FILE_NAME);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(Idx.getMaxDoc());
+			out.writeLong(Idx.getIndexFingerprint());
+			out.writeInt(order.length);
+			for (int docid = 0; docid < order.length; docid++) {
+				int newDocid = reader.newDocids[docid];
+				out.writeInt((newDocid < Idx.getMaxDoc()) ? newDocid : -1);
+			}
+		} finally {
+			out.close();
+		}
+		if (attributes != null) {
+			AttributeStore.build(pageRank);
+			Idx.initialize(reorderedPath, quantizedLengths);
+		}
+	}
+
+	/**
+	 * @return the average log2 of the docid gaps of a field's postings
+	 *         in the open index
+	 */
+	private static double averageLogGap(String field) throws IOException {
+		Terms terms = MultiFields.getTerms(Idx.INDEXREADER, field);
+		if (terms == null) {
+			return 0;
+		}
+		double sum = 0;
+		long n = 0;
+		TermsEnum ti = terms.iterator(null);
+		DocsEnum docs = null;
+		while (ti.next() != null) {
+			docs = ti.docs(MultiFields.getLiveDocs(Idx.INDEXREADER), docs, DocsEnum.FLAG_NONE);
+			int last = -1;
+			for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
+				sum += Math.log(d - last) / Math.log(2);
+				n++;
+				last = d;
+			}
+		}
+		return (n > 0) ? sum / n : 0;
+	}
+
+	/**
+	 * @return the total size of the postings files (docids and
+	 *         frequencies, positions) of an index directory
+	 */
+	private static long postingsSize(String indexPath) {
+		long size = 0;
+		File[] files = new File(indexPath).listFiles();
+		for (File file : (files != null) ? files : new File[0]) {
+			if (file.getName().endsWith(".doc") || file.getName().endsWith(".pos")
+					|| file.getName().endsWith(".pay")) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Evaluate the queries twice and time the second pass.
+	 * @param results receives each query's ranking
+	 * @return the time of the second pass in milliseconds
+	 */
+	private static double timeQueries(List<String[]> queries, RetrievalModel model, List<List<String>> results)
+			throws IOException {
+		double ms = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			results.clear();
+			long start = System.nanoTime();
+			for (String[] query : queries) {
+				ScoreList r = QryEval.processQuery(query[0], query[1], model);
+				r.sort();
+				List<String> ranking = new ArrayList<String>();
+				for (int i = 0; i < Math.min(100, r.size()); i++) {
+					ranking.add(Idx.getExternalDocid(r.getDocid(i)) + " " + r.getDocidScore(i));
+				}
+				results.add(ranking);
+			}
+			ms = (System.nanoTime() - start) / 1e6;
+		}
+		return ms;
+	}
+
+	/**
+	 * Reorder an index and report the results.
+	 * @param args parameterFile
+	 * @throws Exception Error accessing the indexes or the parameter file.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage:  java IndexReorderer parameterFile");
+			System.exit(1);
+		}
+		Map<String, String> parameters = QryEval.readParameterFile(args[0]);
+		String indexPath = parameters.get("indexPath");
+		String reorderedPath = parameters.get("reorder:indexPath");
+		if (reorderedPath == null) {
+			throw new IllegalArgumentException("Expecting parameter: reorder:indexPath.");
+		}
+		if (new File(reorderedPath).getAbsoluteFile().equals(new File(indexPath).getAbsoluteFile())) {
+			throw new IllegalArgumentException("reorder:indexPath must not be the index that is reordered.");
+		}
+		String method = parameters.containsKey("reorder:method") ? parameters.get("reorder:method").toLowerCase() : "bp";
+		if (!method.equals("url") && !method.equals("bp") && !method.equals("static")) {
+			throw new IllegalArgumentException("Unknown reorder:method " + method);
+		}
+		String field = parameters.containsKey("reorder:field") ? parameters.get("reorder:field") : "body";
+		int iterations = parameters.containsKey("reorder:iterations")
+				? Integer.parseInt(parameters.get("reorder:iterations")) : 20;
+		int minPartition = parameters.containsKey("reorder:minPartition")
+				? Integer.parseInt(parameters.get("reorder:minPartition")) : 16;
+		String prior = parameters.containsKey("reorder:prior") ? parameters.get("reorder:prior").toLowerCase() : "spam";
+
+		QryEval.initializeAnalyzer();
+		Idx.initialize(indexPath, Boolean.parseBoolean(parameters.get("quantizedLengths")));
+		RetrievalModel model = QryEval.initializeRetrievalModel(parameters);
+
+		List<String[]> queries = new ArrayList<String[]>();
+		BufferedReader input = new BufferedReader(new FileReader(parameters.get("queryFilePath")));
+		try {
+			String qLine;
+			while ((qLine = input.readLine()) != null) {
+				int d = qLine.indexOf(':');
+				if (d < 0) {
+					throw new IllegalArgumentException ("Syntax error:  Missing ':' in query line.");
+				}
+				queries.add(new String[] { qLine.substring(0, d), qLine.substring(d + 1) });
+			}
+		} finally {
+			input.close();
+		}
+
+		double gapBefore = averageLogGap(field);
+		List<List<String>> before = new ArrayList<List<String>>();
+		double msBefore = timeQueries(queries, model, before);
+
+		Timer timer = new Timer();
+		timer.start();
+		int[] order;
+		float[] staticScores = null;
+		if (method.equals("static")) {
+			float[] pageRank = null;
+			if (parameters.containsKey("reorder:pageRankFile")) {
+				pageRank = PageRankLoader.load(parameters.get("reorder:pageRankFile"));
+			} else if (Idx.getAttributeStore() != null && Idx.getAttributeStore().hasPageRank()) {
+				pageRank = new float[Idx.getMaxDoc()];
+				for (int docid = 0; docid < pageRank.length; docid++) {
+					pageRank[docid] = Idx.getAttributeStore().getPageRank(docid);
+				}
+			}
+			staticScores = StaticScores.compute(prior, pageRank);
+			order = staticOrder(staticScores);
+		} else {
+			order = method.equals("url") ? urlOrder() : bisectionOrder(field, iterations, minPartition);
+		}
+		write(reorderedPath, order);
+		if (staticScores != null) {
+			float[] reordered = new float[Idx.getMaxDoc()];
+			for (int docid = 0; docid < reordered.length; docid++) {
+				reordered[docid] = staticScores[order[docid]];
+			}
+			new StaticScores(prior, reordered).write();
+		}
+		timer.stop();
+
+		double gapAfter = averageLogGap(field);
+		List<List<String>> after = new ArrayList<List<String>>();
+		double msAfter = timeQueries(queries, model, after);
+
+		System.out.println("Reordered index:  " + new File(reorderedPath).getAbsolutePath());
+		System.out.println("Method:  " + method + (method.equals("bp") ? " (" + field + ")"
+				: method.equals("static") ? " (" + prior + ")" : ""));
+		System.out.printf("Postings files:  %.1f MB -> %.1f MB%n", postingsSize(indexPath) / 1048576.0,
+				postingsSize(reorderedPath) / 1048576.0);
+		System.out.printf("Average log2 docid gap (%s):  %.2f -> %.2f%n", field, gapBefore, gapAfter);
+		System.out.printf("Query time:  %.0f ms -> %.0f ms (%d queries)%n", msBefore, msAfter, queries.size());
+		System.out.println("Same results:  " + before.equals(after));
+		System.out.println("Reordering time:  " + timer);
+	}
+}
@@ -0,0 +1,95 @@
+import java.io.IOException;
+
+/**
+ * Dirichlet-smoothed Indri scores for one query term.  The
+ * document-independent parts of the formula (mu * pMLE and
+ * lambda * pMLE) are computed once per query, and document lengths
+ * come from {@link DocLengthCache}, so all of a document's missing
+ * terms in a field share one length lookup.
+ * <p>
+ * A default score depends only on the document length.  If
+ * RetrievalModelIndri.defaultScoreTableSize is positive, the default
+ * scores (and their logs) of lengths below it are tabulated when the
+ * term is initialized, which pays off for long (e.g. expanded) queries
+ * in which most terms are missing from most documents.  Longer
+ * documents are computed directly.  Table entries are computed with
+ * the same expression, so scores don't change.
+ */
+public class IndriTermScorer {
+
+	private final String field;
+	private final double mu = RetrievalModelIndri.mu;
+	private final double oneMinusLambda = 1 - RetrievalModelIndri.lambda;
+	private final double muPMLE;
+	private final double lambdaPMLE;
+
+	private final double[] defaultScores;
+	private final double[] logDefaultScores;
+
+	/**
+	 * @param field the term's field
+	 * @param ctf the term's collection term frequency
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public IndriTermScorer(String field, double ctf) throws IOException {
+		this.field = field;
+		double lengthC = Idx.getSumOfFieldLengths(field);
+		double pMLE = ctf / lengthC;
+		this.muPMLE = mu * pMLE;
+		this.lambdaPMLE = RetrievalModelIndri.lambda * pMLE;
+
+		int tableSize = RetrievalModelIndri.defaultScoreTableSize;
+		this.defaultScores = new double[Math.max(0, tableSize)];
+		this.logDefaultScores = new double[defaultScores.length];
+		for (int len = 0; len < defaultScores.length; len++) {
+			defaultScores[len] = smoothedScore(0, len);
+			logDefaultScores[len] = Math.log(defaultScores[len]);
+		}
+	}
+
+	private double smoothedScore(double tf, int lengthD) {
+		return (oneMinusLambda * (tf + muPMLE) / (lengthD + mu)) + lambdaPMLE;
+	}
+
+	/**
+	 * Score a block of documents; documents without the term (tf 0)
+	 * get their default scores.
+	 * @param n the number of documents
+	 * @param tf the term's frequencies
+	 * @param len the documents' lengths in this term's field
+	 * @param out the scores
+	 */
+	public void scoreBlock(int n, double[] tf, double[] len, double[] out) {
+		BlockKernels.indriSmooth(n, tf, len, oneMinusLambda, muPMLE, mu, lambdaPMLE, out);
+	}
+
+	/**
+	 * @param tf the term's frequency in the document
+	 * @param docid an internal docid
+	 * @return the term's score in the document
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public double score(int tf, int docid) throws IOException {
+		return smoothedScore(tf, DocLengthCache.getFieldLength(field, docid));
+	}
+
+	/**
+	 * @param docid an internal docid that doesn't contain the term
+	 * @return the term's default (tf = 0) score in the document
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public double defaultScore(int docid) throws IOException {
+		int lengthD = DocLengthCache.getFieldLength(field, docid);
+		return (lengthD < defaultScores.length) ? defaultScores[lengthD] : smoothedScore(0, lengthD);
+	}
+
+	/**
+	 * @param docid an internal docid that doesn't contain the term
+	 * @return the log of the term's default score in the document
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public double logDefaultScore(int docid) throws IOException {
+		int lengthD = DocLengthCache.getFieldLength(field, docid);
+		return (lengthD < logDefaultScores.length) ? logDefaultScores[lengthD] : Math.log(smoothedScore(0, lengthD));
+	}
+}
@@ -144,6 +144,97 @@ public class InvList {
     }
   }
 
+  /**
+   *  Get the postings of a term for some documents from the index.
+   *  The postings are found by skipping from one document to the
+   *  next, so documents between them are never decoded.  df and ctf
+   *  count only those postings.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param docids The documents, in increasing order.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, int[] docids) throws IOException {
+
+    this.field = new String (fieldString);
+
+    BytesRef termBytes = new BytesRef(termString);
+    Term term = new Term(fieldString, termBytes);
+
+    if (Idx.INDEXREADER.docFreq(term) < 1 || docids.length == 0)
+      return;
+
+    DocsAndPositionsEnum iList =
+      MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
+				       MultiFields.getLiveDocs(Idx.INDEXREADER),
+				       fieldString, termBytes);
+
+    int doc = -1;
+
+    for (int docid : docids) {
+      if (doc < docid)
+        doc = iList.advance (docid);
+
+      if (doc == DocIdSetIterator.NO_MORE_DOCS)
+        break;
+
+      if (doc != docid)
+        continue;
+
+      int tf = iList.freq();
+      int[] positions = new int[tf];
+
+      for (int j = 0; j < tf; j++)
+        positions[j] = iList.nextPosition();
+
+      this.postings.add(new DocPosting(docid, positions));
+      this.df++;
+      this.ctf += tf;
+    }
+  }
+
+  /**
+   *  Get the postings of a term for a range of documents from the
+   *  index.  The postings before the range are skipped, and reading
+   *  stops at the end of the range.  df and ctf count only those
+   *  postings.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param from The first document of the range.
+   *  @param to One more than the last document of the range.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, int from, int to) throws IOException {
+
+    this.field = new String (fieldString);
+
+    BytesRef termBytes = new BytesRef(termString);
+    Term term = new Term(fieldString, termBytes);
+
+    if (Idx.INDEXREADER.docFreq(term) < 1 || from >= to)
+      return;
+
+    DocsAndPositionsEnum iList =
+      MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
+				       MultiFields.getLiveDocs(Idx.INDEXREADER),
+				       fieldString, termBytes);
+
+    for (int doc = iList.advance (from);
+	 doc != DocIdSetIterator.NO_MORE_DOCS && doc < to;
+	 doc = iList.nextDoc ()) {
+
+      int tf = iList.freq();
+      int[] positions = new int[tf];
+
+      for (int j = 0; j < tf; j++)
+        positions[j] = iList.nextPosition();
+
+      this.postings.add(new DocPosting(doc, positions));
+      this.df++;
+      this.ctf += tf;
+    }
+  }
+
   /**
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
@@ -0,0 +1,485 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A pure-Java LambdaMART ranker: gradient-boosted regression trees
+ * trained on LambdaRank gradients for NDCG@10.  It is an alternative
+ * to the external svm_rank binaries for the LeToR pipeline, and reads
+ * and writes the same feature vector and score files.
+ * <p>
+ * Training bins every feature into at most maxBins buckets once, then
+ * grows each tree leaf-wise: the leaf whose best split gains the most
+ * is split next.  The best split of a leaf is found from per-feature
+ * histograms of the lambdas, and the features are searched in parallel.
+ * Scoring uses {@link QuickScorer}, so trees have at most 64 leaves.
+ * <p>
+ * The parameters are static, like the retrieval models'.
+ */
+public class LambdaMart {
+
+	public static int numTrees = 100;
+	public static int numLeaves = 10;
+	public static double learningRate = 0.1;
+	public static int minLeafSupport = 1;
+	public static int maxBins = 256;
+	public static int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private static final int NDCG_DEPTH = 10;
+	private static final String MODEL_HEADER = "LambdaMART";
+
+	//  --------------- Training data ----------------------------------
+
+	private final int numDocs;
+	private final int numFeatures;
+	private final int[] relValues;
+	private final int[] queryStart;			// docs of query q: queryStart[q] .. queryStart[q+1]-1
+	private final short[][] bins;				// bins[f][d]
+	private final double[][] binThresholds;	// bin b of feature f holds values <= binThresholds[f][b]
+
+	private final double[] scores;
+	private final double[] lambdas;
+	private final double[] weights;
+
+	private LambdaMart(List<FeatureValue> fvList, int numFeatures) {
+		this.numDocs = fvList.size();
+		this.numFeatures = numFeatures;
+		this.relValues = new int[numDocs];
+		this.scores = new double[numDocs];
+		this.lambdas = new double[numDocs];
+		this.weights = new double[numDocs];
+
+		//  Queries are contiguous runs of the same qid, as in the files.
+
+		List<Integer> starts = new ArrayList<Integer>();
+		for (int d = 0; d < numDocs; d++) {
+			relValues[d] = fvList.get(d).relValue;
+			if (d == 0 || !fvList.get(d).qid.equals(fvList.get(d - 1).qid)) {
+				starts.add(d);
+			}
+		}
+		starts.add(numDocs);
+		this.queryStart = new int[starts.size()];
+		for (int q = 0; q < queryStart.length; q++) {
+			queryStart[q] = starts.get(q);
+		}
+
+		this.bins = new short[numFeatures][numDocs];
+		this.binThresholds = new double[numFeatures][];
+		double[] column = new double[numDocs];
+		for (int f = 0; f < numFeatures; f++) {
+			for (int d = 0; d < numDocs; d++) {
+				column[d] = fvList.get(d).featureVector[f];
+			}
+			binThresholds[f] = binThresholds(column);
+			for (int d = 0; d < numDocs; d++) {
+				int b = Arrays.binarySearch(binThresholds[f], column[d]);
+				bins[f][d] = (short) ((b >= 0) ? b : -b - 1);
+			}
+		}
+	}
+
+	/**
+	 * Choose the bin upper bounds of one feature: its distinct values if
+	 * there are at most maxBins of them, otherwise equal-frequency
+	 * quantiles.  The last bound is always the maximum value.
+	 */
+	private static double[] binThresholds(double[] column) {
+		double[] sorted = column.clone();
+		Arrays.sort(sorted);
+		int numDistinct = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) {
+				sorted[numDistinct++] = sorted[i];
+			}
+		}
+		if (numDistinct <= maxBins) {
+			return Arrays.copyOf(sorted, numDistinct);
+		}
+		double[] thresholds = new double[maxBins];
+		for (int b = 0; b < maxBins; b++) {
+			thresholds[b] = sorted[(int) ((long) (b + 1) * numDistinct / maxBins) - 1];
+		}
+		return thresholds;
+	}
+
+	//  --------------- Training ---------------------------------------
+
+	/**
+	 * A leaf of the tree being grown, and its best split.
+	 */
+	private static class Leaf {
+		final RegressionTree.Node node = new RegressionTree.Node();
+		final int[] docs;
+		double sumLambda;
+		double sumWeight;
+
+		double splitGain = 0;
+		int splitFeature = -1;
+		int splitBin;
+
+		Leaf(int[] docs) {
+			this.docs = docs;
+		}
+	}
+
+	private List<RegressionTree> train(ExecutorService executor) throws InterruptedException, ExecutionException {
+		List<RegressionTree> trees = new ArrayList<RegressionTree>();
+		int[] allDocs = new int[numDocs];
+		for (int d = 0; d < numDocs; d++) {
+			allDocs[d] = d;
+		}
+		for (int t = 0; t < numTrees; t++) {
+			computeLambdas();
+			List<Leaf> leaves = new ArrayList<Leaf>();
+			Leaf root = newLeaf(allDocs, executor);
+			leaves.add(root);
+
+			while (leaves.size() < numLeaves) {
+				Leaf best = null;
+				for (Leaf leaf : leaves) {
+					if (leaf.splitFeature >= 0 && (best == null || leaf.splitGain > best.splitGain)) {
+						best = leaf;
+					}
+				}
+				if (best == null) {
+					break;
+				}
+				leaves.remove(best);
+				leaves.addAll(split(best, executor));
+			}
+
+			for (Leaf leaf : leaves) {
+				leaf.node.value = (leaf.sumWeight > 0) ? leaf.sumLambda / leaf.sumWeight : 0;
+				for (int d : leaf.docs) {
+					scores[d] += learningRate * leaf.node.value;
+				}
+			}
+			trees.add(RegressionTree.fromNodes(root.node, learningRate));
+			if ((t + 1) % 10 == 0 || t + 1 == numTrees) {
+				System.out.println("LambdaMART tree " + (t + 1) + ":  training NDCG@" + NDCG_DEPTH
+						+ " = " + meanNdcg());
+			}
+		}
+		return trees;
+	}
+
+	/**
+	 * Compute the LambdaRank gradients (lambdas) and their derivatives
+	 * (weights) of every document from the current scores.
+	 */
+	private void computeLambdas() {
+		Arrays.fill(lambdas, 0);
+		Arrays.fill(weights, 0);
+		for (int q = 0; q + 1 < queryStart.length; q++) {
+			int start = queryStart[q];
+			int end = queryStart[q + 1];
+			double idealDcg = idealDcg(start, end);
+			if (idealDcg <= 0) {
+				continue;
+			}
+			Integer[] ranking = rankByScore(start, end);
+			int[] rank = new int[end - start];
+			for (int r = 0; r < ranking.length; r++) {
+				rank[ranking[r] - start] = r;
+			}
+			for (int i = start; i < end; i++) {
+				for (int j = start; j < end; j++) {
+					if (relValues[i] <= relValues[j]) {
+						continue;
+					}
+					double deltaNdcg = Math.abs((gain(relValues[i]) - gain(relValues[j]))
+							* (discount(rank[i - start]) - discount(rank[j - start]))) / idealDcg;
+					if (deltaNdcg == 0) {
+						continue;
+					}
+					double rho = 1.0 / (1.0 + Math.exp(scores[i] - scores[j]));
+					lambdas[i] += rho * deltaNdcg;
+					lambdas[j] -= rho * deltaNdcg;
+					double w = rho * (1.0 - rho) * deltaNdcg;
+					weights[i] += w;
+					weights[j] += w;
+				}
+			}
+		}
+	}
+
+	private Leaf newLeaf(int[] docs, ExecutorService executor) throws InterruptedException, ExecutionException {
+		Leaf leaf = new Leaf(docs);
+		for (int d : docs) {
+			leaf.sumLambda += lambdas[d];
+			leaf.sumWeight += weights[d];
+		}
+		findBestSplit(leaf, executor);
+		return leaf;
+	}
+
+	/**
+	 * Find the split of a leaf that most reduces the squared error of
+	 * the lambdas.  Each feature's histogram is built and scanned by a
+	 * separate task.
+	 */
+	private void findBestSplit(final Leaf leaf, ExecutorService executor)
+			throws InterruptedException, ExecutionException {
+		if (leaf.docs.length < 2 * minLeafSupport) {
+			return;
+		}
+		List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+		for (int f = 0; f < numFeatures; f++) {
+			final int feature = f;
+			results.add(executor.submit(new Callable<double[]>() {
+				@Override
+				public double[] call() {
+					return bestSplitOfFeature(leaf, feature);
+				}
+			}));
+		}
+		double parentScore = leaf.sumLambda * leaf.sumLambda / leaf.docs.length;
+		for (int f = 0; f < numFeatures; f++) {
+			double[] split = results.get(f).get();		// { score, bin }, or null
+			if (split != null && split[0] - parentScore > leaf.splitGain) {
+				leaf.splitGain = split[0] - parentScore;
+				leaf.splitFeature = f;
+				leaf.splitBin = (int) split[1];
+			}
+		}
+	}
+
+	private double[] bestSplitOfFeature(Leaf leaf, int f) {
+		int numBins = binThresholds[f].length;
+		if (numBins < 2) {
+			return null;
+		}
+		double[] histLambda = new double[numBins];
+		int[] histCount = new int[numBins];
+		short[] featureBins = bins[f];
+		for (int d : leaf.docs) {
+			int b = featureBins[d];
+			histLambda[b] += lambdas[d];
+			histCount[b]++;
+		}
+		double[] best = null;
+		double leftLambda = 0;
+		int leftCount = 0;
+		for (int b = 0; b + 1 < numBins; b++) {
+			leftLambda += histLambda[b];
+			leftCount += histCount[b];
+			int rightCount = leaf.docs.length - leftCount;
+			if (leftCount < minLeafSupport || rightCount < minLeafSupport) {
+				continue;
+			}
+			double rightLambda = leaf.sumLambda - leftLambda;
+			double score = leftLambda * leftLambda / leftCount + rightLambda * rightLambda / rightCount;
+			if (best == null || score > best[0]) {
+				best = new double[] { score, b };
+			}
+		}
+		return best;
+	}
+
+	private List<Leaf> split(Leaf leaf, ExecutorService executor) throws InterruptedException, ExecutionException {
+		short[] featureBins = bins[leaf.splitFeature];
+		int numLeft = 0;
+		for (int d : leaf.docs) {
+			if (featureBins[d] <= leaf.splitBin) {
+				numLeft++;
+			}
+		}
+		int[] leftDocs = new int[numLeft];
+		int[] rightDocs = new int[leaf.docs.length - numLeft];
+		int l = 0;
+		int r = 0;
+		for (int d : leaf.docs) {
+			if (featureBins[d] <= leaf.splitBin) {
+				leftDocs[l++] = d;
+			} else {
+				rightDocs[r++] = d;
+			}
+		}
+		Leaf left = newLeaf(leftDocs, executor);
+		Leaf right = newLeaf(rightDocs, executor);
+		leaf.node.feature = leaf.splitFeature;
+		leaf.node.threshold = binThresholds[leaf.splitFeature][leaf.splitBin];
+		leaf.node.left = left.node;
+		leaf.node.right = right.node;
+		List<Leaf> children = new ArrayList<Leaf>();
+		children.add(left);
+		children.add(right);
+		return children;
+	}
+
+	//  --------------- NDCG -------------------------------------------
+
+	private static double gain(int relValue) {
+		return Math.pow(2, relValue) - 1;
+	}
+
+	private static double discount(int rank) {
+		return (rank < NDCG_DEPTH) ? 1.0 / (Math.log(rank + 2) / Math.log(2)) : 0;
+	}
+
+	private double idealDcg(int start, int end) {
+		int[] sorted = Arrays.copyOfRange(relValues, start, end);
+		Arrays.sort(sorted);
+		double dcg = 0;
+		for (int r = 0; r < sorted.length && r < NDCG_DEPTH; r++) {
+			dcg += gain(sorted[sorted.length - 1 - r]) * discount(r);
+		}
+		return dcg;
+	}
+
+	private Integer[] rankByScore(int start, int end) {
+		Integer[] ranking = new Integer[end - start];
+		for (int d = start; d < end; d++) {
+			ranking[d - start] = d;
+		}
+		Arrays.sort(ranking, new java.util.Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(scores[b], scores[a]);
+			}
+		});
+		return ranking;
+	}
+
+	private double meanNdcg() {
+		double sum = 0;
+		int numQueries = 0;
+		for (int q = 0; q + 1 < queryStart.length; q++) {
+			double idealDcg = idealDcg(queryStart[q], queryStart[q + 1]);
+			if (idealDcg <= 0) {
+				continue;
+			}
+			Integer[] ranking = rankByScore(queryStart[q], queryStart[q + 1]);
+			double dcg = 0;
+			for (int r = 0; r < ranking.length && r < NDCG_DEPTH; r++) {
+				dcg += gain(relValues[ranking[r]]) * discount(r);
+			}
+			sum += dcg / idealDcg;
+			numQueries++;
+		}
+		return (numQueries == 0) ? 0 : sum / numQueries;
+	}
+
+	//  --------------- Public interface -------------------------------
+
+	/**
+	 * Read a feature vector file in either format.
+	 * @param file an SVM-light text file, or a binary file
+	 * @param binary true if file is a {@link FeatureVectorFile}
+	 * @return the feature vectors, in file order
+	 * @throws IOException Error reading the file.
+	 */
+	static List<FeatureValue> readFeatureVectors(File file, boolean binary) throws IOException {
+		if (!binary) {
+			return FeatureVectorFile.readSvmLight(file, FeatureValue.numOfFeatureVectors);
+		}
+		FeatureVectorFile in = new FeatureVectorFile(file);
+		List<FeatureValue> fvList = new ArrayList<FeatureValue>(in.size());
+		for (int i = 0; i < in.size(); i++) {
+			fvList.add(in.getFeatureValue(i));
+		}
+		return fvList;
+	}
+
+	/**
+	 * Train a model and save it.
+	 * @param trainingFile training feature vectors
+	 * @param binary true if trainingFile is a binary feature vector file
+	 * @param modelFile where to write the model
+	 * @throws Exception Error reading or writing, or in a training thread.
+	 */
+	public static void learn(File trainingFile, boolean binary, File modelFile) throws Exception {
+		if (numLeaves < 2 || numLeaves > 64) {
+			throw new IllegalArgumentException("letor:lambdaMartLeaves must be between 2 and 64.");
+		}
+		List<FeatureValue> fvList = readFeatureVectors(trainingFile, binary);
+		LambdaMart trainer = new LambdaMart(fvList, FeatureValue.numOfFeatureVectors);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		try {
+			saveModel(modelFile, trainer.train(executor), trainer.numFeatures);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Score feature vectors with a saved model, writing one score per
+	 * line in file order, like svm_rank_classify.
+	 * @param testingFile feature vectors to score
+	 * @param binary true if testingFile is a binary feature vector file
+	 * @param modelFile a model written by {@link #learn}
+	 * @param scoresFile where to write the scores
+	 * @throws IOException Error reading or writing.
+	 */
+	public static void classify(File testingFile, boolean binary, File modelFile, File scoresFile)
+			throws IOException {
+		List<FeatureValue> fvList = readFeatureVectors(testingFile, binary);
+		QuickScorer scorer = loadModel(modelFile);
+		double[][] docs = new double[fvList.size()][];
+		for (int i = 0; i < docs.length; i++) {
+			docs[i] = fvList.get(i).featureVector;
+		}
+		double[] docScores = scorer.score(docs);
+		BufferedWriter out = new BufferedWriter(new FileWriter(scoresFile), 1 << 16);
+		try {
+			for (double score : docScores) {
+				out.write(score + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Model file: a header line "LambdaMART numFeatures numTrees",
+	 * then one tree per line in {@link RegressionTree#toString} form.
+	 */
+	private static void saveModel(File modelFile, List<RegressionTree> trees, int numFeatures)
+			throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(modelFile));
+		try {
+			out.write(MODEL_HEADER + " " + numFeatures + " " + trees.size() + "\n");
+			for (RegressionTree tree : trees) {
+				out.write(tree.toString() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param modelFile a model written by {@link #learn}
+	 * @return a scorer for the model
+	 * @throws IOException Error reading the model.
+	 */
+	public static QuickScorer loadModel(File modelFile) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(modelFile));
+		try {
+			String[] header = in.readLine().trim().split("\\s+");
+			if (!header[0].equals(MODEL_HEADER)) {
+				throw new IOException(modelFile + " is not a LambdaMART model.");
+			}
+			int numFeatures = Integer.parseInt(header[1]);
+			int count = Integer.parseInt(header[2]);
+			List<RegressionTree> trees = new ArrayList<RegressionTree>(count);
+			for (int t = 0; t < count; t++) {
+				trees.add(RegressionTree.parse(in.readLine()));
+			}
+			return new QuickScorer(trees, numFeatures);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory map of a file of any size.  A MappedByteBuffer
+ * is limited to 2GB, so the file is mapped as chunks of 2^CHUNK_BITS
+ * bytes, and values are read at long offsets.  Each chunk overlaps the
+ * next one by 8 bytes, so a value of up to 8 bytes that starts in a
+ * chunk is entirely in it.
+ */
+public class MappedFile {
+
+	private static final int CHUNK_BITS = 30;
+	private static final int OVERLAP = 8;
+
+	private final MappedByteBuffer[] chunks;
+	private final int chunkBits;
+	private final long chunkMask;
+	private final long size;
+
+	/**
+	 * Map a file.  The map stays valid after the channel is closed.
+	 * @param channel the file's channel
+	 * @throws IOException Error mapping the file.
+	 */
+	public MappedFile(FileChannel channel) throws IOException {
+		this(channel, CHUNK_BITS);
+	}
+
+	MappedFile(FileChannel channel, int chunkBits) throws IOException {
+		this.size = channel.size();
+		this.chunkBits = chunkBits;
+		this.chunkMask = (1L << chunkBits) - 1;
+		this.chunks = new MappedByteBuffer[(int) Math.max(1, (this.size + this.chunkMask) >>> chunkBits)];
+		for (int i = 0; i < this.chunks.length; i++) {
+			long start = (long) i << chunkBits;
+			long length = Math.min(this.size - start, (1L << chunkBits) + OVERLAP);
+			this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, length));
+		}
+	}
+
+	/**
+	 * @return the file's length in bytes
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * Read a value.
+	 * @param offset the value's offset in the file
+	 * @return the value
+	 */
+	public byte get(long offset) {
+		return this.chunks[(int) (offset >>> this.chunkBits)].get((int) (offset & this.chunkMask));
+	}
+
+	public short getShort(long offset) {
+		return this.chunks[(int) (offset >>> this.chunkBits)].getShort((int) (offset & this.chunkMask));
+	}
+
+	public char getChar(long offset) {
+		return this.chunks[(int) (offset >>> this.chunkBits)].getChar((int) (offset & this.chunkMask));
+	}
+
+	public int getInt(long offset) {
+		return this.chunks[(int) (offset >>> this.chunkBits)].getInt((int) (offset & this.chunkMask));
+	}
+
+	public long getLong(long offset) {
+		return this.chunks[(int) (offset >>> this.chunkBits)].getLong((int) (offset & this.chunkMask));
+	}
+
+	public float getFloat(long offset) {
+		return this.chunks[(int) (offset >>> this.chunkBits)].getFloat((int) (offset & this.chunkMask));
+	}
+
+	public double getDouble(long offset) {
+		return this.chunks[(int) (offset >>> this.chunkBits)].getDouble((int) (offset & this.chunkMask));
+	}
+
+	/**
+	 * Read bytes, which may span chunks.
+	 * @param offset the offset of the first byte
+	 * @param bytes where to put the bytes
+	 */
+	public void get(long offset, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = get(offset + i);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Loads a PageRank file ("externalDocid TAB score" per line) into a
+ * float array indexed by internal docid.
+ * <p>
+ * External ids are resolved in bulk with {@link Idx#getInternalDocids},
+ * and the resulting array is cached in a sidecar file of the index
+ * ({@link Idx#getSidecarFile}) that is named for the PageRank file's
+ * path, because the docids belong to the index.  The cache records the
+ * size and modification time of the PageRank file and the index
+ * fingerprint, and it is rebuilt when any of them changes.
+ */
+public class PageRankLoader {
+
+	private static final int MAGIC = 0x50524b31;	// "PRK1"
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8;
+
+	/**
+	 * @param pageRankFileName the PageRank file
+	 * @return PageRank scores indexed by internal docid; 0 for documents
+	 *         that are not in the PageRank file
+	 * @throws IOException Error reading the PageRank file or the index.
+	 */
+	public static float[] load(String pageRankFileName) throws IOException {
+		File file = new File(pageRankFileName);
+		String cacheName = "pagerank-" + Integer.toHexString(file.getAbsolutePath().hashCode()) + ".bin";
+
+		float[] pageRank = readCache(file, Idx.getSidecarFile(cacheName));
+		if (pageRank != null) {
+			return pageRank;
+		}
+
+		pageRank = parse(file);
+		writeCache(file, cacheName, pageRank);
+		return pageRank;
+	}
+
+	/**
+	 * Parse the PageRank file and resolve its external ids.
+	 */
+	private static float[] parse(File file) throws IOException {
+		ArrayList<String> externalIds = new ArrayList<String>();
+		ArrayList<Float> scores = new ArrayList<Float>();
+		BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 20);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab < 0) {
+					continue;
+				}
+				int end = line.indexOf('\t', tab + 1);
+				if (end < 0) {
+					end = line.length();
+				}
+				externalIds.add(line.substring(0, tab));
+				scores.add(Float.parseFloat(line.substring(tab + 1, end)));
+			}
+		} finally {
+			reader.close();
+		}
+
+		int[] docids = Idx.getInternalDocids(externalIds.toArray(new String[externalIds.size()]));
+		float[] pageRank = new float[Idx.getMaxDoc()];
+		for (int i = 0; i < docids.length; i++) {
+			if (docids[i] >= 0) {	// simply ignore it when externalDocid is not in the collection
+				pageRank[docids[i]] = scores.get(i);
+			}
+		}
+		return pageRank;
+	}
+
+	/**
+	 * @return the cached array, or null if the cache is missing or stale
+	 */
+	private static float[] readCache(File file, File cacheFile) throws IOException {
+		if (!cacheFile.canRead()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_BYTES) {
+				return null;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int maxDoc = Idx.getMaxDoc();
+			if (buffer.getInt() != MAGIC
+					|| buffer.getInt() != maxDoc
+					|| buffer.getLong() != Idx.getIndexFingerprint()
+					|| buffer.getLong() != file.length()
+					|| buffer.getLong() != file.lastModified()
+					|| channel.size() != HEADER_BYTES + 4L * maxDoc) {
+				return null;
+			}
+			float[] pageRank = new float[maxDoc];
+			buffer.asFloatBuffer().get(pageRank);
+			return pageRank;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeCache(File file, String cacheName, float[] pageRank) {
+		File cacheFile = Idx.getSidecarFile(cacheName);
+		try {
+			cacheFile = Idx.createSidecarFile(cacheName);
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(cacheFile), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(pageRank.length);
+				out.writeLong(Idx.getIndexFingerprint());
+				out.writeLong(file.length());
+				out.writeLong(file.lastModified());
+				for (float score : pageRank) {
+					out.writeFloat(score);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// The cache is only an optimization.
+			System.err.println("Warning: unable to write " + cacheFile + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Computes the LeToR text features (5-16: BM25, Indri and term overlap
+ * for the body, title, url and inlink fields) for a set of candidate
+ * documents in one document-at-a-time pass over the query terms'
+ * postings in each field.  Each posting list is advanced (skip-to)
+ * directly to the candidate docids, so no term vectors are decoded.
+ * <p>
+ * The formulas are the same as FeatureValue's term vector versions; a
+ * field that is empty in a document yields NaN for its three features.
+ */
+public class PostingsFeatureScorer {
+
+	/**
+	 * The fields, in feature order: field i covers features 5+3i .. 7+3i.
+	 */
+	static final String[] FIELDS = { "body", "title", "url", "inlink" };
+
+	/**
+	 * @param fi a feature id
+	 * @return true if fi is computed by this class
+	 */
+	public static boolean isTextFeature(int fi) {
+		return fi >= 5 && fi <= 16;
+	}
+
+	/**
+	 * Compute the text features of several documents.
+	 * @param docids internal docids, sorted in increasing order
+	 * @param stemQuery the stemmed query terms
+	 * @param wanted wanted[fi - 1] is true for each feature to compute
+	 * @return scores[i][fi - 1] is feature fi of docids[i]; unwanted
+	 *         features are 0
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static double[][] score(int[] docids, String[] stemQuery, boolean[] wanted) throws IOException {
+
+		double[][] scores = new double[docids.length][FeatureValue.numOfFeatureVectors];
+		Bits liveDocs = MultiFields.getLiveDocs(Idx.INDEXREADER);
+
+		//  Duplicate query terms count once per occurrence, as in the
+		//  term vector versions, but their postings are read only once.
+
+		String[] terms = uniqueTerms(stemQuery);
+		int[] termIndex = new int[stemQuery.length];
+		for (int q = 0; q < stemQuery.length; q++) {
+			termIndex[q] = Arrays.asList(terms).indexOf(stemQuery[q]);
+		}
+
+		for (int f = 0; f < FIELDS.length; f++) {
+			String field = FIELDS[f];
+			int bm25 = 4 + 3 * f;		// 0-based feature indexes
+			int indri = bm25 + 1;
+			int overlap = bm25 + 2;
+			if (!(wanted[bm25] || wanted[indri] || wanted[overlap])) {
+				continue;
+			}
+
+			//  One pass per posting list, skipping to each candidate.
+
+			int[][] tf = new int[terms.length][docids.length];
+			long[] df = new long[terms.length];
+			long[] ctf = new long[terms.length];
+			for (int t = 0; t < terms.length; t++) {
+				BytesRef bytes = new BytesRef(terms[t]);
+				Term term = new Term(field, bytes);
+				df[t] = Idx.getDocFreq(term);
+				ctf[t] = Idx.getTotalTermFreq(term);
+				if (df[t] < 1) {
+					continue;
+				}
+				DocsEnum postings = MultiFields.getTermDocsEnum(Idx.INDEXREADER, liveDocs,
+						field, bytes, DocsEnum.FLAG_FREQS);
+				if (postings == null) {
+					continue;
+				}
+				int current = -1;
+				for (int i = 0; i < docids.length; i++) {
+					if (current < docids[i]) {
+						current = postings.advance(docids[i]);
+					}
+					if (current == DocIdSetIterator.NO_MORE_DOCS) {
+						break;
+					}
+					if (current == docids[i]) {
+						tf[t][i] = postings.freq();
+					}
+				}
+			}
+
+			//  Collection statistics are the same for every document.
+
+			double N = Idx.getNumDocs();
+			double avgdocLen = Idx.getSumOfFieldLengths(field) / Idx.getDocCount(field);
+			double lengthC = Idx.getSumOfFieldLengths(field);
+			double k1 = RetrievalModelBM25.k1;
+			double b = RetrievalModelBM25.b;
+			double k3 = RetrievalModelBM25.k3;
+			int qtf = 1;
+			double userWeight = (k3 + 1) * qtf / (k3 + qtf);
+			double mu = RetrievalModelIndri.mu;
+			double lambda = RetrievalModelIndri.lambda;
+			double[] lengthNorms = Idx.hasQuantizedLengths() ? BM25LengthNorms.get(field, avgdocLen) : null;
+			double[] idf = new double[terms.length];
+			double[] pMLE = new double[terms.length];
+			for (int t = 0; t < terms.length; t++) {
+				idf[t] = Math.max(0, Math.log((N - df[t] + 0.5) / (df[t] + 0.5)));
+				pMLE[t] = ctf[t] / lengthC;
+			}
+
+			for (int i = 0; i < docids.length; i++) {
+				int docLen = Idx.getFieldLength(field, docids[i]);
+				if (docLen == 0) {
+					scores[i][bm25] = wanted[bm25] ? Double.NaN : 0;
+					scores[i][indri] = wanted[indri] ? Double.NaN : 0;
+					scores[i][overlap] = wanted[overlap] ? Double.NaN : 0;
+					continue;
+				}
+				double lengthNorm = (lengthNorms != null)
+						? lengthNorms[Idx.getFieldLengthCode(field, docids[i])]
+						: k1 * ((1 - b) + b * docLen / avgdocLen);
+				double bm25Score = 0;
+				double indriScore = 1;
+				boolean hasMatch = false;
+				int numOfExistQuery = 0;
+				for (int q = 0; q < stemQuery.length; q++) {
+					int t = termIndex[q];
+					int tf_i = tf[t][i];
+					if (tf_i > 0) {
+						hasMatch = true;
+						numOfExistQuery++;
+						double tfWeight = tf_i / (tf_i + lengthNorm);
+						bm25Score += idf[t] * tfWeight * userWeight;
+					}
+					double docScore = ((1 - lambda) * (tf_i + mu * pMLE[t]) / (docLen + mu)) + lambda * pMLE[t];
+					indriScore *= Math.pow(docScore, 1.0 / (double) stemQuery.length);
+				}
+				if (wanted[bm25]) {
+					scores[i][bm25] = bm25Score;
+				}
+				if (wanted[indri]) {
+					scores[i][indri] = hasMatch ? indriScore : 0;
+				}
+				if (wanted[overlap]) {
+					scores[i][overlap] = (double) numOfExistQuery / (double) stemQuery.length;
+				}
+			}
+		}
+		return scores;
+	}
+
+	private static String[] uniqueTerms(String[] stemQuery) {
+		String[] unique = new String[stemQuery.length];
+		int n = 0;
+		for (String stem : stemQuery) {
+			boolean seen = false;
+			for (int i = 0; i < n; i++) {
+				if (unique[i].equals(stem)) {
+					seen = true;
+					break;
+				}
+			}
+			if (!seen) {
+				unique[n++] = stem;
+			}
+		}
+		return Arrays.copyOf(unique, n);
+	}
+}
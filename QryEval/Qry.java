@@ -25,11 +25,26 @@ import java.util.*;
  *    while (q.docIteratorHasMatch (r)) {
  *      int docid = q.docIteratorGetMatch ();
  *      double score = ((QrySop) q).getScore (model);
- *      System.out.println ("internal docid: " + docid + ", score: " score);
+ *      System.out.println ("internal docid: " + docid + ", score: " + score);
  *      q.docIteratorAdvancePast (docid);
  *    }
  *  </pre>
  *  <p>
+ *  The same query can be evaluated a block of documents at a time,
+ *  which replaces several virtual calls per document and tree level
+ *  with one call per block:
+ *  </p>
+ *  <pre>
+ *    int [] docids = new int [BlockKernels.BLOCK_SIZE];
+ *    double [] scores = new double [BlockKernels.BLOCK_SIZE];
+ *    int n;
+ *
+ *    while ((n = q.docIteratorNextBlock (r, Integer.MAX_VALUE, docids, scores)) > 0) {
+ *      for (int i=0; i&lt;n; i++)
+ *        System.out.println ("internal docid: " + docids[i] + ", score: " + scores[i]);
+ *    }
+ *  </pre>
+ *  <p>
  *  The Qry class defines the iteration interface and provides general
  *  methods that each subclass may override or use.  Note that the 
  *  iteration interface <i>does not</i> conform to the standard Java
@@ -208,6 +223,24 @@ public abstract class Qry {
     this.docIteratorClearMatchCache ();
   }
 
+  /**
+   *  Block-at-a-time iteration.  Copy the iterator's next matches
+   *  below upTo (at most docids.length of them, in increasing order)
+   *  into docids, and their scores into scores, then advance past
+   *  them.  QryIop operators report term frequencies as scores.  A
+   *  caller that mixes this with the one-document-at-a-time protocol
+   *  must call docIteratorHasMatch before docIteratorGetMatch, as
+   *  usual.
+   *  @param r The retrieval model that determines matches and scores
+   *  @param upTo Matches must be less than this internal document id
+   *  @param docids Receives the internal ids of the matches
+   *  @param scores Receives the scores of the matches
+   *  @return The number of matches, or 0 if there are no more below upTo.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public abstract int docIteratorNextBlock (RetrievalModel r, int upTo, int[] docids, double[] scores)
+    throws IOException;
+
   /**
    *  Clear the docIterator's matching docid cache.  The cache should
    *  be cleared whenever a docIterator is advanced.
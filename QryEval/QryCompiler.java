@@ -0,0 +1,645 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles an initialized query tree into a tree of scorers that are
+ * specialized for one retrieval model.  The Qry operators decide what
+ * to do for each document with instanceof tests on the retrieval
+ * model, walk their arguments with ArrayList iterators and casts, and
+ * unbox weights from an ArrayList&lt;Double&gt;.  A compiled scorer
+ * does none of that: each one is a final class that implements a
+ * single operator of a single model, with its children in an array,
+ * its weights in a double[], and its document-independent statistics
+ * computed once.  Inverted lists are copied into int arrays.
+ * <p>
+ * Compiled scorers produce the same scores as the Qry tree, computed
+ * with the same expressions in the same order.  Only BM25 (#SUM of
+ * #SCORE) and Indri (#AND, #WAND, #WSUM of #SCORE) are compiled;
+ * {@link #compile} returns null for any other query, and the caller
+ * should evaluate the Qry tree instead.
+ * <p>
+ * With Indri:logSpace, Indri #AND and #WAND sum their children's
+ * weighted log scores, and exp is applied only where an absolute
+ * score is needed (the root, or the argument of a #WSUM).
+ * <p>
+ * Scorers can also be evaluated a block of up to
+ * {@link BlockKernels#BLOCK_SIZE} documents at a time
+ * ({@link Scorer#nextBlock}).  An operator whose arguments are all
+ * terms gathers the candidates' docids, term frequencies and field
+ * lengths into primitive arrays, then scores each term for the whole
+ * block with a {@link BlockKernels} loop.
+ */
+public class QryCompiler {
+
+	/**
+	 * The docid of an exhausted scorer.
+	 */
+	public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+	/**
+	 * A compiled query operator.  Document-at-a-time iteration works
+	 * like Qry's: docid() is the smallest docid that the scorer
+	 * matches, and advancePast moves beyond a docid.
+	 */
+	public static abstract class Scorer {
+
+		/**
+		 * @return the current match, or NO_MORE_DOCS
+		 */
+		public abstract int docid();
+
+		/**
+		 * Advance beyond docid.
+		 * @param docid an internal docid
+		 * @return the new current match, or NO_MORE_DOCS
+		 */
+		public abstract int advancePast(int docid);
+
+		/**
+		 * @param docid the current match
+		 * @return the score of docid
+		 * @throws IOException Error accessing the Lucene index.
+		 */
+		public abstract double score(int docid) throws IOException;
+
+		/**
+		 * @param docid a document that this scorer doesn't match
+		 * @return the score of docid (Indri smoothing), or 0
+		 * @throws IOException Error accessing the Lucene index.
+		 */
+		public double defaultScore(int docid) throws IOException {
+			return 0;
+		}
+
+		/**
+		 * @param docid the current match
+		 * @return the log of score(docid)
+		 * @throws IOException Error accessing the Lucene index.
+		 */
+		public double logScore(int docid) throws IOException {
+			return Math.log(score(docid));
+		}
+
+		/**
+		 * @param docid a document that this scorer doesn't match
+		 * @return the log of defaultScore(docid)
+		 * @throws IOException Error accessing the Lucene index.
+		 */
+		public double logDefaultScore(int docid) throws IOException {
+			return Math.log(defaultScore(docid));
+		}
+
+		/**
+		 * Score the next block of matches, and advance past them.
+		 * @param docids receives the matching docids, in increasing order
+		 * @param scores receives their scores
+		 * @return the number of matches, 0 when the scorer is exhausted
+		 * @throws IOException Error accessing the Lucene index.
+		 */
+		public int nextBlock(int[] docids, double[] scores) throws IOException {
+			int n = 0;
+			for (int docid = docid(); n < docids.length && docid != NO_MORE_DOCS; docid = advancePast(docid)) {
+				docids[n] = docid;
+				scores[n] = score(docid);
+				n++;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Compile an initialized query.
+	 * @param q the optimized, initialized query
+	 * @param r the retrieval model
+	 * @return the compiled query, or null if it can't be compiled
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static Scorer compile(Qry q, RetrievalModel r) throws IOException {
+		if (r instanceof RetrievalModelBM25) {
+			// Precomputed weights are read by QrySopScore.
+			return RetrievalModelBM25.weightStore ? null : compileBM25(q);
+		} else if (r instanceof RetrievalModelIndri) {
+			return compileIndri(q);
+		}
+		return null;
+	}
+
+	private static Scorer compileBM25(Qry q) throws IOException {
+		if (q instanceof QrySopScore) {
+			return new BM25Term((QryIop) q.args.get(0));
+		} else if (q instanceof QrySopSum) {
+			Scorer[] children = compileArgs(q, true);
+			return (children == null) ? null : new BM25Sum(children);
+		}
+		return null;
+	}
+
+	private static Scorer compileIndri(Qry q) throws IOException {
+		if (q instanceof QrySopScore) {
+			return new IndriTerm((QryIop) q.args.get(0));
+		}
+		if (!(q instanceof QrySopAnd || q instanceof QrySopWand || q instanceof QrySopWsum)) {
+			return null;
+		}
+		Scorer[] children = compileArgs(q, false);
+		if (children == null) {
+			return null;
+		}
+		if (q instanceof QrySopAnd) {
+			return new IndriAnd(children);
+		}
+		QryWSop wq = (QryWSop) q;
+		double[] weights = new double[children.length];
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = wq.weights.get(i) / wq.weightSum;
+		}
+		return (q instanceof QrySopWand) ? new IndriWand(children, weights) : new IndriWsum(children, weights);
+	}
+
+	private static Scorer[] compileArgs(Qry q, boolean bm25) throws IOException {
+		Scorer[] children = new Scorer[q.args.size()];
+		for (int i = 0; i < children.length; i++) {
+			children[i] = bm25 ? compileBM25(q.args.get(i)) : compileIndri(q.args.get(i));
+			if (children[i] == null) {
+				return null;
+			}
+		}
+		return children;
+	}
+
+	//  --------------- Scorers ----------------------------------------
+
+	/**
+	 * A #SCORE leaf: a copy of its argument's inverted list.
+	 */
+	private static abstract class Term extends Scorer {
+		final String field;
+		final int[] docids;
+		final int[] tfs;
+		int index = 0;
+
+		Term(QryIop q) {
+			this.field = q.getField();
+			InvList list = q.invertedList;
+			this.docids = new int[list.df];
+			this.tfs = new int[list.df];
+			for (int i = 0; i < list.df; i++) {
+				InvList.DocPosting posting = list.postings.get(i);
+				docids[i] = posting.docid;
+				tfs[i] = posting.tf;
+			}
+		}
+
+		@Override
+		public final int docid() {
+			return (index < docids.length) ? docids[index] : NO_MORE_DOCS;
+		}
+
+		@Override
+		public final int advancePast(int docid) {
+			while (index < docids.length && docids[index] <= docid) {
+				index++;
+			}
+			return docid();
+		}
+	}
+
+	/**
+	 * An operator whose matches are the union of its children's.
+	 */
+	private static abstract class Union extends Scorer {
+		final Scorer[] children;
+		int docid;
+
+		//  Block evaluation state, for operators whose children are all
+		//  terms (otherwise terms is null).  fieldOf[c] indexes the
+		//  field of terms[c] in fields.
+
+		final Term[] terms;
+		final String[] fields;
+		final int[] fieldOf;
+		double[][] tfBlock;
+		double[][] lengthBlock;
+		double[] termScores;
+
+		Union(Scorer[] children) {
+			this.children = children;
+			this.docid = minDocid();
+
+			boolean allTerms = true;
+			for (Scorer child : children) {
+				allTerms &= child instanceof Term;
+			}
+			if (allTerms) {
+				this.terms = Arrays.copyOf(children, children.length, Term[].class);
+				List<String> fieldList = new ArrayList<String>();
+				this.fieldOf = new int[terms.length];
+				for (int c = 0; c < terms.length; c++) {
+					if (!fieldList.contains(terms[c].field)) {
+						fieldList.add(terms[c].field);
+					}
+					fieldOf[c] = fieldList.indexOf(terms[c].field);
+				}
+				this.fields = fieldList.toArray(new String[fieldList.size()]);
+			} else {
+				this.terms = null;
+				this.fields = null;
+				this.fieldOf = null;
+			}
+		}
+
+		/**
+		 * Collect the next block of matches into docids, the children's
+		 * term frequencies into tfBlock (0 for a child that doesn't
+		 * match) and the field lengths into lengthBlock, advancing past
+		 * them.  Only valid if terms isn't null.
+		 * @return the number of matches
+		 */
+		final int gatherBlock(int[] docids) throws IOException {
+			if (tfBlock == null) {
+				tfBlock = new double[terms.length][BlockKernels.BLOCK_SIZE];
+				lengthBlock = new double[fields.length][BlockKernels.BLOCK_SIZE];
+				termScores = new double[BlockKernels.BLOCK_SIZE];
+			}
+			int max = Math.min(docids.length, BlockKernels.BLOCK_SIZE);
+			int n = 0;
+			while (n < max && docid != NO_MORE_DOCS) {
+				int d = docid;
+				int next = NO_MORE_DOCS;
+				docids[n] = d;
+				for (int c = 0; c < terms.length; c++) {
+					Term t = terms[c];
+					int i = t.index;
+					if (i < t.docids.length && t.docids[i] == d) {
+						tfBlock[c][n] = t.tfs[i];
+						t.index = ++i;
+					} else {
+						tfBlock[c][n] = 0;
+					}
+					if (i < t.docids.length && t.docids[i] < next) {
+						next = t.docids[i];
+					}
+				}
+				docid = next;
+				n++;
+			}
+			for (int f = 0; f < fields.length; f++) {
+				double[] lengths = lengthBlock[f];
+				for (int i = 0; i < n; i++) {
+					lengths[i] = Idx.getFieldLength(fields[f], docids[i]);
+				}
+			}
+			return n;
+		}
+
+		/**
+		 * Score the next block of matches of an Indri operator whose
+		 * children are all IndriTerms, combining the children's scores in
+		 * the same order as the one-document-at-a-time code.
+		 * @param weights the children's weights (or exponents)
+		 * @param geometric true for #AND and #WAND, false for #WSUM
+		 * @param logSpace true to combine a geometric mean in log space
+		 * @return the number of matches
+		 */
+		final int indriBlock(int[] docids, double[] scores, double[] weights, boolean geometric, boolean logSpace)
+				throws IOException {
+			int n = gatherBlock(docids);
+			double[] s = termScores;
+			Arrays.fill(scores, 0, n, (geometric && !logSpace) ? 1.0 : 0);
+			for (int c = 0; c < terms.length; c++) {
+				((IndriTerm) terms[c]).indri.scoreBlock(n, tfBlock[c], lengthBlock[fieldOf[c]], s);
+				double w = weights[c];
+				if (!geometric) {
+					BlockKernels.weightedSum(n, s, w, scores);
+				} else if (logSpace) {
+					for (int i = 0; i < n; i++) {
+						scores[i] += w * Math.log(s[i]);
+					}
+				} else {
+					for (int i = 0; i < n; i++) {
+						scores[i] *= Math.pow(s[i], w);
+					}
+				}
+			}
+			if (geometric && logSpace) {
+				for (int i = 0; i < n; i++) {
+					scores[i] = Math.exp(scores[i]);
+				}
+			}
+			return n;
+		}
+
+		private int minDocid() {
+			int min = NO_MORE_DOCS;
+			for (Scorer child : children) {
+				min = Math.min(min, child.docid());
+			}
+			return min;
+		}
+
+		@Override
+		public final int docid() {
+			return docid;
+		}
+
+		@Override
+		public final int advancePast(int target) {
+			int min = NO_MORE_DOCS;
+			for (Scorer child : children) {
+				int d = child.docid();
+				if (d <= target) {
+					d = child.advancePast(target);
+				}
+				min = Math.min(min, d);
+			}
+			docid = min;
+			return min;
+		}
+	}
+
+	private static final class BM25Term extends Term {
+		final double idf;
+		final double avgdocLen;
+		final double userWeight;
+		final double k1 = RetrievalModelBM25.k1;
+		final double b = RetrievalModelBM25.b;
+		final double[] lengthNorms;
+
+		BM25Term(QryIop q) throws IOException {
+			super(q);
+			double N = Idx.getNumDocs();
+			double df = q.getDf();
+			double qtf = 1;
+			double k3 = RetrievalModelBM25.k3;
+			this.idf = Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
+			this.avgdocLen = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
+			this.userWeight = (k3 + 1) * qtf / (k3 + qtf);
+			this.lengthNorms = Idx.hasQuantizedLengths() ? BM25LengthNorms.get(field, avgdocLen) : null;
+		}
+
+		@Override
+		public double score(int docid) throws IOException {
+			double tf = tfs[index];
+			double tfWeight;
+			if (lengthNorms != null) {
+				tfWeight = tf / (tf + lengthNorms[Idx.getFieldLengthCode(field, docid)]);
+			} else {
+				double docLen = Idx.getFieldLength(field, docid);
+				tfWeight = tf / (tf + k1 * ((1 - b) + b * docLen / avgdocLen));
+			}
+			return idf * tfWeight * userWeight;
+		}
+	}
+
+	private static final class BM25Sum extends Union {
+		double[][] normBlock;
+
+		BM25Sum(Scorer[] children) {
+			super(children);
+		}
+
+		@Override
+		public int nextBlock(int[] docids, double[] scores) throws IOException {
+			if (terms == null) {
+				return super.nextBlock(docids, scores);
+			}
+			int n = gatherBlock(docids);
+			if (normBlock == null) {
+				normBlock = new double[fields.length][BlockKernels.BLOCK_SIZE];
+			}
+
+			//  Length normalization depends only on the field, so it is
+			//  computed once per field.  Terms that match nothing are
+			//  skipped; the others need a positive norm for tf 0 to add 0,
+			//  which clamping to MIN_VALUE provides without changing any
+			//  score.
+
+			boolean[] done = new boolean[fields.length];
+			for (int c = 0; c < terms.length; c++) {
+				BM25Term t = (BM25Term) terms[c];
+				int f = fieldOf[c];
+				if (done[f] || t.docids.length == 0) {
+					continue;
+				}
+				double[] norms = normBlock[f];
+				if (t.lengthNorms != null) {
+					for (int i = 0; i < n; i++) {
+						norms[i] = t.lengthNorms[Idx.getFieldLengthCode(t.field, docids[i])];
+					}
+				} else {
+					BlockKernels.bm25Norms(n, lengthBlock[f], t.k1, t.b, t.avgdocLen, norms);
+				}
+				for (int i = 0; i < n; i++) {
+					norms[i] = Math.max(norms[i], Double.MIN_VALUE);
+				}
+				done[f] = true;
+			}
+
+			Arrays.fill(scores, 0, n, 0);
+			for (int c = 0; c < terms.length; c++) {
+				BM25Term t = (BM25Term) terms[c];
+				if (t.docids.length > 0) {
+					BlockKernels.bm25Accumulate(n, tfBlock[c], normBlock[fieldOf[c]], t.idf, t.userWeight, scores);
+				}
+			}
+			return n;
+		}
+
+		@Override
+		public double score(int docid) throws IOException {
+			double sum = 0;
+			for (Scorer child : children) {
+				if (child.docid() == docid) {
+					sum += child.score(docid);
+				}
+			}
+			return sum;
+		}
+	}
+
+	private static final class IndriTerm extends Term {
+		final IndriTermScorer indri;
+
+		IndriTerm(QryIop q) throws IOException {
+			super(q);
+			this.indri = new IndriTermScorer(field, q.getCtf());
+		}
+
+		@Override
+		public double score(int docid) throws IOException {
+			return indri.score(tfs[index], docid);
+		}
+
+		@Override
+		public double defaultScore(int docid) throws IOException {
+			return indri.defaultScore(docid);
+		}
+
+		@Override
+		public double logDefaultScore(int docid) throws IOException {
+			return indri.logDefaultScore(docid);
+		}
+	}
+
+	private static final class IndriAnd extends Union {
+		final double exponent;
+		final boolean logSpace = RetrievalModelIndri.logSpace;
+		double[] exponents;
+
+		IndriAnd(Scorer[] children) {
+			super(children);
+			this.exponent = 1.0 / (double) children.length;
+		}
+
+		@Override
+		public int nextBlock(int[] docids, double[] scores) throws IOException {
+			if (terms == null) {
+				return super.nextBlock(docids, scores);
+			}
+			if (exponents == null) {
+				exponents = new double[terms.length];
+				Arrays.fill(exponents, exponent);
+			}
+			return indriBlock(docids, scores, exponents, true, logSpace);
+		}
+
+		@Override
+		public double score(int docid) throws IOException {
+			if (logSpace) {
+				return Math.exp(logScore(docid));
+			}
+			double score = 1.0;
+			for (Scorer child : children) {
+				double s = (child.docid() == docid) ? child.score(docid) : child.defaultScore(docid);
+				score *= Math.pow(s, exponent);
+			}
+			return score;
+		}
+
+		@Override
+		public double defaultScore(int docid) throws IOException {
+			if (logSpace) {
+				return Math.exp(logDefaultScore(docid));
+			}
+			double score = 1.0;
+			for (Scorer child : children) {
+				score *= Math.pow(child.defaultScore(docid), exponent);
+			}
+			return score;
+		}
+
+		@Override
+		public double logScore(int docid) throws IOException {
+			double logScore = 0;
+			for (Scorer child : children) {
+				logScore += exponent * ((child.docid() == docid) ? child.logScore(docid) : child.logDefaultScore(docid));
+			}
+			return logScore;
+		}
+
+		@Override
+		public double logDefaultScore(int docid) throws IOException {
+			double logScore = 0;
+			for (Scorer child : children) {
+				logScore += exponent * child.logDefaultScore(docid);
+			}
+			return logScore;
+		}
+	}
+
+	private static final class IndriWand extends Union {
+		final double[] weights;
+		final boolean logSpace = RetrievalModelIndri.logSpace;
+
+		IndriWand(Scorer[] children, double[] weights) {
+			super(children);
+			this.weights = weights;
+		}
+
+		@Override
+		public int nextBlock(int[] docids, double[] scores) throws IOException {
+			return (terms == null) ? super.nextBlock(docids, scores) : indriBlock(docids, scores, weights, true, logSpace);
+		}
+
+		@Override
+		public double score(int docid) throws IOException {
+			if (logSpace) {
+				return Math.exp(logScore(docid));
+			}
+			double score = 1.0;
+			for (int i = 0; i < children.length; i++) {
+				Scorer child = children[i];
+				double s = (child.docid() == docid) ? child.score(docid) : child.defaultScore(docid);
+				score *= Math.pow(s, weights[i]);
+			}
+			return score;
+		}
+
+		@Override
+		public double defaultScore(int docid) throws IOException {
+			if (logSpace) {
+				return Math.exp(logDefaultScore(docid));
+			}
+			double score = 1.0;
+			for (int i = 0; i < children.length; i++) {
+				score *= Math.pow(children[i].defaultScore(docid), weights[i]);
+			}
+			return score;
+		}
+
+		@Override
+		public double logScore(int docid) throws IOException {
+			double logScore = 0;
+			for (int i = 0; i < children.length; i++) {
+				Scorer child = children[i];
+				logScore += weights[i] * ((child.docid() == docid) ? child.logScore(docid) : child.logDefaultScore(docid));
+			}
+			return logScore;
+		}
+
+		@Override
+		public double logDefaultScore(int docid) throws IOException {
+			double logScore = 0;
+			for (int i = 0; i < children.length; i++) {
+				logScore += weights[i] * children[i].logDefaultScore(docid);
+			}
+			return logScore;
+		}
+	}
+
+	private static final class IndriWsum extends Union {
+		final double[] weights;
+
+		IndriWsum(Scorer[] children, double[] weights) {
+			super(children);
+			this.weights = weights;
+		}
+
+		@Override
+		public int nextBlock(int[] docids, double[] scores) throws IOException {
+			return (terms == null) ? super.nextBlock(docids, scores) : indriBlock(docids, scores, weights, false, false);
+		}
+
+		@Override
+		public double score(int docid) throws IOException {
+			double score = 0;
+			for (int i = 0; i < children.length; i++) {
+				Scorer child = children[i];
+				double s = (child.docid() == docid) ? child.score(docid) : child.defaultScore(docid);
+				score += weights[i] * s;
+			}
+			return score;
+		}
+
+		@Override
+		public double defaultScore(int docid) throws IOException {
+			double score = 0;
+			for (int i = 0; i < children.length; i++) {
+				score += weights[i] * children[i].defaultScore(docid);
+			}
+			return score;
+		}
+	}
+}
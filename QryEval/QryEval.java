@@ -83,6 +83,42 @@ public class QryEval {
 	private static Map<String, ScoreList> initialRankingList;
 	private static String expandedQuery;
 	
+	// evaluate BM25 and Indri queries with compiled scorers (QryCompiler)
+	private static boolean compileQueries = true;
+
+	// evaluate UnrankedBoolean queries with docid sets (BooleanSetEvaluator)
+	private static boolean booleanSets = true;
+
+	// per-query budgets (QueryBudget); 0 means no limit
+	private static long queryTimeoutMs = 0;
+	private static long maxScoredDocs = 0;
+
+	// evaluate BM25 queries in shared-scan batches (BatchEvaluator); 0 means no batches
+	private static int batchSize = 0;
+
+	// two-stage cascade (CascadeEvaluator): first stage (bm25 or boolean) and its depth
+	private static String cascadeFirstStage = null;
+	private static int cascadeDepth = 1000;
+
+	// term-at-a-time evaluation of short BM25 queries (TaatEvaluator): auto, true or false
+	private static String taat = "auto";
+	private static int taatMaxTerms = 16;
+	private static int taatMaxAccumulators = 0;
+	private static String taatPruning = "continue";
+
+	// score-at-a-time evaluation of BM25 queries from the impact index (SaatEvaluator)
+	private static boolean impactIndex = false;
+	private static long impactMaxPostings = 0;
+
+	// tiered evaluation on a tiered index (TieredEvaluator): tier 1 matches that skip the remainder
+	private static boolean tiers = false;
+	private static int tiersK = 100;
+
+	// evaluation with a static prior on an index ordered by static score (StaticOrderEvaluator)
+	private static boolean staticOrder = false;
+	private static double staticOrderWeight = 1.0;
+	private static int staticOrderK = 100;
+	
 	// fields for LetoR
 	private static boolean useLeToR = false;
 	private static String trainingQueryFileName;
@@ -103,6 +139,11 @@ public class QryEval {
 	private static ArrayList<ScoreList> testResults = new ArrayList<ScoreList>();
 	private static final int numOfFeatureVectors = 18;
 	private static String trecEvalOutputPath;
+	private static boolean binaryFeatureVectors = false;
+	private static boolean parallelStages = Runtime.getRuntime().availableProcessors() > 1;
+	private static boolean binaryFeatureVectorsFloat = false;
+	private static boolean useLambdaMart = false;
+	private static int rerankDepth = 100;
 	private static class TestScoreDocPair {
 		String externalDocid;
 		double score;
@@ -140,27 +181,15 @@ public class QryEval {
 		//  Configure query lexical processing to match index lexical
 		//  processing.  Initialize the index and retrieval model.
 
-		ANALYZER.setLowercase(true);
-		ANALYZER.setStopwordRemoval(true);
-		ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+		initializeAnalyzer();
 
-		Idx.initialize (parameters.get ("indexPath"));
+		Idx.initialize (parameters.get ("indexPath"),
+				Boolean.parseBoolean (parameters.get ("quantizedLengths")));
 		
 		
 		RetrievalModel model = initializeRetrievalModel (parameters);
 		if (useLeToR) {
-			System.out.println("generating Training Data...");
-			generateTrainingData();
-			
-			System.out.println("Training Data...");
-			doTraining();
-			
-			System.out.println("generating Testing Data...");
-			generateTestingData();
-			
-			System.out.println("Re-ranking Test Data...");
-			reRankingTestData();
-			
+			runLeToRPipeline();
 		} else {
 			//  Perform experiments.
 			if (fb && fbInitialRankingFile != null) {
@@ -174,16 +203,66 @@ public class QryEval {
 		System.out.println ("Time:  " + timer);
 	}
 
+	/**
+	 * Run the LeToR pipeline.  Test-set retrieval and feature generation
+	 * don't depend on the trained model, so on multi-core machines they
+	 * run concurrently with training data generation and training
+	 * (letor:parallelStages overrides this); the stages join at reranking.
+	 * @throws Exception
+	 */
+	private static void runLeToRPipeline() throws Exception {
+		StageScheduler scheduler = new StageScheduler();
+		scheduler.addStage("generateTrainingData", new StageScheduler.Stage() {
+			public void run() throws Exception {
+				System.out.println("generating Training Data...");
+				generateTrainingData();
+			}
+		});
+		scheduler.addStage("doTraining", new StageScheduler.Stage() {
+			public void run() throws Exception {
+				System.out.println("Training Data...");
+				doTraining();
+			}
+		}, "generateTrainingData");
+		scheduler.addStage("generateTestingData", new StageScheduler.Stage() {
+			public void run() throws Exception {
+				System.out.println("generating Testing Data...");
+				generateTestingData();
+			}
+		});
+		scheduler.addStage("reRankingTestData", new StageScheduler.Stage() {
+			public void run() throws Exception {
+				System.out.println("Re-ranking Test Data...");
+				reRankingTestData();
+			}
+		}, "doTraining", "generateTestingData");
+
+		scheduler.run(parallelStages ? 2 : 1);
+		for (String line : scheduler.report()) {
+			System.out.println(line);
+		}
+	}
+
 	private static void reRankingTestData() throws Exception {
-		Process process = Runtime.getRuntime().exec(
-				new String[] { svmRankClassifyPath, testingFeatureVectorsFileName,
-						svmRankModelFileName, testingDocumentScoresFileName });
-		process.waitFor();
+		if (useLambdaMart) {
+			LambdaMart.classify(binaryFeatureVectors ? binaryFeatureVectorsFile(testingFeatureVectorsFileName)
+						: new File(testingFeatureVectorsFileName),
+					binaryFeatureVectors, new File(svmRankModelFileName), new File(testingDocumentScoresFileName));
+		} else {
+			if (binaryFeatureVectors) {
+				FeatureVectorFile.toSvmLight(binaryFeatureVectorsFile(testingFeatureVectorsFileName),
+						new File(testingFeatureVectorsFileName));
+			}
+			Process process = Runtime.getRuntime().exec(
+					new String[] { svmRankClassifyPath, testingFeatureVectorsFileName,
+							svmRankModelFileName, testingDocumentScoresFileName });
+			process.waitFor();
+		}
 		
 		BufferedReader docScoreReader = new BufferedReader(new FileReader(testingDocumentScoresFileName));
 		FileWriter outputWriter = new FileWriter(new File(trecEvalOutputPath));
 		for (ScoreList result : testResults) {
-			int numOfDoc = Math.min(result.size(), 100);
+			int numOfDoc = Math.min(result.size(), rerankDepth);
 			ArrayList<TestScoreDocPair> listOfOneQuery = new ArrayList<TestScoreDocPair>();
 			String qid = result.qid;
 			
@@ -206,7 +285,7 @@ public class QryEval {
 				}
 			});
 			
-			for (int j = 0; j < numOfDoc; j++) {
+			for (int j = 0; j < Math.min(numOfDoc, 100); j++) {
 				String externalDocid = listOfOneQuery.get(j).externalDocid;
 				
 				outputWriter.write(qid + "\tQ0\t" + externalDocid
@@ -221,7 +300,14 @@ public class QryEval {
 		BufferedReader input = null;
 		String qLine = null;
 		RetrievalModel model = new RetrievalModelBM25(BM25_k1, BM25_b, BM25_k3);
-		FileWriter testingFeatureWriter = new FileWriter(new File(testingFeatureVectorsFileName));
+		BufferedWriter testingFeatureWriter = null;
+		FeatureVectorFile.Writer testingFeatureBinaryWriter = null;
+		if (binaryFeatureVectors) {
+			testingFeatureBinaryWriter = new FeatureVectorFile.Writer(
+					binaryFeatureVectorsFile(testingFeatureVectorsFileName), binaryFeatureVectorsFloat);
+		} else {
+			testingFeatureWriter = new BufferedWriter(new FileWriter(new File(testingFeatureVectorsFileName)));
+		}
 		try {
 			input = new BufferedReader(new FileReader(queryFilePath));
 			while ((qLine = input.readLine()) != null) {
@@ -247,29 +333,20 @@ public class QryEval {
   					String[] stemQuery = tokenizeQuery(query);
   					result.sort();
   					testResults.add(result);
-  					List<FeatureValue> fvList = new ArrayList<FeatureValue>();
-  					double[] maxVector = FeatureValue.maxDouble();
-  					double[] minVector = FeatureValue.minDouble();
-  					int numOfDoc = Math.min(result.size(), 100);
+  					int numOfDoc = Math.min(result.size(), rerankDepth);
+  					int[] docids = new int[numOfDoc];
+  					int[] relValues = new int[numOfDoc];
+  					String[] externalDocids = new String[numOfDoc];
   					for (int i = 0; i < numOfDoc; i++) {
-  						int docid = result.getDocid(i);
-  						String externalDocid = Idx.getExternalDocid(docid);
-  						double[] featureVector = FeatureValue.creatNewFeatureValue(docid, stemQuery);
-  						FeatureValue featureValue = new FeatureValue(0, qid, featureVector, externalDocid);
-  						fvList.add(featureValue);
-  						FeatureValue.updateMinAndMax(minVector, maxVector, featureVector);
+  						docids[i] = result.getDocid(i);
+  						externalDocids[i] = Idx.getExternalDocid(docids[i]);
   					}
-  					FeatureValue.normalizeFeatureValues(fvList, maxVector, minVector);
-  					Collections.sort(fvList, new Comparator<FeatureValue>() {
-  						@Override
-  						public int compare(FeatureValue fv1, FeatureValue fv2) {
-  							return fv1.externalDocid.compareTo(fv2.externalDocid);
-  						}
-  					});
-  					writeToFile(testingFeatureWriter, fvList);
+  					List<FeatureValue> fvList = createFeatureValues(qid, stemQuery, docids, relValues, externalDocids);
+  					writeFeatureVectors(testingFeatureWriter, testingFeatureBinaryWriter, fvList);
   				}
   			}
-			testingFeatureWriter.close();
+			closeFeatureVectorWriters(testingFeatureWriter, testingFeatureBinaryWriter);
+			FeatureCache.save();
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} finally {
@@ -277,7 +354,17 @@ public class QryEval {
 		}
 	}
 
-	private static void doTraining() throws IOException, InterruptedException {
+	private static void doTraining() throws Exception {
+		if (useLambdaMart) {
+			LambdaMart.learn(binaryFeatureVectors ? binaryFeatureVectorsFile(trainingFeatureVectorsFileName)
+						: new File(trainingFeatureVectorsFileName),
+					binaryFeatureVectors, new File(svmRankModelFileName));
+			return;
+		}
+		if (binaryFeatureVectors) {
+			FeatureVectorFile.toSvmLight(binaryFeatureVectorsFile(trainingFeatureVectorsFileName),
+					new File(trainingFeatureVectorsFileName));
+		}
 		Process process = Runtime.getRuntime().exec(
 				new String[] { svmRankLearnPath, "-c", String.valueOf(svmRankParamC),
 									trainingFeatureVectorsFileName, svmRankModelFileName });
@@ -290,30 +377,24 @@ public class QryEval {
 		File trainingFeatureVectorsFile = new File(trainingFeatureVectorsFileName);
 		Scanner trainingQueryScanner = new Scanner(trainingQueryFile);
 		Scanner trainingQrelsScanner = new Scanner(trainingQrelsFile);
-		FileWriter trainingFeatureWriter = new FileWriter(trainingFeatureVectorsFile);
+		BufferedWriter trainingFeatureWriter = null;
+		FeatureVectorFile.Writer trainingFeatureBinaryWriter = null;
+		if (binaryFeatureVectors) {
+			trainingFeatureBinaryWriter = new FeatureVectorFile.Writer(
+					binaryFeatureVectorsFile(trainingFeatureVectorsFileName), binaryFeatureVectorsFloat);
+		} else {
+			trainingFeatureWriter = new BufferedWriter(new FileWriter(trainingFeatureVectorsFile));
+		}
 		String lineOfTrainingQrels = null;
 		while (trainingQueryScanner.hasNextLine()) {
-			List<FeatureValue> fvList = new ArrayList<FeatureValue>();
-			double[] maxVector = FeatureValue.maxDouble();
-			double[] minVector = FeatureValue.minDouble();
 			String lineOfTrainingQuery = trainingQueryScanner.nextLine();
 			String qid = lineOfTrainingQuery.split(":")[0];
 			String qryString = lineOfTrainingQuery.split(":")[1];
+			List<String> qrels = new ArrayList<String>();
 			
 			// check if the current line matches, same as if block of qid matched
 			if (lineOfTrainingQrels != null && lineOfTrainingQrels.startsWith(qid + " ")) {
-				String externalDocid = lineOfTrainingQrels.split(" ")[2];
-				try {
-					int docid = Idx.getInternalDocid(externalDocid);
-					int relValue = Integer.parseInt(lineOfTrainingQrels.split(" ")[3]);
-					String[] stemQuery = tokenizeQuery(qryString);
-					double[] featureVector = FeatureValue.creatNewFeatureValue(docid, stemQuery);
-					FeatureValue featureValue = new FeatureValue(relValue, qid, featureVector, externalDocid);
-					fvList.add(featureValue);
-					FeatureValue.updateMinAndMax(minVector, maxVector, featureVector);
-				} catch (Exception e) {
-					//System.out.println("externalDocid not found: " + externalDocid);
-				}
+				qrels.add(lineOfTrainingQrels);
 			}
 			
 			// check if the next lines match
@@ -322,34 +403,75 @@ public class QryEval {
 				lineOfTrainingQrels = trainingQrelsScanner.nextLine();
 
 				if (lineOfTrainingQrels.startsWith(qid + " ")) {	// qid matched
-					String externalDocid = lineOfTrainingQrels.split(" ")[2];
-					try {
-						int docid = Idx.getInternalDocid(externalDocid);
-						int relValue = Integer.parseInt(lineOfTrainingQrels.split(" ")[3]);
-						String[] stemQuery = tokenizeQuery(qryString);
-						double[] featureVector = FeatureValue.creatNewFeatureValue(docid, stemQuery);
-						FeatureValue featureValue = new FeatureValue(relValue, qid, featureVector, externalDocid);
-						fvList.add(featureValue);
-						FeatureValue.updateMinAndMax(minVector, maxVector, featureVector);
-					} catch (Exception e) {
-						//System.out.println("externalDocid not found: " + externalDocid);
-					}
+					qrels.add(lineOfTrainingQrels);
 				} else { // qid not matched
 					break;
 				}
 			}
-			FeatureValue.normalizeFeatureValues(fvList, maxVector, minVector);
-			Collections.sort(fvList, new Comparator<FeatureValue>() {
-				@Override
-				public int compare(FeatureValue fv1, FeatureValue fv2) {
-					return fv1.externalDocid.compareTo(fv2.externalDocid);
+
+			// resolve all of the judged documents at once, and skip the
+			// ones that are not in the index
+			String[] judgedDocids = new String[qrels.size()];
+			for (int i = 0; i < judgedDocids.length; i++) {
+				judgedDocids[i] = qrels.get(i).split(" ")[2];
+			}
+			int[] internalDocids = Idx.getInternalDocids(judgedDocids);
+			int numOfDoc = 0;
+			for (int docid : internalDocids) {
+				if (docid >= 0) {
+					numOfDoc++;
 				}
-			});
-			writeToFile(trainingFeatureWriter, fvList);
+			}
+			int[] docids = new int[numOfDoc];
+			int[] relValues = new int[numOfDoc];
+			String[] externalDocids = new String[numOfDoc];
+			for (int i = 0, j = 0; i < judgedDocids.length; i++) {
+				if (internalDocids[i] >= 0) {
+					docids[j] = internalDocids[i];
+					relValues[j] = Integer.parseInt(qrels.get(i).split(" ")[3]);
+					externalDocids[j] = judgedDocids[i];
+					j++;
+				}
+			}
+			String[] stemQuery = tokenizeQuery(qryString);
+			List<FeatureValue> fvList = createFeatureValues(qid, stemQuery, docids, relValues, externalDocids);
+			writeFeatureVectors(trainingFeatureWriter, trainingFeatureBinaryWriter, fvList);
 		}
 		trainingQueryScanner.close();
 		trainingQrelsScanner.close();
-		trainingFeatureWriter.close();
+		closeFeatureVectorWriters(trainingFeatureWriter, trainingFeatureBinaryWriter);
+		FeatureCache.save();
+	}
+
+	/**
+	 * Create the normalized FeatureValues of one query's documents,
+	 * sorted by external docid.
+	 * @param qid
+	 * @param stemQuery the stemmed query
+	 * @param docids internal docids
+	 * @param relValues relevance values, aligned with docids
+	 * @param externalDocids external docids, aligned with docids
+	 * @return the feature vectors
+	 * @throws IOException
+	 */
+	private static List<FeatureValue> createFeatureValues(String qid, String[] stemQuery, int[] docids,
+			int[] relValues, String[] externalDocids) throws IOException {
+		List<FeatureValue> fvList = new ArrayList<FeatureValue>();
+		double[] maxVector = FeatureValue.maxDouble();
+		double[] minVector = FeatureValue.minDouble();
+		double[][] featureVectors = FeatureValue.creatNewFeatureValues(qid, docids, stemQuery);
+		for (int i = 0; i < docids.length; i++) {
+			fvList.add(new FeatureValue(relValues[i], qid, featureVectors[i], externalDocids[i]));
+			FeatureValue.updateMinAndMax(minVector, maxVector, featureVectors[i]);
+		}
+		FeatureValue.normalizeFeatureValues(fvList, maxVector, minVector);
+		Collections.sort(fvList, new Comparator<FeatureValue>() {
+			@Override
+			public int compare(FeatureValue fv1, FeatureValue fv2) {
+				return fv1.externalDocid.compareTo(fv2.externalDocid);
+			}
+		});
+		return fvList;
 	}
 
 	/**
@@ -358,23 +480,64 @@ public class QryEval {
 	 * @param fvList contains all FeatureValue with the same qid
 	 * @throws IOException
 	 */
-	private static void writeToFile(FileWriter writer, List<FeatureValue> fvList) throws IOException {
+	private static void writeToFile(BufferedWriter writer, List<FeatureValue> fvList) throws IOException {
+		StringBuilder line = new StringBuilder();
 		for (FeatureValue fv : fvList) {
-			writer.write(fv.relValue + " qid:" + fv.qid + " ");
-			for (int i = 1; i <= numOfFeatureVectors; i++) {
-				writer.write(i + ":" + fv.featureVector[i - 1] + " ");
-			}
-			writer.write("# " + fv.externalDocid + "\n");
+			FeatureVectorFile.writeSvmLightLine(writer, fv, line);
+		}
+	}
+
+	/**
+	 * Write FeatureValue of one qid to whichever writer is in use.
+	 * @param textWriter SVM-light writer, or null
+	 * @param binaryWriter binary writer, or null
+	 * @param fvList contains all FeatureValue with the same qid
+	 * @throws IOException
+	 */
+	private static void writeFeatureVectors(BufferedWriter textWriter, FeatureVectorFile.Writer binaryWriter,
+			List<FeatureValue> fvList) throws IOException {
+		if (binaryWriter != null) {
+			binaryWriter.addAll(fvList);
+		} else {
+			writeToFile(textWriter, fvList);
+		}
+	}
+
+	private static void closeFeatureVectorWriters(BufferedWriter textWriter, FeatureVectorFile.Writer binaryWriter)
+			throws IOException {
+		if (binaryWriter != null) {
+			binaryWriter.close();
+		} else {
+			textWriter.close();
 		}
 	}
 
+	/**
+	 * The binary feature vector file that accompanies an SVM-light file.
+	 * @param featureVectorsFileName the SVM-light file name
+	 * @return the binary file
+	 */
+	private static File binaryFeatureVectorsFile(String featureVectorsFileName) {
+		return new File(featureVectorsFileName + ".fvb");
+	}
+
+	/**
+	 * Configure query lexical processing to match index lexical
+	 * processing.
+	 */
+	static void initializeAnalyzer() {
+		ANALYZER.setLowercase(true);
+		ANALYZER.setStopwordRemoval(true);
+		ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+	}
+
 	/**
 	 * Allocate the retrieval model and initialize it using parameters
 	 * from the parameter file.
 	 * @return The initialized retrieval model
 	 * @throws Exception 
 	 */
-	private static RetrievalModel initializeRetrievalModel (Map<String, String> parameters) throws Exception {
+	static RetrievalModel initializeRetrievalModel (Map<String, String> parameters) throws Exception {
 
 		RetrievalModel model = null;
 		String modelString = parameters.get ("retrievalAlgorithm").toLowerCase();
@@ -393,6 +556,12 @@ public class QryEval {
 	    	} else {
 	    		model = new RetrievalModelBM25();
 	    	}
+	    	if (parameters.containsKey("BM25:weightStore")) {
+	    		RetrievalModelBM25.weightStore = Boolean.parseBoolean(parameters.get("BM25:weightStore"));
+	    	}
+	    	if (RetrievalModelBM25.weightStore && !BM25WeightStore.prepare()) {
+	    		RetrievalModelBM25.weightStore = false;	// score from tf and document lengths
+	    	}
 	    } else if (modelString.equals("indri")) {
 	    	if (parameters.containsKey("Indri:mu")
 	    			&& parameters.containsKey("Indri:lambda")) {
@@ -401,6 +570,13 @@ public class QryEval {
 	    	} else {
 	    		model = new RetrievalModelIndri();
 	    	}
+	    	if (parameters.containsKey("Indri:logSpace")) {
+	    		RetrievalModelIndri.logSpace = Boolean.parseBoolean(parameters.get("Indri:logSpace"));
+	    	}
+	    	if (parameters.containsKey("Indri:defaultScoreTableSize")) {
+	    		RetrievalModelIndri.defaultScoreTableSize =
+	    				Integer.parseInt(parameters.get("Indri:defaultScoreTableSize"));
+	    	}
 	    } else if (modelString.equals("letor")) {
 	    	useLeToR  = true;
 	    	trainingQueryFileName = parameters.get("letor:trainingQueryFile");
@@ -410,10 +586,21 @@ public class QryEval {
 	    	FeatureValue.featureDisable = parseFeatureDisable(parameters.get("letor:featureDisable"));
 	    	svmRankLearnPath = parameters.get("letor:svmRankLearnPath");
 	    	svmRankClassifyPath = parameters.get("letor:svmRankClassifyPath");
-	    	svmRankParamC = Double.parseDouble(parameters.get("letor:svmRankParamC"));
+	    	if (parameters.containsKey("letor:svmRankParamC")) {
+	    		svmRankParamC = Double.parseDouble(parameters.get("letor:svmRankParamC"));
+	    	}
 	    	svmRankModelFileName = parameters.get("letor:svmRankModelFile");
 	    	testingFeatureVectorsFileName = parameters.get("letor:testingFeatureVectorsFile");
 	    	testingDocumentScoresFileName = parameters.get("letor:testingDocumentScores");
+	    	if (parameters.containsKey("letor:featureVectorFormat")) {
+	    		String format = parameters.get("letor:featureVectorFormat").toLowerCase();
+	    		if (format.equals("binary") || format.equals("binary32")) {
+	    			binaryFeatureVectors = true;
+	    			binaryFeatureVectorsFloat = format.equals("binary32");
+	    		} else if (!format.equals("text")) {
+	    			throw new IllegalArgumentException("Unknown letor:featureVectorFormat " + format);
+	    		}
+	    	}
 	    	queryFilePath = parameters.get("queryFilePath");
 	    	trecEvalOutputPath = parameters.get("trecEvalOutputPath");
 	    	BM25_k1 = parameters.get("BM25:k_1");
@@ -423,6 +610,49 @@ public class QryEval {
 	    	Indri_mu = parameters.get("Indri:mu");
 	    	Indri_lambda = parameters.get("Indri:lambda");
 	    	new RetrievalModelIndri(Indri_mu, Indri_lambda);
+	    	if (parameters.containsKey("letor:postingsFeatures")) {
+	    		FeatureValue.usePostingsForTextFeatures = Boolean.parseBoolean(parameters.get("letor:postingsFeatures"));
+	    	}
+	    	if (parameters.containsKey("letor:learner")) {
+	    		String learner = parameters.get("letor:learner").toLowerCase();
+	    		if (learner.equals("lambdamart")) {
+	    			useLambdaMart = true;
+	    		} else if (!learner.equals("svmrank")) {
+	    			throw new IllegalArgumentException("Unknown letor:learner " + learner);
+	    		}
+	    	}
+	    	if (parameters.containsKey("letor:lambdaMartTrees")) {
+	    		LambdaMart.numTrees = Integer.parseInt(parameters.get("letor:lambdaMartTrees"));
+	    	}
+	    	if (parameters.containsKey("letor:lambdaMartLeaves")) {
+	    		LambdaMart.numLeaves = Integer.parseInt(parameters.get("letor:lambdaMartLeaves"));
+	    	}
+	    	if (parameters.containsKey("letor:lambdaMartLearningRate")) {
+	    		LambdaMart.learningRate = Double.parseDouble(parameters.get("letor:lambdaMartLearningRate"));
+	    	}
+	    	if (parameters.containsKey("letor:lambdaMartMinLeafSupport")) {
+	    		LambdaMart.minLeafSupport = Integer.parseInt(parameters.get("letor:lambdaMartMinLeafSupport"));
+	    	}
+	    	if (parameters.containsKey("letor:lambdaMartThreads")) {
+	    		LambdaMart.numThreads = Integer.parseInt(parameters.get("letor:lambdaMartThreads"));
+	    	}
+	    	if (parameters.containsKey("letor:rerankDepth")) {
+	    		rerankDepth = Integer.parseInt(parameters.get("letor:rerankDepth"));
+	    	}
+	    	if (parameters.containsKey("letor:parallelStages")) {
+	    		parallelStages = Boolean.parseBoolean(parameters.get("letor:parallelStages"));
+	    	}
+	    	if (parameters.containsKey("letor:featureCacheDir")) {
+	    		File pageRankFile = new File(parameters.get("letor:pageRankFile"));
+	    		CollectionStats stats = Idx.getCollectionStats();
+	    		FeatureCache.initialize(parameters.get("letor:featureCacheDir"),
+	    				"BM25:" + RetrievalModelBM25.k1 + "," + RetrievalModelBM25.b + "," + RetrievalModelBM25.k3
+	    				+ " Indri:" + RetrievalModelIndri.mu + "," + RetrievalModelIndri.lambda
+	    				+ " pageRank:" + pageRankFile.getAbsolutePath() + "," + pageRankFile.length()
+	    				+ "," + pageRankFile.lastModified()
+	    				+ " quantizedLengths:" + Idx.hasQuantizedLengths()
+	    				+ " collectionStats:" + ((stats != null) ? stats.getSource() : "none"));
+	    	}
 	    } else {
 	      throw new IllegalArgumentException
 	        ("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
@@ -481,10 +711,10 @@ public class QryEval {
 			return null;
 		}
 
-		//  Only SCORE operators can have a single argument.  Other
-		//  query operators that have just one argument are deleted.
+		//  Only SCORE and filter operators can have a single argument.
+		//  Other query operators that have just one argument are deleted.
 
-		if ((q.args.size() == 1) && (!(q instanceof QrySopScore))) {
+		if ((q.args.size() == 1) && (!(q instanceof QrySopScore)) && (!(q instanceof QrySopFilter))) {
 			q = q.args.get (0);
 		}
 		return q;
@@ -588,6 +818,12 @@ public class QryEval {
 	    		currentOp = new QryIopNear(distance);
 	    		currentOp.setDisplayName (token);
 	    		opStack.push(currentOp);
+	    	} else if (token.toLowerCase().startsWith("#filter/")
+	    			|| token.toLowerCase().startsWith("#exclude/")) {
+	    		String spec = token.substring(token.indexOf('/') + 1).toLowerCase();
+	    		currentOp = new QrySopFilter(spec, token.toLowerCase().startsWith("#exclude/"));
+	    		currentOp.setDisplayName (token);
+	    		opStack.push(currentOp);
 	    	} else if (token.toLowerCase().startsWith("#window")) {
 	    		if (model instanceof RetrievalModelBM25
 	    				|| model instanceof RetrievalModelIndri) {
@@ -837,12 +1073,73 @@ public class QryEval {
   			ScoreList r = new ScoreList ();
       
   			if (q.args.size () > 0) {		// Ignore empty queries
+  				if (booleanSets && model instanceof RetrievalModelUnrankedBoolean) {
+  					RoaringDocidSet matches = BooleanSetEvaluator.evaluate(q, model);
+  					if (matches != null) {
+  						// printResults writes the top 100; feedback needs the top fbDocs
+  						return BooleanSetEvaluator.toScoreList(matches, fb ? Math.max(100, fbDocs) : 100);
+  					}
+  				}
+  				if (cascadeFirstStage != null && !(model instanceof RetrievalModelUnrankedBoolean)) {
+  					ScoreList candidates = CascadeEvaluator.firstStage(q, cascadeFirstStage, cascadeDepth);
+  					CascadeEvaluator.restrictTerms(q, candidates);
+  					q.initialize (model);
+  					if (QueryBudget.approximate(q, model)) {
+  						CascadeEvaluator.restrictTerms(q, candidates);
+  						q.initialize (model);
+  					}
+  					return CascadeEvaluator.rerank(q, model, candidates);
+  				}
+  				if (tiers) {
+  					TieredIndex index = TieredIndex.get();
+  					if (index != null) {
+  						return TieredEvaluator.evaluate(q, model, index, tiersK);
+  					}
+  				}
+  				if (staticOrder) {
+  					StaticScores scores = StaticScores.get();
+  					if (scores != null) {
+  						return StaticOrderEvaluator.evaluate(q, model, scores, staticOrderWeight, staticOrderK);
+  					}
+  				}
+  				if (impactIndex && model instanceof RetrievalModelBM25 && BatchEvaluator.leaves(q) != null) {
+  					ImpactIndex index = ImpactIndex.get();
+  					if (index != null) {
+  						return SaatEvaluator.evaluate(q, index, impactMaxPostings);
+  					}
+  				}
+  				if (model instanceof RetrievalModelBM25 && !taat.equals("false")
+  						&& TaatEvaluator.choose(q, taat.equals("true") ? Integer.MAX_VALUE : taatMaxTerms)) {
+  					return TaatEvaluator.evaluate(q, taatMaxAccumulators, taatPruning);
+  				}
   				q.initialize (model);
-  				while (q.docIteratorHasMatch (model)) {
-  					int docid = q.docIteratorGetMatch ();
-  					double score = ((QrySop) q).getScore (model);
-  					r.add (docid, score);
-  					q.docIteratorAdvancePast (docid);
+  				if (QueryBudget.approximate(q, model)) {
+  					q.initialize (model);	// partial lists would give wrong statistics
+  				}
+  				QryCompiler.Scorer scorer = compileQueries ? QryCompiler.compile(q, model) : null;
+  				if (scorer != null) {
+  					int[] docids = new int[BlockKernels.BLOCK_SIZE];
+  					double[] scores = new double[BlockKernels.BLOCK_SIZE];
+  					for (int n = scorer.nextBlock(docids, scores); n > 0; n = scorer.nextBlock(docids, scores)) {
+  						for (int i = 0; i < n; i++) {
+  							r.add (docids[i], scores[i]);
+  						}
+  						if (QueryBudget.scored(n)) {
+  							break;
+  						}
+  					}
+  				} else {
+  					int[] docids = new int[BlockKernels.BLOCK_SIZE];
+  					double[] scores = new double[BlockKernels.BLOCK_SIZE];
+  					int n;
+  					while ((n = q.docIteratorNextBlock (model, Integer.MAX_VALUE, docids, scores)) > 0) {
+  						for (int i = 0; i < n; i++) {
+  							r.add (docids[i], scores[i]);
+  						}
+  						if (QueryBudget.scored(n)) {
+  							break;
+  						}
+  					}
   				}
   			}
   			
@@ -860,6 +1157,12 @@ public class QryEval {
   	 */
   	static void processQueryFile(Map<String, String> parameters, RetrievalModel model) throws IOException {
 
+  		if (batchSize > 1 && model instanceof RetrievalModelBM25 && !RetrievalModelBM25.weightStore
+  				&& !fb && !tiers && !staticOrder && queryTimeoutMs <= 0 && maxScoredDocs <= 0) {
+  			processQueryFileBatches(parameters, model);
+  			return;
+  		}
+
   		BufferedReader input = null;
   		File file = new File(parameters.get("trecEvalOutputPath"));
   		BufferedWriter output = new BufferedWriter(new FileWriter(file));
@@ -872,6 +1175,16 @@ public class QryEval {
   			if (fb) {
   				writer = new BufferedWriter(new FileWriter(new File(fbExpansionQueryFile)));
   			}
+
+  			//  With a query budget, truncated queries are listed in a
+  			//  report next to the output file: qid, reason, ms, scored docs,
+  			//  and whether the results are partial (the documents scored
+  			//  before the budget ran out) or approximate (QueryBudget.approximate).
+
+  			BufferedWriter truncatedWriter = null;
+  			if (queryTimeoutMs > 0 || maxScoredDocs > 0) {
+  				truncatedWriter = new BufferedWriter(new FileWriter(new File(file.getPath() + ".truncated")));
+  			}
   			//  Each pass of the loop processes one query.
 
   			while ((qLine = input.readLine()) != null) {
@@ -890,7 +1203,21 @@ public class QryEval {
 
   				ScoreList r = null;
 
-  				r = processQuery(qid, query, model);
+  				QueryBudget.start(queryTimeoutMs, maxScoredDocs);
+  				String truncated = null;
+  				try {
+  					r = processQuery(qid, query, model);
+  				} finally {
+  					QueryBudget budget = QueryBudget.current();
+  					truncated = QueryBudget.finish();
+  					if (truncated != null) {
+  						String kind = budget.isApproximate() ? "approximate" : "partial";
+  						System.out.println("    truncated (" + truncated + ", " + kind + ") after "
+  								+ budget.getScoredDocs() + " documents");
+  						truncatedWriter.write(qid + "\t" + truncated + "\t" + Math.round(budget.getElapsedMs())
+  								+ "\t" + budget.getScoredDocs() + "\t" + kind + "\n");
+  					}
+  				}
 
   				if (fb) {
               		writer.write(qid + ": " + expandedQuery + "\n");
@@ -904,6 +1231,15 @@ public class QryEval {
   			if (writer != null) {
   				writer.close();
   			}
+  			if (truncatedWriter != null) {
+  				truncatedWriter.close();
+  			}
+  			if (tiers && TieredEvaluator.report() != null) {
+  				System.out.println(TieredEvaluator.report());
+  			}
+  			if (staticOrder && StaticOrderEvaluator.report() != null) {
+  				System.out.println(StaticOrderEvaluator.report());
+  			}
   		} catch (IOException ex) {
   			ex.printStackTrace();
   		} finally {
@@ -915,6 +1251,80 @@ public class QryEval {
 
 
 
+  	/**
+  	 * Process the query file in batches of batchSize queries.  The
+  	 * queries of a batch that BatchEvaluator supports are evaluated
+  	 * together, with one scan of each posting list that they share;
+  	 * the others are evaluated one at a time.  Results are written in
+  	 * query file order.
+  	 * @param parameters
+  	 * @param model the BM25 retrieval model
+  	 * @throws IOException Error accessing the Lucene index.
+  	 */
+  	private static void processQueryFileBatches(Map<String, String> parameters, RetrievalModel model)
+  			throws IOException {
+
+  		BufferedReader input = new BufferedReader(new FileReader(parameters.get("queryFilePath")));
+  		BufferedWriter output = new BufferedWriter(new FileWriter(new File(parameters.get("trecEvalOutputPath"))));
+  		try {
+  			List<String> qids = new ArrayList<String>();
+  			List<Qry> queries = new ArrayList<Qry>();
+  			String qLine = null;
+
+  			//  Each pass of the loop reads one query; full batches (and
+  			//  the last one) are evaluated.
+
+  			do {
+  				qLine = input.readLine();
+  				if (qLine != null) {
+  					int d = qLine.indexOf(':');
+
+  					if (d < 0) {
+  						throw new IllegalArgumentException ("Syntax error:  Missing ':' in query line.");
+  					}
+
+  					System.out.println("Query " + qLine);
+
+  					Qry q = optimizeQuery(parseQuery(qLine.substring(d + 1), model));
+  					System.out.println("    --> " + q);
+  					qids.add(qLine.substring(0, d));
+  					queries.add(q);
+  				}
+  				if (queries.size() >= batchSize || (qLine == null && queries.size() > 0)) {
+  					printMemoryUsage(false);
+  					processBatch(qids, queries, model, output);
+  					qids.clear();
+  					queries.clear();
+  				}
+  			} while (qLine != null);
+  		} finally {
+  			input.close();
+  			output.close();
+  		}
+  	}
+
+  	private static void processBatch(List<String> qids, List<Qry> queries, RetrievalModel model,
+  			BufferedWriter output) throws IOException {
+  		List<Qry> batched = new ArrayList<Qry>();
+  		for (Qry q : queries) {
+  			if (q != null && BatchEvaluator.leaves(q) != null) {
+  				batched.add(q);
+  			}
+  		}
+  		// printResults writes the top 100
+  		ScoreList[] batchResults = BatchEvaluator.evaluate(batched, 100);
+
+  		int b = 0;
+  		for (int i = 0; i < queries.size(); i++) {
+  			Qry q = queries.get(i);
+  			ScoreList r = (q != null && BatchEvaluator.leaves(q) != null)
+  					? batchResults[b++] : processInitialQuery(q, model);
+  			if (r != null) {
+  				printResults(qids.get(i), r, output);
+  			}
+  		}
+  	}
+
 	/**
   	 * Print the query results.
   	 * 
@@ -949,7 +1359,7 @@ public class QryEval {
   	 * processing them.
   	 * @return The parameters, in <key, value> format.
   	 */
-  	private static Map<String, String> readParameterFile (String parameterFileName) throws IOException {
+  	static Map<String, String> readParameterFile (String parameterFileName) throws IOException {
 
   		Map<String, String> parameters = new HashMap<String, String>();
 
@@ -1010,6 +1420,72 @@ public class QryEval {
   				fbInitialRankingFile = parameters.get("fbInitialRankingFile");
   			}
   		}
+
+  		if (parameters.containsKey("compileQueries")) {
+  			compileQueries = Boolean.parseBoolean(parameters.get("compileQueries"));
+  		}
+  		if (parameters.containsKey("booleanSets")) {
+  			booleanSets = Boolean.parseBoolean(parameters.get("booleanSets"));
+  		}
+  		if (parameters.containsKey("queryTimeoutMs")) {
+  			queryTimeoutMs = Long.parseLong(parameters.get("queryTimeoutMs"));
+  		}
+  		if (parameters.containsKey("maxScoredDocs")) {
+  			maxScoredDocs = Long.parseLong(parameters.get("maxScoredDocs"));
+  		}
+  		if (parameters.containsKey("batchSize")) {
+  			batchSize = Integer.parseInt(parameters.get("batchSize"));
+  		}
+  		if (parameters.containsKey("cascade:firstStage")) {
+  			cascadeFirstStage = parameters.get("cascade:firstStage").toLowerCase();
+  			CascadeEvaluator.validate(cascadeFirstStage);
+  		}
+  		if (parameters.containsKey("cascade:depth")) {
+  			cascadeDepth = Integer.parseInt(parameters.get("cascade:depth"));
+  		}
+  		if (parameters.containsKey("taat")) {
+  			taat = parameters.get("taat").toLowerCase();
+  			if (!taat.equals("auto") && !taat.equals("true") && !taat.equals("false")) {
+  				throw new IllegalArgumentException("Unknown taat " + taat);
+  			}
+  		}
+  		if (parameters.containsKey("taat:maxTerms")) {
+  			taatMaxTerms = Integer.parseInt(parameters.get("taat:maxTerms"));
+  		}
+  		if (parameters.containsKey("taat:maxAccumulators")) {
+  			taatMaxAccumulators = Integer.parseInt(parameters.get("taat:maxAccumulators"));
+  		}
+  		if (parameters.containsKey("taat:pruning")) {
+  			taatPruning = parameters.get("taat:pruning").toLowerCase();
+  			TaatEvaluator.validate(taatPruning);
+  		}
+  		if (parameters.containsKey("impactIndex")) {
+  			impactIndex = Boolean.parseBoolean(parameters.get("impactIndex"));
+  		}
+  		if (parameters.containsKey("impactIndex:maxPostings")) {
+  			impactMaxPostings = Long.parseLong(parameters.get("impactIndex:maxPostings"));
+  		}
+  		if (parameters.containsKey("tiers")) {
+  			tiers = Boolean.parseBoolean(parameters.get("tiers"));
+  		}
+  		if (parameters.containsKey("tiers:k")) {
+  			tiersK = Integer.parseInt(parameters.get("tiers:k"));
+  		}
+  		if (parameters.containsKey("staticOrder")) {
+  			staticOrder = Boolean.parseBoolean(parameters.get("staticOrder"));
+  		}
+  		if (parameters.containsKey("staticOrder:weight")) {
+  			staticOrderWeight = Double.parseDouble(parameters.get("staticOrder:weight"));
+  			if (!(staticOrderWeight >= 0)) {
+  				throw new IllegalArgumentException("staticOrder:weight must be at least 0.");
+  			}
+  		}
+  		if (parameters.containsKey("staticOrder:k")) {
+  			staticOrderK = Integer.parseInt(parameters.get("staticOrder:k"));
+  			if (staticOrderK < 1) {
+  				throw new IllegalArgumentException("staticOrder:k must be at least 1.");
+  			}
+  		}
   		return parameters;
   	}
 
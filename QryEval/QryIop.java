@@ -85,10 +85,30 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
+    //  Gallop, then binary search, so that a long skip (e.g., to the
+    //  next candidate of a reranking stage) costs O(log distance).
+
+    int lo = this.docIteratorIndex;
+    int df = this.invertedList.df;
+    int bound = 1;
+
+    while ((lo + bound - 1 < df) &&
+           (this.invertedList.getDocid (lo + bound - 1) < docid)) {
+      lo += bound;
+      bound *= 2;
+    }
+
+    int hi = Math.min (lo + bound - 1, df);
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (this.invertedList.getDocid (mid) < docid)
+        lo = mid + 1;
+      else
+        hi = mid;
     }
+
+    this.docIteratorIndex = lo;
            
     this.locIteratorIndex = 0;
   }
@@ -101,6 +121,36 @@ public abstract class QryIop extends Qry {
     this.docIteratorIndex = this.invertedList.postings.size();
   }
 
+  /**
+   *  Copy the next postings below upTo; the scores are the term
+   *  frequencies.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @param upTo Matches must be less than this internal document id
+   *  @param docids Receives the internal ids of the matches
+   *  @param scores Receives the term frequencies of the matches
+   *  @return The number of matches, or 0 if there are no more below upTo.
+   */
+  public int docIteratorNextBlock (RetrievalModel r, int upTo, int[] docids, double[] scores) {
+
+    int n = 0;
+
+    while ((n < docids.length) &&
+           (this.docIteratorIndex < this.invertedList.df)) {
+      InvList.DocPosting posting = this.invertedList.postings.get (this.docIteratorIndex);
+
+      if (posting.docid >= upTo)
+        break;
+
+      docids[n] = posting.docid;
+      scores[n] = posting.tf;
+      n ++;
+      this.docIteratorIndex ++;
+    }
+
+    this.locIteratorIndex = 0;
+    return n;
+  }
+
   /**
    *  Return the id of the document that the query operator's internal
    *  iterator points to now.  Use dociIteratorHasMatch to determine whether
@@ -112,6 +162,15 @@ public abstract class QryIop extends Qry {
     return this.invertedList.getDocid (this.docIteratorIndex);
   }
 
+  /**
+   *  Return the index of the posting that the docIterator points to
+   *  now, i.e., the number of postings that it has passed.
+   *  @return The posting index.
+   */
+  public int docIteratorGetIndex () {
+    return this.docIteratorIndex;
+  }
+
   /**
    *  Return the postings for the document that the docIterator points to
    *  now, or throw an error if the docIterator doesn't point at a document.
@@ -3,6 +3,9 @@
  */
 import java.io.*;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
@@ -15,6 +18,19 @@ public class QryIopTerm extends QryIop {
 
   private String term;
 
+  /**
+   *  The documents that evaluation is restricted to, or null, and the
+   *  term's collection statistics when the inverted list doesn't have
+   *  all of the term's postings (it is restricted, or the index is
+   *  pruned).
+   */
+  private int[] candidates = null;
+  private int rangeFrom = 0;
+  private int rangeTo = -1;
+  private boolean collectionStats = false;
+  private int collectionDf = 0;
+  private int collectionCtf = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -40,7 +56,83 @@ public class QryIopTerm extends QryIop {
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    this.collectionStats = false;
+    if (this.isRestricted () && ! Idx.INDEXREADER.hasDeletions ()) {
+      Term t = new Term (this.field, new BytesRef (this.term));
+      this.invertedList = (this.candidates != null) ?
+        new InvList(this.term, this.field, this.candidates) :
+        new InvList(this.term, this.field, this.rangeFrom, this.rangeTo);
+      this.collectionDf = Idx.getDocFreq (t);
+      this.collectionCtf = (int) Math.max (0, Idx.getTotalTermFreq (t));
+      this.collectionStats = true;
+    } else {
+      this.candidates = null;
+      this.rangeTo = -1;
+      this.invertedList = new InvList(this.term, this.field);
+      long[] stats = Idx.getOriginalTermStats (this.field, this.term);
+      if (stats != null) {
+        this.collectionDf = (int) stats[0];
+        this.collectionCtf = (int) stats[1];
+        this.collectionStats = true;
+      }
+    }
+  }
+
+  /**
+   *  Restrict evaluation to some documents, e.g., the candidates of a
+   *  reranking stage.  The inverted list has only their postings, but
+   *  getDf and getCtf still return the term's collection statistics,
+   *  so the documents' scores don't change.  Restriction is ignored
+   *  if the index has deleted documents.
+   *  @param docids The documents, in increasing order.
+   */
+  public void restrictTo (int[] docids) {
+    this.candidates = docids;
+    this.rangeTo = -1;
+  }
+
+  /**
+   *  Restrict evaluation to a range of documents, e.g., a tier of a
+   *  tiered index, as restrictTo (int[]) does.
+   *  @param from The first document of the range.
+   *  @param to One more than the last document of the range.
+   */
+  public void restrictTo (int from, int to) {
+    this.candidates = null;
+    this.rangeFrom = from;
+    this.rangeTo = to;
+  }
+
+  /**
+   *  Indicates whether evaluation was restricted to some documents.
+   *  @return True if the inverted list doesn't have all of the term's postings.
+   */
+  public boolean isRestricted () {
+    return (this.candidates != null || this.rangeTo >= 0);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of the term.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    return (this.collectionStats) ? this.collectionCtf : super.getCtf ();
+  }
+
+  /**
+   *  Get the document frequency (df) of the term.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    return (this.collectionStats) ? this.collectionDf : super.getDf ();
+  }
+
+  /**
+   *  Get the term string.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
   }
 
   /**
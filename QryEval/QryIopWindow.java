@@ -24,6 +24,13 @@ public class QryIopWindow extends QryIop {
 	    //  until all of the argument inverted lists are depleted.
 
 		while (true) {
+
+			// Stop early if the query's time budget is exhausted.  The
+			// list is partial, so the query is approximated (QueryBudget.approximate).
+
+			if (QueryBudget.exhausted()) {
+				break;
+			}
 			
 			// Find the minimum next document id.  If there is none, we're done.
 			
@@ -2,6 +2,7 @@
  *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.*;
 
 /**
  *  The root class of all query operators that use a retrieval model
@@ -13,6 +14,103 @@ import java.io.*;
  *  common to all query operators that calculate document scores.
  */
 public abstract class QrySop extends Qry {
+
+  /**
+   *  The window that docIteratorReadWindow read: argument i matches
+   *  document windowBase+k if windowHits[i][k], with score
+   *  windowScores[i][k].
+   */
+  protected int windowBase;
+  protected double[][] windowScores;
+  protected boolean[][] windowHits;
+  private int[] argDocids;
+  private double[] argScores;
+
+  /**
+   *  Block-at-a-time iteration.  This default implementation uses the
+   *  one-document-at-a-time protocol; operators override it to score
+   *  a block of documents at once.
+   *  @param r The retrieval model that determines matches and scores
+   *  @param upTo Matches must be less than this internal document id
+   *  @param docids Receives the internal ids of the matches
+   *  @param scores Receives the scores of the matches
+   *  @return The number of matches, or 0 if there are no more below upTo.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int docIteratorNextBlock (RetrievalModel r, int upTo, int[] docids, double[] scores)
+    throws IOException {
+
+    int n = 0;
+
+    while ((n < docids.length) && this.docIteratorHasMatch (r)) {
+      int docid = this.docIteratorGetMatch ();
+
+      if (docid >= upTo)
+        break;
+
+      docids[n] = docid;
+      scores[n] = this.getScore (r);
+      n ++;
+      this.docIteratorAdvancePast (docid);
+    }
+
+    return n;
+  }
+
+  /**
+   *  Read the arguments' blocks for a window of at most size document
+   *  ids, starting at this operator's next match and ending below
+   *  upTo, into windowScores and windowHits, and advance past the
+   *  window.  Operators that combine their arguments' scores (e.g.,
+   *  #SUM) use this to accumulate a block of documents with one
+   *  docIteratorNextBlock call per argument.
+   *  @param r The retrieval model that determines matches and scores
+   *  @param upTo Matches must be less than this internal document id
+   *  @param size The largest window
+   *  @return The window's size, or 0 if there are no more matches below upTo.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected int docIteratorReadWindow (RetrievalModel r, int upTo, int size)
+    throws IOException {
+
+    if (! this.docIteratorHasMatch (r))
+      return 0;
+
+    int base = this.docIteratorGetMatch ();
+
+    if (base >= upTo)
+      return 0;
+
+    size = Math.min (size, upTo - base);
+
+    if ((this.windowHits == null) ||
+        (this.windowHits.length != this.args.size ()) ||
+        (this.argDocids.length < size)) {
+      this.windowScores = new double [this.args.size ()][size];
+      this.windowHits = new boolean [this.args.size ()][size];
+      this.argDocids = new int [size];
+      this.argScores = new double [size];
+    }
+
+    for (int i=0; i<this.args.size(); i++) {
+      double[] s_i = this.windowScores[i];
+      boolean[] hits_i = this.windowHits[i];
+      Arrays.fill (hits_i, 0, size, false);
+
+      int n;
+      while ((n = this.args.get(i).docIteratorNextBlock (r, base + size, argDocids, argScores)) > 0) {
+        for (int j=0; j<n; j++) {
+          int k = argDocids[j] - base;
+          s_i[k] = argScores[j];
+          hits_i[k] = true;
+        }
+      }
+    }
+
+    this.windowBase = base;
+    this.docIteratorAdvancePast (base + size - 1);	// Clears the match cache
+    return size;
+  }
 	
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
@@ -24,6 +122,30 @@ public abstract class QrySop extends Qry {
     throws IOException;
 
   public abstract double getDefaultScore (RetrievalModel r, int docid);
+
+  /**
+   *  Get the log of the score of the document that docIteratorHasMatch
+   *  matched.  Operators that combine their arguments' scores as
+   *  products (Indri #AND and #WAND) override this to sum their
+   *  arguments' log scores instead.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    return Math.log (this.getScore (r));
+  }
+
+  /**
+   *  Get the log of the default score of a document that this operator
+   *  doesn't match.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal document id.
+   *  @return The log of the default score.
+   */
+  public double getLogDefaultScore (RetrievalModel r, int docid) {
+    return Math.log (this.getDefaultScore (r, docid));
+  }
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -46,6 +46,13 @@ public class QrySopAnd extends QrySop {
    * @return calculated score (multiplication of every argument's score).
    */
   private double getScoreIndri(RetrievalModel r) {
+	  if (RetrievalModelIndri.logSpace) {
+		  try {
+			  return Math.exp(this.getLogScore(r));
+		  } catch (IOException e) {
+			  e.printStackTrace();
+		  }
+	  }
 	  double score = 1.0;
 	  try {
 		  for (Qry q_i : this.args){
@@ -110,12 +117,108 @@ public class QrySopAnd extends QrySop {
     }
   }
 
+	/**
+	 * For Indri, combine the arguments' blocks in windows of docids;
+	 * arguments that don't match a document use their default scores.
+	 * In log space, this needs the arguments' log scores, so it is only
+	 * used if all of the arguments are #SCORE operators.
+	 */
+	@Override
+	public int docIteratorNextBlock(RetrievalModel r, int upTo, int[] docids, double[] scores) throws IOException {
+		if (!(r instanceof RetrievalModelIndri) || (RetrievalModelIndri.logSpace && !this.hasOnlyScoreArgs())) {
+			return super.docIteratorNextBlock(r, upTo, docids, scores);
+		}
+		int size = this.docIteratorReadWindow(r, upTo, docids.length);
+		double weight = 1.0 / (double) this.args.size();
+		int n = 0;
+		for (int k = 0; k < size; k++) {
+			boolean match = false;
+			for (int i = 0; i < this.args.size() && !match; i++) {
+				match = this.windowHits[i][k];
+			}
+			if (!match) {
+				continue;
+			}
+			int docid = this.windowBase + k;
+			double score;
+			if (RetrievalModelIndri.logSpace) {
+				double logScore = 0;
+				for (int i = 0; i < this.args.size(); i++) {
+					if (this.windowHits[i][k]) {
+						logScore += weight * Math.log(this.windowScores[i][k]);
+					} else {
+						logScore += weight * ((QrySop) this.args.get(i)).getLogDefaultScore(r, docid);
+					}
+				}
+				score = Math.exp(logScore);
+			} else {
+				score = 1.0;
+				for (int i = 0; i < this.args.size(); i++) {
+					double s = this.windowHits[i][k] ? this.windowScores[i][k]
+							: ((QrySop) this.args.get(i)).getDefaultScore(r, docid);
+					score *= Math.pow(s, weight);
+				}
+			}
+			docids[n] = docid;
+			scores[n] = score;
+			n++;
+		}
+		return n;
+	}
+
+	private boolean hasOnlyScoreArgs() {
+		for (Qry q_i : this.args) {
+			if (!(q_i instanceof QrySopScore)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * For Indri, the mean of the arguments' log scores; arguments that
+	 * don't match use their log default scores.
+	 */
+	@Override
+	public double getLogScore(RetrievalModel r) throws IOException {
+		if (!(r instanceof RetrievalModelIndri)) {
+			return super.getLogScore(r);
+		}
+		double weight = 1.0 / (double) this.args.size();
+		double logScore = 0;
+		int docid = this.docIteratorGetMatch();
+		for (Qry q_i : this.args) {
+			if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == docid) {
+				logScore += weight * ((QrySop) q_i).getLogScore(r);
+			} else {
+				logScore += weight * ((QrySop) q_i).getLogDefaultScore(r, docid);
+			}
+		}
+		return logScore;
+	}
+
+	@Override
+	public double getLogDefaultScore(RetrievalModel r, int docid) {
+		if (!(r instanceof RetrievalModelIndri)) {
+			return super.getLogDefaultScore(r, docid);
+		}
+		double weight = 1.0 / (double) this.args.size();
+		double logScore = 0;
+		for (Qry q_i : this.args) {
+			logScore += weight * ((QrySop) q_i).getLogDefaultScore(r, docid);
+		}
+		return logScore;
+	}
+
 	@Override
 	/**
 	 * For indri, if there's no match, use default score.
 	 */
 	public double getDefaultScore(RetrievalModel r, int docid) {
 		double score = 1.0;
+		if (r instanceof RetrievalModelIndri && RetrievalModelIndri.logSpace) {
+			return Math.exp(this.getLogDefaultScore(r, docid));
+		}
 		if( r instanceof RetrievalModelIndri){
 			for (Qry q_i : args){
 				score *= Math.pow(((QrySop)q_i).getDefaultScore(r, docid), 1.0 / this.args.size());
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * The #FILTER/spec and #EXCLUDE/spec operators restrict their argument
+ * to the documents that have (or don't have) a metadata property, e.g.
+ * #EXCLUDE/spam:70 (#AND (apple pie)) or #FILTER/host:.edu (apple).
+ * The property is a cached docid bitset ({@link DocFilters}), and it is
+ * checked while iterating, so documents that are filtered out are
+ * never scored.  Scores are the argument's scores.
+ */
+public class QrySopFilter extends QrySop {
+
+	private final String spec;
+	private final boolean exclude;
+	private BitSet bits = null;
+
+	/**
+	 * @param spec the filter spec, e.g. spam:70 or host:.edu
+	 * @param exclude true for #EXCLUDE, false for #FILTER
+	 * @throws IllegalArgumentException the spec is malformed
+	 */
+	public QrySopFilter(String spec, boolean exclude) {
+		DocFilters.validate(spec);
+		this.spec = spec;
+		this.exclude = exclude;
+	}
+
+	/**
+	 * @return the filter spec
+	 */
+	public String getSpec() {
+		return this.spec;
+	}
+
+	/**
+	 * @return true for #EXCLUDE, false for #FILTER
+	 */
+	public boolean isExclude() {
+		return this.exclude;
+	}
+
+	/**
+	 * Filter operators have exactly one argument.
+	 */
+	@Override
+	public void appendArg(Qry q) throws IllegalArgumentException {
+		if (this.args.size() > 0) {
+			throw new IllegalArgumentException("Filter operators can have only one argument.");
+		}
+		super.appendArg(q);
+	}
+
+	@Override
+	public void initialize(RetrievalModel r) throws IOException {
+		this.bits = DocFilters.get(this.spec);
+		super.initialize(r);
+	}
+
+	private boolean admits(int docid) {
+		return this.bits.get(docid) != this.exclude;
+	}
+
+	/**
+	 * Skip the argument's matches that the filter rejects.
+	 */
+	@Override
+	public boolean docIteratorHasMatch(RetrievalModel r) {
+		Qry q = this.args.get(0);
+		while (q.docIteratorHasMatch(r)) {
+			int docid = q.docIteratorGetMatch();
+			if (this.admits(docid)) {
+				return this.docIteratorHasMatchFirst(r);
+			}
+			q.docIteratorAdvancePast(docid);
+		}
+		return false;
+	}
+
+	@Override
+	public int docIteratorNextBlock(RetrievalModel r, int upTo, int[] docids, double[] scores) throws IOException {
+		Qry q = this.args.get(0);
+		int n;
+		while ((n = q.docIteratorNextBlock(r, upTo, docids, scores)) > 0) {
+			int m = 0;
+			for (int i = 0; i < n; i++) {
+				if (this.admits(docids[i])) {
+					docids[m] = docids[i];
+					scores[m] = scores[i];
+					m++;
+				}
+			}
+			if (m > 0) {
+				return m;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public double getScore(RetrievalModel r) throws IOException {
+		return ((QrySop) this.args.get(0)).getScore(r);
+	}
+
+	@Override
+	public double getDefaultScore(RetrievalModel r, int docid) {
+		return ((QrySop) this.args.get(0)).getDefaultScore(r, docid);
+	}
+
+	@Override
+	public double getLogScore(RetrievalModel r) throws IOException {
+		return ((QrySop) this.args.get(0)).getLogScore(r);
+	}
+
+	@Override
+	public double getLogDefaultScore(RetrievalModel r, int docid) {
+		return ((QrySop) this.args.get(0)).getLogDefaultScore(r, docid);
+	}
+}
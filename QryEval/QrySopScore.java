@@ -4,6 +4,7 @@
 
 import java.io.*;
 import java.lang.IllegalArgumentException;
+import java.util.Arrays;
 
 /**
  *  The SCORE operator for all retrieval models.
@@ -14,6 +15,15 @@ public class QrySopScore extends QrySop {
    *  Document-independent values that should be determined just once.
    *  Some retrieval models have these, some don't.
    */
+  private IndriTermScorer indri = null;
+  private double[] bm25LengthNorms = null;
+  private BM25WeightStore.Weights bm25Weights = null;
+
+  /**
+   *  Buffers for docIteratorNextBlock.
+   */
+  private double[] tfBlock = null;
+  private double[] lengthBlock = null;
   
   /**
    *  Indicates whether the query has a match.
@@ -45,23 +55,91 @@ public class QrySopScore extends QrySop {
         (r.getClass().getName() + " doesn't support the SCORE operator.");
     }
   }
+	/**
+	 * Score the argument's next block of matches.  BM25 and Indri scores
+	 * are computed a block at a time by {@link BlockKernels}, which use
+	 * the same arithmetic as getScore.
+	 */
+	@Override
+	public int docIteratorNextBlock(RetrievalModel r, int upTo, int[] docids, double[] scores) throws IOException {
+		QryIop q = (QryIop) this.args.get(0);
+		int start = q.docIteratorGetIndex();
+		int n = q.docIteratorNextBlock(r, upTo, docids, scores);
+
+		if (r instanceof RetrievalModelUnrankedBoolean) {
+			Arrays.fill(scores, 0, n, 1.0);
+		} else if (r instanceof RetrievalModelRankedBoolean) {
+			// The argument's scores are its term frequencies.
+		} else if (r instanceof RetrievalModelBM25 || r instanceof RetrievalModelIndri) {
+			if (this.tfBlock == null || this.tfBlock.length < n) {
+				this.tfBlock = new double[docids.length];
+				this.lengthBlock = new double[docids.length];
+			}
+			System.arraycopy(scores, 0, this.tfBlock, 0, n);
+			String field = q.getField();
+			if (r instanceof RetrievalModelIndri) {
+				for (int i = 0; i < n; i++) {
+					this.lengthBlock[i] = Idx.getFieldLength(field, docids[i]);
+				}
+				this.indriScorer().scoreBlock(n, this.tfBlock, this.lengthBlock, scores);
+			} else {
+				this.scoreBlockBM25(q, start, n, docids, scores);
+			}
+		} else {
+			throw new IllegalArgumentException
+				(r.getClass().getName() + " doesn't support the SCORE operator.");
+		}
+		return n;
+	}
+
+	/**
+	 * BM25 scores of a block of matches whose term frequencies are in
+	 * tfBlock; they are the argument's postings start to start + n - 1.
+	 */
+	private void scoreBlockBM25(QryIop q, int start, int n, int[] docids, double[] scores) throws IOException {
+		String field = q.getField();
+		double N = Idx.getNumDocs();
+		double qtf = 1;
+		double df = q.getDf();
+		double k3 = RetrievalModelBM25.k3;
+		double avgdocLen = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
+		double idf = Math.max(0, Math.log( (N-df+0.5)/(df+0.5) ));
+		double userWeight = (k3+1) * qtf / (k3+qtf);
+
+		if (this.bm25Weights != null) {
+			for (int i = 0; i < n; i++) {
+				scores[i] = idf * this.bm25Weights.get(start + i) * userWeight;
+			}
+			return;
+		}
+
+		double[] norms = this.lengthBlock;
+		if (Idx.hasQuantizedLengths()) {
+			if (this.bm25LengthNorms == null) {
+				this.bm25LengthNorms = BM25LengthNorms.get(field, avgdocLen);
+			}
+			for (int i = 0; i < n; i++) {
+				norms[i] = this.bm25LengthNorms[Idx.getFieldLengthCode(field, docids[i])];
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				norms[i] = Idx.getFieldLength(field, docids[i]);
+			}
+			BlockKernels.bm25Norms(n, norms, RetrievalModelBM25.k1, RetrievalModelBM25.b, avgdocLen, norms);
+		}
+		Arrays.fill(scores, 0, n, 0);
+		BlockKernels.bm25Accumulate(n, this.tfBlock, norms, idf, userWeight, scores);
+	}
+
   	/**
   	 * Score calculation for Indri model.
   	 * @param r Indri model
   	 * @return calculated score for Indri model.
   	 */
 	private double getScoreIndri(RetrievalModel r) {
-		double mu = RetrievalModelIndri.mu;
-		double lambda = RetrievalModelIndri.lambda;
 		try {
-			String field = ((QryIop)this.args.get(0)).getField();
-			double tf = ((QryIop)this.args.get(0)).getTf();
-			double lengthC = Idx.getSumOfFieldLengths(field);
-			double lengthD = Idx.getFieldLength(field, this.args.get(0).docIteratorGetMatch());
-			double ctf =  ((QryIop)this.args.get(0)).getCtf();
-			double pMLE = ctf / lengthC;
-			double score = ( (1 - lambda) * ( tf + mu * pMLE) / (lengthD + mu) ) + lambda * pMLE;
-			return score;
+			QryIop q = (QryIop) this.args.get(0);
+			return this.indriScorer().score(q.getTf(), q.docIteratorGetMatch());
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -82,15 +160,27 @@ public class QrySopScore extends QrySop {
 			double k3 = RetrievalModelBM25.k3;
 			try {
 				double N = Idx.getNumDocs();
-				double docLen = Idx.getFieldLength(((QryIop)this.args.get(0)).getField(),
-												this.args.get(0).docIteratorGetMatch() );
 				double qtf = 1;
 				double tf = ((QryIop)this.args.get(0)).getTf();
 				double df = ((QryIop)this.args.get(0)).getDf();
 				double avgdocLen = Idx.getSumOfFieldLengths(((QryIop)this.args.get(0)).getField())
 								/ (double) Idx.getDocCount(((QryIop)this.args.get(0)).getField());
 				double idf = Math.max(0, Math.log( (N-df+0.5)/(df+0.5) ));
-				double tfWeight = tf / (tf + k1*((1-b)+b*docLen/avgdocLen));
+				double tfWeight;
+				if (this.bm25Weights != null) {
+					tfWeight = this.bm25Weights.get(((QryIop)this.args.get(0)).docIteratorGetIndex());
+				} else if (Idx.hasQuantizedLengths()) {
+					if (this.bm25LengthNorms == null) {
+						this.bm25LengthNorms = BM25LengthNorms.get(((QryIop)this.args.get(0)).getField(), avgdocLen);
+					}
+					int code = Idx.getFieldLengthCode(((QryIop)this.args.get(0)).getField(),
+													this.args.get(0).docIteratorGetMatch());
+					tfWeight = tf / (tf + this.bm25LengthNorms[code]);
+				} else {
+					double docLen = Idx.getFieldLength(((QryIop)this.args.get(0)).getField(),
+													this.args.get(0).docIteratorGetMatch() );
+					tfWeight = tf / (tf + k1*((1-b)+b*docLen/avgdocLen));
+				}
 				double userWeight = (k3+1) * qtf / (k3+qtf);
 				double score = idf * tfWeight * userWeight;
 				return score;
@@ -134,6 +224,31 @@ public class QrySopScore extends QrySop {
 	public void initialize (RetrievalModel r) throws IOException {
 		Qry q = this.args.get (0);
 		q.initialize (r);
+		this.indri = null;
+		this.bm25LengthNorms = null;
+		this.bm25Weights = null;
+		if (r instanceof RetrievalModelIndri) {
+			this.indriScorer();
+		} else if (r instanceof RetrievalModelBM25 && RetrievalModelBM25.weightStore
+				&& q instanceof QryIopTerm && ! ((QryIopTerm) q).isRestricted()) {
+			QryIopTerm t = (QryIopTerm) q;
+			BM25WeightStore store = BM25WeightStore.get();
+			if (store != null) {
+				this.bm25Weights = store.getWeights(t.getTerm(), t.getField(), t.invertedList.df);
+			}
+		}
+	}
+
+	/**
+	 * @return the Indri statistics of the argument, computed once
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	private IndriTermScorer indriScorer() throws IOException {
+		if (this.indri == null) {
+			QryIop q = (QryIop) this.args.get(0);
+			this.indri = new IndriTermScorer(q.getField(), q.getCtf());
+		}
+		return this.indri;
 	}
 
 	@Override
@@ -143,17 +258,18 @@ public class QrySopScore extends QrySop {
 	 *  is term frequency (tf) of default score is zero.
 	 */
 	public double getDefaultScore(RetrievalModel r, int docid) {
-		double mu = RetrievalModelIndri.mu;
-		double lambda = RetrievalModelIndri.lambda;
 		try {
-			String field = ((QryIop)this.args.get(0)).getField();
-			double lengthC = Idx.getSumOfFieldLengths(field);
-			double lengthD = Idx.getFieldLength(field, docid);
-			double ctf =  ((QryIop)this.args.get(0)).getCtf();
-			double pMLE = ctf / lengthC;
-			double tf = 0;
-			double defaulScore = ((1 - lambda) * (tf + mu * pMLE) / (lengthD + mu)) + lambda * pMLE;
-			return defaulScore;
+			return this.indriScorer().defaultScore(docid);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return 0.0;
+	}
+
+	@Override
+	public double getLogDefaultScore(RetrievalModel r, int docid) {
+		try {
+			return this.indriScorer().logDefaultScore(docid);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -23,6 +23,34 @@ public class QrySopSum extends QrySop {
 		return 0;
 	}
 
+	/**
+	 * For BM25, sum the arguments' blocks in windows of docids.
+	 */
+	@Override
+	public int docIteratorNextBlock(RetrievalModel r, int upTo, int[] docids, double[] scores) throws IOException {
+		if (!(r instanceof RetrievalModelBM25)) {
+			return super.docIteratorNextBlock(r, upTo, docids, scores);
+		}
+		int size = this.docIteratorReadWindow(r, upTo, docids.length);
+		int n = 0;
+		for (int k = 0; k < size; k++) {
+			boolean match = false;
+			double sum = 0;
+			for (int i = 0; i < this.args.size(); i++) {
+				if (this.windowHits[i][k]) {
+					sum += this.windowScores[i][k];
+					match = true;
+				}
+			}
+			if (match) {
+				docids[n] = this.windowBase + k;
+				scores[n] = sum;
+				n++;
+			}
+		}
+		return n;
+	}
+
 	@Override
 	public boolean docIteratorHasMatch(RetrievalModel r) {
 		return this.docIteratorHasMatchMin (r);
@@ -6,7 +6,9 @@ public class QrySopWand extends QryWSop {
 	 * @return weighted sum of every matched argument.
 	 */
 	public double getScore(RetrievalModel r) throws IOException {
-		if (r instanceof RetrievalModelIndri) {
+		if (r instanceof RetrievalModelIndri && RetrievalModelIndri.logSpace) {
+			return Math.exp(this.getLogScore(r));
+		} else if (r instanceof RetrievalModelIndri) {
 			double score = 1.0;
 			try {
 				int i = 0;
@@ -41,12 +43,52 @@ public class QrySopWand extends QryWSop {
 		}
 	}
 
+	/**
+	 * For Indri, the weighted mean of the arguments' log scores;
+	 * arguments that don't match use their log default scores.
+	 */
+	@Override
+	public double getLogScore(RetrievalModel r) throws IOException {
+		if (!(r instanceof RetrievalModelIndri)) {
+			return super.getLogScore(r);
+		}
+		double logScore = 0;
+		int docid = this.docIteratorGetMatch();
+		int i = 0;
+		for (Qry q_i : this.args) {
+			if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == docid) {
+				logScore += weights.get(i) / weightSum * ((QrySop) q_i).getLogScore(r);
+			} else {
+				logScore += weights.get(i) / weightSum * ((QrySop) q_i).getLogDefaultScore(r, docid);
+			}
+			i++;
+		}
+		return logScore;
+	}
+
+	@Override
+	public double getLogDefaultScore(RetrievalModel r, int docid) {
+		if (!(r instanceof RetrievalModelIndri)) {
+			return super.getLogDefaultScore(r, docid);
+		}
+		double logScore = 0;
+		int i = 0;
+		for (Qry q_i : this.args) {
+			logScore += weights.get(i) / weightSum * ((QrySop) q_i).getLogDefaultScore(r, docid);
+			i++;
+		}
+		return logScore;
+	}
+
 	@Override
 	/**
 	 * For indri, if there's no match, use default score.
 	 */
 	public double getDefaultScore(RetrievalModel r, int docid) {
 		double score = 1.0;
+		if (r instanceof RetrievalModelIndri && RetrievalModelIndri.logSpace) {
+			return Math.exp(this.getLogDefaultScore(r, docid));
+		}
 		if( r instanceof RetrievalModelIndri){
 			int i = 0;
 			for (Qry q_i : args){
@@ -0,0 +1,179 @@
+/**
+ * A per-query time and work budget for anytime evaluation.  Each
+ * thread has at most one budget, started by {@link #start} before a
+ * query is evaluated.  Evaluation loops call {@link #scored} (after
+ * scoring documents) or {@link #exhausted} (in inverted list operators
+ * such as #NEAR/n); when the budget runs out they stop early, and the
+ * query's results are the documents scored so far.  An inverted list
+ * operator that stops early has a partial list, so its df and ctf, and
+ * the scores that use them, would be wrong; evaluators call
+ * {@link #approximate} after initializing a query, and if the budget
+ * ran out while its lists were built, they initialize and score a
+ * cheaper approximation of the query instead.  Checks are cheap: the
+ * clock is read at most once every CLOCK_INTERVAL calls.
+ * <p>
+ * Without a budget, or with no limits, every check returns false.
+ */
+public class QueryBudget {
+
+	private static final int CLOCK_INTERVAL = 64;
+
+	private static final ThreadLocal<QueryBudget> CURRENT = new ThreadLocal<QueryBudget>();
+
+	private final long startNanos = System.nanoTime();
+	private long deadlineNanos;
+	private final long maxScoredDocs;
+	private long scoredDocs = 0;
+	private int calls = 0;
+	private String reason = null;
+	private String approximated = null;
+
+	private QueryBudget(long timeoutMs, long maxScoredDocs) {
+		this.deadlineNanos = (timeoutMs > 0) ? startNanos + timeoutMs * 1000000L : Long.MAX_VALUE;
+		this.maxScoredDocs = (maxScoredDocs > 0) ? maxScoredDocs : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Start a budget for this thread's next query.
+	 * @param timeoutMs the time limit in milliseconds, or 0 for none
+	 * @param maxScoredDocs the most documents to score, or 0 for no limit
+	 */
+	public static void start(long timeoutMs, long maxScoredDocs) {
+		if (timeoutMs > 0 || maxScoredDocs > 0) {
+			CURRENT.set(new QueryBudget(timeoutMs, maxScoredDocs));
+		} else {
+			CURRENT.remove();
+		}
+	}
+
+	/**
+	 * End this thread's budget.
+	 * @return why the query was truncated or approximated, or null if
+	 *         it wasn't
+	 */
+	public static String finish() {
+		QueryBudget budget = CURRENT.get();
+		CURRENT.remove();
+		if (budget == null) {
+			return null;
+		}
+		return (budget.reason != null) ? budget.reason : budget.approximated;
+	}
+
+	/**
+	 * @return the budget of this thread's query, or null if it has none
+	 */
+	public static QueryBudget current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Record that n more documents were scored.
+	 * @param n the number of documents
+	 * @return true if evaluation should stop
+	 */
+	public static boolean scored(int n) {
+		QueryBudget budget = CURRENT.get();
+		if (budget == null) {
+			return false;
+		}
+		budget.scoredDocs += n;
+		return budget.check(true);
+	}
+
+	/**
+	 * @return true if evaluation should stop
+	 */
+	public static boolean exhausted() {
+		QueryBudget budget = CURRENT.get();
+		return (budget != null) && budget.check(false);
+	}
+
+	/**
+	 * If this thread's budget ran out while q's inverted lists were
+	 * built, replace q's proximity operators by their arguments, so that
+	 * q can be initialized again and scored with exact statistics:
+	 * #SCORE (#NEAR/n (a b)) becomes #SUM (a b) for BM25 and #AND (a b)
+	 * for the other models, and a proximity operator inside another
+	 * inverted list operator becomes #SYN (a b).  The query is marked
+	 * approximate, and its deadline is lifted; the approximation reads
+	 * only term lists, which are never cut short, and its scoring is
+	 * still bounded by maxScoredDocs.
+	 * @param q an initialized query
+	 * @param r the retrieval model
+	 * @return true if q was rewritten and must be initialized again
+	 */
+	public static boolean approximate(Qry q, RetrievalModel r) {
+		QueryBudget budget = CURRENT.get();
+		if (budget == null || budget.reason == null || budget.approximated != null) {
+			return false;
+		}
+		withoutProximity(q, r);
+		budget.approximated = budget.reason;
+		budget.reason = null;
+		budget.deadlineNanos = Long.MAX_VALUE;
+		return true;
+	}
+
+	private static void withoutProximity(Qry q, RetrievalModel r) {
+		for (int i = 0; i < q.args.size(); i++) {
+			Qry q_i = q.args.get(i);
+			Qry replacement = null;
+			if (q_i instanceof QrySopScore && isProximity(q_i.args.get(0))) {
+				boolean bm25 = r instanceof RetrievalModelBM25;
+				replacement = bm25 ? new QrySopSum() : new QrySopAnd();
+				replacement.setDisplayName(bm25 ? "#SUM" : "#AND");
+				q_i = q_i.args.get(0);
+			} else if (isProximity(q_i)) {
+				replacement = new QryIopSyn();
+				replacement.setDisplayName("#SYN");
+			}
+			if (replacement != null) {
+				for (Qry arg : q_i.args) {
+					replacement.appendArg(arg);
+				}
+				q.args.set(i, replacement);
+				q_i = replacement;
+			}
+			withoutProximity(q_i, r);
+		}
+	}
+
+	private static boolean isProximity(Qry q) {
+		return q instanceof QryIopNear || q instanceof QryIopWindow;
+	}
+
+	/**
+	 * @return true if the query's results are those of an approximation
+	 *         ({@link #approximate})
+	 */
+	public boolean isApproximate() {
+		return approximated != null;
+	}
+
+	private boolean check(boolean readClock) {
+		if (reason != null) {
+			return true;
+		}
+		if (scoredDocs >= maxScoredDocs) {
+			reason = "maxScoredDocs";
+		} else if ((readClock || ++calls % CLOCK_INTERVAL == 0) && System.nanoTime() >= deadlineNanos) {
+			reason = "queryTimeoutMs";
+		}
+		return reason != null;
+	}
+
+	/**
+	 * @return the number of documents scored so far
+	 */
+	public long getScoredDocs() {
+		return scoredDocs;
+	}
+
+	/**
+	 * @return the time since the budget started, in milliseconds
+	 */
+	public double getElapsedMs() {
+		return (System.nanoTime() - startNanos) / 1e6;
+	}
+}
@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fast inference for an ensemble of regression trees, using the
+ * QuickScorer algorithm (Lucchese et al., SIGIR 2015).
+ * <p>
+ * Each tree has at most 64 leaves, numbered left to right, and its
+ * state for one document is a 64-bit vector with one bit per leaf that
+ * can still be the exit leaf.  Every internal node "x[f] &lt;= t" is
+ * stored with a mask that clears the bits of the leaves in its left
+ * subtree.  To score a document, the nodes of each feature are visited
+ * in increasing threshold order; while x[f] &gt; t the node is false
+ * and its mask is ANDed into its tree's vector.  Afterwards, the exit
+ * leaf of each tree is the lowest set bit of its vector.  Scoring is
+ * a few linear scans of primitive arrays, with no per-node branching
+ * on the tree structure, so it is cheap enough to score every tree for
+ * every candidate document.
+ */
+public class QuickScorer {
+
+	private final int numTrees;
+	private final int numFeatures;
+
+	//  Internal nodes, grouped by feature and sorted by threshold.
+	//  The nodes of feature f are featureStart[f] .. featureStart[f+1]-1.
+
+	private final int[] featureStart;
+	private final double[] thresholds;
+	private final int[] treeIds;
+	private final long[] masks;
+
+	private final double[][] leafValues;
+
+	/**
+	 * Compile an ensemble.
+	 * @param trees the trees; each must have at most 64 leaves
+	 * @param numFeatures the length of the feature vectors to score
+	 */
+	public QuickScorer(List<RegressionTree> trees, int numFeatures) {
+		this.numTrees = trees.size();
+		this.numFeatures = numFeatures;
+		this.leafValues = new double[numTrees][];
+
+		List<List<double[]>> nodesByFeature = new ArrayList<List<double[]>>();
+		for (int f = 0; f < numFeatures; f++) {
+			nodesByFeature.add(new ArrayList<double[]>());
+		}
+		List<Long> maskList = new ArrayList<Long>();
+
+		for (int t = 0; t < numTrees; t++) {
+			RegressionTree tree = trees.get(t);
+			if (tree.leafValues.length > 64) {
+				throw new IllegalArgumentException("QuickScorer supports at most 64 leaves per tree.");
+			}
+			leafValues[t] = tree.leafValues;
+			for (int n = 0; n < tree.features.length; n++) {
+				int first = tree.firstLeaf(tree.left[n]);
+				int last = tree.lastLeaf(tree.left[n]);
+				int width = last - first + 1;
+				long leftLeaves = ((width == 64) ? -1L : ((1L << width) - 1)) << first;
+				maskList.add(~leftLeaves);
+				nodesByFeature.get(tree.features[n]).add(
+						new double[] { tree.thresholds[n], t, maskList.size() - 1 });
+			}
+		}
+
+		int numNodes = maskList.size();
+		this.featureStart = new int[numFeatures + 1];
+		this.thresholds = new double[numNodes];
+		this.treeIds = new int[numNodes];
+		this.masks = new long[numNodes];
+		int k = 0;
+		for (int f = 0; f < numFeatures; f++) {
+			featureStart[f] = k;
+			List<double[]> nodes = nodesByFeature.get(f);
+			double[][] sorted = nodes.toArray(new double[nodes.size()][]);
+			Arrays.sort(sorted, new java.util.Comparator<double[]>() {
+				public int compare(double[] a, double[] b) {
+					return Double.compare(a[0], b[0]);
+				}
+			});
+			for (double[] node : sorted) {
+				thresholds[k] = node[0];
+				treeIds[k] = (int) node[1];
+				masks[k] = maskList.get((int) node[2]);
+				k++;
+			}
+		}
+		featureStart[numFeatures] = k;
+	}
+
+	/**
+	 * Score one document.
+	 * @param x the document's feature vector
+	 * @param v a work buffer with at least numTrees entries
+	 * @return the ensemble score
+	 */
+	public double score(double[] x, long[] v) {
+		Arrays.fill(v, 0, numTrees, -1L);
+		for (int f = 0; f < numFeatures; f++) {
+			double value = x[f];
+			int end = featureStart[f + 1];
+			for (int k = featureStart[f]; k < end && value > thresholds[k]; k++) {
+				v[treeIds[k]] &= masks[k];
+			}
+		}
+		double score = 0;
+		for (int t = 0; t < numTrees; t++) {
+			score += leafValues[t][Long.numberOfTrailingZeros(v[t])];
+		}
+		return score;
+	}
+
+	/**
+	 * Score many documents.
+	 * @param docs feature vectors
+	 * @return scores, aligned with docs
+	 */
+	public double[] score(double[][] docs) {
+		long[] v = new long[numTrees];
+		double[] scores = new double[docs.length];
+		for (int i = 0; i < docs.length; i++) {
+			scores[i] = score(docs[i], v);
+		}
+		return scores;
+	}
+}
@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A binary regression tree over feature vectors, stored in flat
+ * arrays.  Internal node n tests "x[features[n]] &lt;= thresholds[n]"
+ * and continues to left[n] if true, right[n] otherwise.  A child
+ * reference c &gt;= 0 is an internal node; c &lt; 0 is leaf (-c - 1).
+ * Leaves are numbered left to right, which {@link QuickScorer} relies on.
+ */
+public class RegressionTree {
+
+	final int[] features;
+	final double[] thresholds;
+	final int[] left;
+	final int[] right;
+	final double[] leafValues;
+
+	/**
+	 * A mutable node used while a tree is being built.
+	 */
+	static class Node {
+		int feature = -1;		// -1 for leaves
+		double threshold;
+		Node left;
+		Node right;
+		double value;
+	}
+
+	RegressionTree(int[] features, double[] thresholds, int[] left, int[] right, double[] leafValues) {
+		this.features = features;
+		this.thresholds = thresholds;
+		this.left = left;
+		this.right = right;
+		this.leafValues = leafValues;
+	}
+
+	/**
+	 * Flatten a tree of Nodes, numbering internal nodes in preorder and
+	 * leaves left to right.
+	 * @param root the root node
+	 * @param scale multiplier for the leaf values (e.g. the learning rate)
+	 */
+	static RegressionTree fromNodes(Node root, double scale) {
+		List<Node> internal = new ArrayList<Node>();
+		List<Node> leaves = new ArrayList<Node>();
+		collect(root, internal, leaves);
+
+		int[] features = new int[internal.size()];
+		double[] thresholds = new double[internal.size()];
+		int[] left = new int[internal.size()];
+		int[] right = new int[internal.size()];
+		double[] leafValues = new double[leaves.size()];
+		for (int n = 0; n < internal.size(); n++) {
+			Node node = internal.get(n);
+			features[n] = node.feature;
+			thresholds[n] = node.threshold;
+			left[n] = reference(node.left, internal, leaves);
+			right[n] = reference(node.right, internal, leaves);
+		}
+		for (int l = 0; l < leaves.size(); l++) {
+			leafValues[l] = leaves.get(l).value * scale;
+		}
+		return new RegressionTree(features, thresholds, left, right, leafValues);
+	}
+
+	private static void collect(Node node, List<Node> internal, List<Node> leaves) {
+		if (node.feature < 0) {
+			leaves.add(node);
+		} else {
+			internal.add(node);
+			collect(node.left, internal, leaves);
+			collect(node.right, internal, leaves);
+		}
+	}
+
+	private static int reference(Node node, List<Node> internal, List<Node> leaves) {
+		return (node.feature < 0) ? -leaves.indexOf(node) - 1 : internal.indexOf(node);
+	}
+
+	public int numLeaves() {
+		return leafValues.length;
+	}
+
+	/**
+	 * @param child a child reference
+	 * @return the leftmost leaf below (or at) child
+	 */
+	int firstLeaf(int child) {
+		while (child >= 0) {
+			child = left[child];
+		}
+		return -child - 1;
+	}
+
+	/**
+	 * @param child a child reference
+	 * @return the rightmost leaf below (or at) child
+	 */
+	int lastLeaf(int child) {
+		while (child >= 0) {
+			child = right[child];
+		}
+		return -child - 1;
+	}
+
+	/**
+	 * Evaluate the tree by walking it.  {@link QuickScorer} is faster for
+	 * ensembles; this is the reference implementation.
+	 * @param x a feature vector
+	 * @return the value of the exit leaf
+	 */
+	public double evaluate(double[] x) {
+		if (features.length == 0) {
+			return leafValues[0];
+		}
+		int n = 0;
+		while (n >= 0) {
+			n = (x[features[n]] <= thresholds[n]) ? left[n] : right[n];
+		}
+		return leafValues[-n - 1];
+	}
+
+	/**
+	 * @return a one-line text form that {@link #parse} reads
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(features.length).append(' ').append(leafValues.length);
+		for (int n = 0; n < features.length; n++) {
+			sb.append(' ').append(features[n]).append(' ').append(thresholds[n])
+				.append(' ').append(left[n]).append(' ').append(right[n]);
+		}
+		for (double value : leafValues) {
+			sb.append(' ').append(value);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param line a line produced by {@link #toString}
+	 * @return the tree
+	 */
+	public static RegressionTree parse(String line) {
+		String[] tokens = line.trim().split("\\s+");
+		int numNodes = Integer.parseInt(tokens[0]);
+		int numLeaves = Integer.parseInt(tokens[1]);
+		int[] features = new int[numNodes];
+		double[] thresholds = new double[numNodes];
+		int[] left = new int[numNodes];
+		int[] right = new int[numNodes];
+		double[] leafValues = new double[numLeaves];
+		int k = 2;
+		for (int n = 0; n < numNodes; n++) {
+			features[n] = Integer.parseInt(tokens[k++]);
+			thresholds[n] = Double.parseDouble(tokens[k++]);
+			left[n] = Integer.parseInt(tokens[k++]);
+			right[n] = Integer.parseInt(tokens[k++]);
+		}
+		for (int l = 0; l < numLeaves; l++) {
+			leafValues[l] = Double.parseDouble(tokens[k++]);
+		}
+		return new RegressionTree(features, thresholds, left, right, leafValues);
+	}
+}
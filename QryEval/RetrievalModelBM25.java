@@ -4,6 +4,12 @@ public class RetrievalModelBM25 extends RetrievalModel {
 	public static double k1 = 1.2;
 	public static double b = 0.75;
 	public static double k3 = 0;
+
+	/**
+	 * Score terms with precomputed, quantized term weights
+	 * (BM25WeightStore) instead of tf and document lengths.
+	 */
+	public static boolean weightStore = false;
 	
 	public RetrievalModelBM25(String k1, String b, String k3) {
 		RetrievalModelBM25.k1 = Double.parseDouble(k1);
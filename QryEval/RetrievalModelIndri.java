@@ -2,6 +2,16 @@
 public class RetrievalModelIndri extends RetrievalModel {
 	public static double mu = 2500;
 	public static double lambda = 0.4;
+	/**
+	 * Combine #AND and #WAND arguments as weighted sums of logs instead
+	 * of products of powers (QrySop.getLogScore).
+	 */
+	public static boolean logSpace = false;
+	/**
+	 * Document lengths below this have tabulated default scores
+	 * (IndriTermScorer); 0 disables the tables.
+	 */
+	public static int defaultScoreTableSize = 0;
 	
 	public RetrievalModelIndri(String mu, String lambda) {
 		RetrievalModelIndri.mu = Double.parseDouble(mu);
@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * An immutable, compressed set of internal docids in the style of
+ * Roaring bitmaps.  The docid space is split into chunks of 65536 ids
+ * keyed by their high 16 bits.  A chunk with at most 4096 members is
+ * stored as a sorted array of its low 16 bits.  A denser chunk is
+ * stored as a 1024-word bitmap, so unions and intersections of dense
+ * chunks are word-level ORs and ANDs.
+ */
+public class RoaringDocidSet {
+
+	private static final int ARRAY_MAX = 4096;
+	private static final int BITMAP_WORDS = 1 << 10;
+
+	/**
+	 * The empty set.
+	 */
+	public static final RoaringDocidSet EMPTY = new RoaringDocidSet(0);
+
+	//  Chunk i has high bits keys[i] and cardinalities[i] members, in
+	//  arrays[i] or, if that is null, bitmaps[i].
+
+	private int size = 0;
+	private int[] keys;
+	private int[] cardinalities;
+	private char[][] arrays;
+	private long[][] bitmaps;
+
+	private RoaringDocidSet(int capacity) {
+		this.keys = new int[capacity];
+		this.cardinalities = new int[capacity];
+		this.arrays = new char[capacity][];
+		this.bitmaps = new long[capacity][];
+	}
+
+	/**
+	 * Builds a set from docids added in increasing order.
+	 */
+	public static class Builder {
+		private final RoaringDocidSet set = new RoaringDocidSet(4);
+		private int key = -1;
+		private char[] low = new char[ARRAY_MAX];
+		private long[] bitmap = null;
+		private int count = 0;
+
+		/**
+		 * @param docid an internal docid, larger than the last one added
+		 */
+		public void add(int docid) {
+			int k = docid >>> 16;
+			if (k != key) {
+				flush();
+				key = k;
+			}
+			char c = (char) docid;
+			if (bitmap != null) {
+				bitmap[c >>> 6] |= 1L << c;
+			} else if (count < ARRAY_MAX) {
+				low[count] = c;
+			} else {
+				bitmap = toBitmap(low, count);
+				bitmap[c >>> 6] |= 1L << c;
+			}
+			count++;
+		}
+
+		private void flush() {
+			if (count > 0) {
+				set.append(key, count, (bitmap == null) ? Arrays.copyOf(low, count) : null, bitmap);
+			}
+			bitmap = null;
+			count = 0;
+		}
+
+		/**
+		 * @return the set of docids added
+		 */
+		public RoaringDocidSet build() {
+			flush();
+			return set;
+		}
+	}
+
+	/**
+	 * @param docs a Lucene postings iterator
+	 * @return the set of documents that it matches
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static RoaringDocidSet fromDocs(DocsEnum docs) throws IOException {
+		Builder builder = new Builder();
+		for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
+			builder.add(d);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @param list an inverted list
+	 * @return the set of documents in the list
+	 */
+	public static RoaringDocidSet fromInvList(InvList list) {
+		Builder builder = new Builder();
+		for (int i = 0; i < list.df; i++) {
+			builder.add(list.getDocid(i));
+		}
+		return builder.build();
+	}
+
+	private void append(int key, int cardinality, char[] array, long[] bitmap) {
+		if (size == keys.length) {
+			int capacity = Math.max(4, 2 * size);
+			keys = Arrays.copyOf(keys, capacity);
+			cardinalities = Arrays.copyOf(cardinalities, capacity);
+			arrays = Arrays.copyOf(arrays, capacity);
+			bitmaps = Arrays.copyOf(bitmaps, capacity);
+		}
+		keys[size] = key;
+		cardinalities[size] = cardinality;
+		arrays[size] = array;
+		bitmaps[size] = bitmap;
+		size++;
+	}
+
+	/**
+	 * Add a chunk in whichever form suits its cardinality.
+	 */
+	private void appendBitmap(int key, long[] bitmap) {
+		int cardinality = 0;
+		for (long word : bitmap) {
+			cardinality += Long.bitCount(word);
+		}
+		if (cardinality == 0) {
+			return;
+		}
+		if (cardinality > ARRAY_MAX) {
+			append(key, cardinality, null, bitmap);
+		} else {
+			append(key, cardinality, toArray(bitmap, cardinality), null);
+		}
+	}
+
+	private static long[] toBitmap(char[] array, int n) {
+		long[] bitmap = new long[BITMAP_WORDS];
+		for (int i = 0; i < n; i++) {
+			bitmap[array[i] >>> 6] |= 1L << array[i];
+		}
+		return bitmap;
+	}
+
+	private static char[] toArray(long[] bitmap, int cardinality) {
+		char[] array = new char[cardinality];
+		int n = 0;
+		for (int w = 0; w < bitmap.length; w++) {
+			for (long word = bitmap[w]; word != 0; word &= word - 1) {
+				array[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+			}
+		}
+		return array;
+	}
+
+	private long[] bitmapOf(int i) {
+		return (arrays[i] == null) ? bitmaps[i] : toBitmap(arrays[i], cardinalities[i]);
+	}
+
+	/**
+	 * @param a a set
+	 * @param b another set
+	 * @return the documents in either set
+	 */
+	public static RoaringDocidSet union(RoaringDocidSet a, RoaringDocidSet b) {
+		RoaringDocidSet result = new RoaringDocidSet(a.size + b.size);
+		int i = 0;
+		int j = 0;
+		while (i < a.size || j < b.size) {
+			if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+				result.append(a.keys[i], a.cardinalities[i], a.arrays[i], a.bitmaps[i]);
+				i++;
+			} else if (i == a.size || b.keys[j] < a.keys[i]) {
+				result.append(b.keys[j], b.cardinalities[j], b.arrays[j], b.bitmaps[j]);
+				j++;
+			} else {
+				int key = a.keys[i];
+				if (a.arrays[i] != null && b.arrays[j] != null
+						&& a.cardinalities[i] + b.cardinalities[j] <= ARRAY_MAX) {
+					char[] merged = new char[a.cardinalities[i] + b.cardinalities[j]];
+					int n = unionArrays(a.arrays[i], a.cardinalities[i], b.arrays[j], b.cardinalities[j], merged);
+					result.append(key, n, Arrays.copyOf(merged, n), null);
+				} else {
+					long[] words = (a.arrays[i] == null) ? a.bitmaps[i].clone() : a.bitmapOf(i);
+					if (b.arrays[j] == null) {
+						long[] other = b.bitmaps[j];
+						for (int w = 0; w < BITMAP_WORDS; w++) {
+							words[w] |= other[w];
+						}
+					} else {
+						char[] other = b.arrays[j];
+						for (int k = 0; k < b.cardinalities[j]; k++) {
+							words[other[k] >>> 6] |= 1L << other[k];
+						}
+					}
+					result.appendBitmap(key, words);
+				}
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param a a set
+	 * @param b another set
+	 * @return the documents in both sets
+	 */
+	public static RoaringDocidSet intersection(RoaringDocidSet a, RoaringDocidSet b) {
+		RoaringDocidSet result = new RoaringDocidSet(Math.min(a.size, b.size));
+		int i = 0;
+		int j = 0;
+		while (i < a.size && j < b.size) {
+			if (a.keys[i] < b.keys[j]) {
+				i++;
+			} else if (b.keys[j] < a.keys[i]) {
+				j++;
+			} else {
+				int key = a.keys[i];
+				if (a.arrays[i] == null && b.arrays[j] == null) {
+					long[] words = new long[BITMAP_WORDS];
+					long[] x = a.bitmaps[i];
+					long[] y = b.bitmaps[j];
+					for (int w = 0; w < BITMAP_WORDS; w++) {
+						words[w] = x[w] & y[w];
+					}
+					result.appendBitmap(key, words);
+				} else if (a.arrays[i] != null && b.arrays[j] != null) {
+					char[] common = new char[Math.min(a.cardinalities[i], b.cardinalities[j])];
+					int n = intersectArrays(a.arrays[i], a.cardinalities[i], b.arrays[j], b.cardinalities[j], common);
+					if (n > 0) {
+						result.append(key, n, Arrays.copyOf(common, n), null);
+					}
+				} else {
+					char[] array = (a.arrays[i] != null) ? a.arrays[i] : b.arrays[j];
+					int cardinality = (a.arrays[i] != null) ? a.cardinalities[i] : b.cardinalities[j];
+					long[] bitmap = (a.arrays[i] != null) ? b.bitmaps[j] : a.bitmaps[i];
+					char[] common = new char[cardinality];
+					int n = 0;
+					for (int k = 0; k < cardinality; k++) {
+						char c = array[k];
+						if ((bitmap[c >>> 6] & (1L << c)) != 0) {
+							common[n++] = c;
+						}
+					}
+					if (n > 0) {
+						result.append(key, n, Arrays.copyOf(common, n), null);
+					}
+				}
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	private static int unionArrays(char[] a, int na, char[] b, int nb, char[] out) {
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while (i < na && j < nb) {
+			if (a[i] < b[j]) {
+				out[n++] = a[i++];
+			} else if (b[j] < a[i]) {
+				out[n++] = b[j++];
+			} else {
+				out[n++] = a[i++];
+				j++;
+			}
+		}
+		while (i < na) {
+			out[n++] = a[i++];
+		}
+		while (j < nb) {
+			out[n++] = b[j++];
+		}
+		return n;
+	}
+
+	private static int intersectArrays(char[] a, int na, char[] b, int nb, char[] out) {
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while (i < na && j < nb) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (b[j] < a[i]) {
+				j++;
+			} else {
+				out[n++] = a[i++];
+				j++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of documents in the set
+	 */
+	public int cardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < size; i++) {
+			cardinality += cardinalities[i];
+		}
+		return cardinality;
+	}
+
+	/**
+	 * @param docid an internal docid
+	 * @return true if the set contains the document
+	 */
+	public boolean contains(int docid) {
+		int i = Arrays.binarySearch(keys, 0, size, docid >>> 16);
+		if (i < 0) {
+			return false;
+		}
+		char c = (char) docid;
+		if (arrays[i] == null) {
+			return (bitmaps[i][c >>> 6] & (1L << c)) != 0;
+		}
+		return Arrays.binarySearch(arrays[i], 0, cardinalities[i], c) >= 0;
+	}
+
+	/**
+	 * @return the documents in the set, in increasing order
+	 */
+	public int[] toArray() {
+		int[] docids = new int[cardinality()];
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			int high = keys[i] << 16;
+			if (arrays[i] != null) {
+				for (int k = 0; k < cardinalities[i]; k++) {
+					docids[n++] = high | arrays[i][k];
+				}
+			} else {
+				long[] bitmap = bitmaps[i];
+				for (int w = 0; w < BITMAP_WORDS; w++) {
+					for (long word = bitmap[w]; word != 0; word &= word - 1) {
+						docids[n++] = high | ((w << 6) + Long.numberOfTrailingZeros(word));
+					}
+				}
+			}
+		}
+		return docids;
+	}
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Score-at-a-time evaluation of BM25 queries from the impact-ordered
+ * index ({@link ImpactIndex}).  The segments of all of a query's terms
+ * are processed in order of decreasing impact, and each posting adds
+ * its impact to the document's integer accumulator, so the postings
+ * that contribute most to the ranking are processed first.  Evaluation
+ * can stop after a fixed number of postings, which bounds the work of
+ * every query; the results are then an approximation of the ranking
+ * that would be reached with more postings.
+ * <p>
+ * A query can be evaluated if it is a #SUM of terms or a single term
+ * (see {@link BatchEvaluator#leaves}).  Scores are the sums of the
+ * quantized impacts, converted back to BM25 units, so they differ
+ * slightly from exact BM25 scores even when every posting is processed.
+ */
+public class SaatEvaluator {
+
+	/**
+	 * Evaluate a query.
+	 * @param q a query for which {@link BatchEvaluator#leaves} isn't null
+	 * @param index the impact index
+	 * @param maxPostings the most postings to process, or 0 for no limit
+	 * @return the query's results
+	 */
+	public static ScoreList evaluate(Qry q, ImpactIndex index, long maxPostings) {
+		QryIopTerm[] terms = BatchEvaluator.leaves(q);
+
+		//  Order the segments of all terms by impact; ties keep query
+		//  order.  Each entry is (impact, segment number).
+
+		ImpactIndex.Segments[] segments = new ImpactIndex.Segments[terms.length];
+		int total = 0;
+		for (int i = 0; i < terms.length; i++) {
+			segments[i] = index.getSegments(terms[i].getTerm(), terms[i].getField());
+			total += segments[i].impacts.length;
+		}
+		long[] order = new long[total];
+		int[] impacts = new int[total];
+		int[] counts = new int[total];
+		long[] offsets = new long[total];
+		int n = 0;
+		for (ImpactIndex.Segments s : segments) {
+			for (int j = 0; j < s.impacts.length; j++) {
+				impacts[n] = s.impacts[j];
+				counts[n] = s.counts[j];
+				offsets[n] = s.offsets[j];
+				order[n] = ((long) (Integer.MAX_VALUE - impacts[n]) << 32) | n;
+				n++;
+			}
+		}
+		Arrays.sort(order);
+
+		int maxDoc = Idx.getMaxDoc();
+		int[] acc = new int[maxDoc];
+		long[] seen = new long[(maxDoc + 63) / 64];
+		long remaining = (maxPostings > 0) ? maxPostings : Long.MAX_VALUE;
+		for (long entry : order) {
+			int k = (int) entry;
+			int impact = impacts[k];
+			long at = offsets[k];
+			int count = (int) Math.min(counts[k], remaining);
+			for (int p = 0; p < count; p++, at += 4) {
+				int docid = index.getDocid(at);
+				acc[docid] += impact;
+				seen[docid >>> 6] |= 1L << docid;
+			}
+			remaining -= count;
+			if (remaining == 0 || QueryBudget.scored(count)) {
+				break;
+			}
+		}
+
+		ScoreList r = new ScoreList();
+		double scale = index.getScale();
+		for (int w = 0; w < seen.length; w++) {
+			long word = seen[w];
+			while (word != 0) {
+				int docid = (w << 6) + Long.numberOfTrailingZeros(word);
+				r.add(docid, acc[docid] * scale);
+				word &= word - 1;
+			}
+		}
+		return r;
+	}
+}
@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A small scheduler for pipelines of dependent stages, e.g. the LeToR
+ * pipeline.  A stage starts as soon as all of its dependencies have
+ * finished, so independent stages run concurrently.  The wall time of
+ * each stage is recorded and can be reported afterwards.
+ */
+public class StageScheduler {
+
+	/**
+	 * One unit of work in the pipeline.
+	 */
+	public interface Stage {
+		void run() throws Exception;
+	}
+
+	private static class StageInfo {
+		final String name;
+		final Stage stage;
+		final String[] dependencies;
+		final Timer timer = new Timer();
+		boolean submitted = false;
+		boolean done = false;
+
+		StageInfo(String name, Stage stage, String[] dependencies) {
+			this.name = name;
+			this.stage = stage;
+			this.dependencies = dependencies;
+		}
+	}
+
+	private final Map<String, StageInfo> stages = new LinkedHashMap<String, StageInfo>();
+
+	/**
+	 * Add a stage.  Dependencies must already have been added, which
+	 * also rules out cycles.
+	 * @param name a unique stage name
+	 * @param stage the work to do
+	 * @param dependencies names of the stages that must finish first
+	 */
+	public void addStage(String name, Stage stage, String... dependencies) {
+		if (stages.containsKey(name)) {
+			throw new IllegalArgumentException("Duplicate stage " + name);
+		}
+		for (String dependency : dependencies) {
+			if (!stages.containsKey(dependency)) {
+				throw new IllegalArgumentException("Stage " + name + " depends on unknown stage " + dependency);
+			}
+		}
+		stages.put(name, new StageInfo(name, stage, dependencies));
+	}
+
+	/**
+	 * Run every stage.  Ready stages are started in the order that they
+	 * were added.  If a stage fails, no new stages are started, and the
+	 * first failure is rethrown once the running stages finish.
+	 * @param numThreads the maximum number of stages to run at once
+	 * @throws Exception the first exception thrown by a stage
+	 */
+	public void run(int numThreads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		CompletionService<StageInfo> completion = new ExecutorCompletionService<StageInfo>(executor);
+		int running = 0;
+		Exception failure = null;
+		try {
+			running += submitReadyStages(completion);
+			while (running > 0) {
+				StageInfo finished;
+				try {
+					finished = completion.take().get();
+				} catch (ExecutionException e) {
+					running--;
+					if (failure == null) {
+						failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+					}
+					continue;
+				}
+				running--;
+				finished.done = true;
+				if (failure == null) {
+					running += submitReadyStages(completion);
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private int submitReadyStages(CompletionService<StageInfo> completion) {
+		int count = 0;
+		for (final StageInfo info : stages.values()) {
+			if (info.submitted || !dependenciesDone(info)) {
+				continue;
+			}
+			info.submitted = true;
+			count++;
+			completion.submit(new Callable<StageInfo>() {
+				@Override
+				public StageInfo call() throws Exception {
+					info.timer.start();
+					try {
+						info.stage.run();
+					} finally {
+						info.timer.stop();
+					}
+					return info;
+				}
+			});
+		}
+		return count;
+	}
+
+	private boolean dependenciesDone(StageInfo info) {
+		for (String dependency : info.dependencies) {
+			if (!stages.get(dependency).done) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return one line per completed stage with its wall time
+	 */
+	public List<String> report() {
+		List<String> lines = new ArrayList<String>();
+		for (StageInfo info : stages.values()) {
+			if (info.done) {
+				lines.add("Stage " + info.name + ":  " + info.timer);
+			}
+		}
+		return lines;
+	}
+}
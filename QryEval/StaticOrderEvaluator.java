@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.util.PriorityQueue;
+
+/**
+ * Evaluation with a static prior and early termination on an index
+ * whose docids are in order of decreasing static score
+ * ({@link StaticScores}).  A document's score is its text score plus
+ * weight * its static score.  The query is evaluated on increasing
+ * docid ranges (the first has FIRST_RANGE documents, and each range
+ * is twice as long as the one before it); the terms that are scored
+ * directly (the arguments of #SCORE) read only the range's part of
+ * their posting lists.  After each range, the largest score that a
+ * later document can have is the query's text score upper bound plus
+ * weight * the static score of the range's end, because static scores
+ * decrease with docid.  When that is less than the k'th best score,
+ * evaluation stops; the top k documents are the same as with full
+ * evaluation.
+ * <p>
+ * Text score upper bounds are known for BM25 #SUM and #SCORE: a
+ * term's BM25 score is less than idf * the user weight, because the
+ * tf weight is less than 1.  Other queries are evaluated to the end.
+ * <p>
+ * The evaluator counts the postings that it reads and the postings of
+ * the full lists of the same terms, for {@link #report}.
+ */
+public class StaticOrderEvaluator {
+
+	private static final int FIRST_RANGE = 1024;
+
+	private static long queries = 0;
+	private static long earlyQueries = 0;
+	private static long postingsRead = 0;
+	private static long postingsFull = 0;
+
+	/**
+	 * Evaluate a query.
+	 * @param q a query that hasn't been initialized
+	 * @param r the retrieval model
+	 * @param scores the static scores of the open index
+	 * @param weight the weight of the static score (at least 0; the
+	 *        early exit assumes that later documents can't gain from
+	 *        their static scores)
+	 * @param k the number of top documents that must be exact (at least 1)
+	 * @return the query's results
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static ScoreList evaluate(Qry q, RetrievalModel r, StaticScores scores, double weight, int k)
+			throws IOException {
+		int maxDoc = Idx.getMaxDoc();
+		ScoreList result = new ScoreList();
+		PriorityQueue<Double> topK = new PriorityQueue<Double>(Math.min(k, 1024));
+		int[] docids = new int[BlockKernels.BLOCK_SIZE];
+		double[] blockScores = new double[BlockKernels.BLOCK_SIZE];
+		double textBound = Double.POSITIVE_INFINITY;
+		queries++;
+
+		int from = 0;
+		int length = FIRST_RANGE;
+		while (from < maxDoc) {
+			int to = (int) Math.min(maxDoc, (long) from + length);
+			TieredEvaluator.restrictTerms(q, from, to);
+			q.initialize(r);
+			if (QueryBudget.approximate(q, r)) {
+
+				//  Partial lists would give wrong statistics.  Start again
+				//  with the approximation, which has a different bound.
+
+				result = new ScoreList();
+				topK.clear();
+				from = 0;
+				length = FIRST_RANGE;
+				continue;
+			}
+			countPostings(q, from == 0);
+			if (from == 0) {
+				textBound = upperBound(q, r);
+			} else {
+				q.docIteratorAdvanceTo(from);
+			}
+
+			int n;
+			while ((n = q.docIteratorNextBlock(r, to, docids, blockScores)) > 0) {
+				for (int i = 0; i < n; i++) {
+					double score = blockScores[i] + weight * scores.getScore(docids[i]);
+					result.add(docids[i], score);
+					if (topK.size() < k) {
+						topK.add(score);
+					} else if (score > topK.peek()) {
+						topK.poll();
+						topK.add(score);
+					}
+				}
+				if (QueryBudget.scored(n)) {
+					return result;
+				}
+			}
+
+			from = to;
+			length = (int) Math.min(2L * length, Integer.MAX_VALUE);
+			if (from < maxDoc && topK.size() >= k && textBound + weight * scores.getScore(from) < topK.peek()) {
+				earlyQueries++;
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return an upper bound on q's text scores, or infinity if there
+	 *         isn't one
+	 */
+	private static double upperBound(Qry q, RetrievalModel r) throws IOException {
+		if (!(r instanceof RetrievalModelBM25)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		if (q instanceof QrySopSum) {
+			double bound = 0;
+			for (Qry q_i : q.args) {
+				bound += upperBound(q_i, r);
+			}
+			return bound;
+		}
+		if (q instanceof QrySopScore) {
+			double N = Idx.getNumDocs();
+			double qtf = 1;
+			double df = ((QryIop) q.args.get(0)).getDf();
+			double k3 = RetrievalModelBM25.k3;
+			double idf = Math.max(0, Math.log( (N-df+0.5)/(df+0.5) ));
+			double userWeight = (k3+1) * qtf / (k3+qtf);
+			return idf * userWeight;
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Count the postings of the query's initialized terms.
+	 * @param full also count the postings of the terms' full lists
+	 */
+	private static void countPostings(Qry q, boolean full) {
+		if (q instanceof QryIopTerm) {
+			QryIopTerm t = (QryIopTerm) q;
+			postingsRead += t.invertedList.df;
+			if (full) {
+				postingsFull += t.getDf();
+			}
+			return;
+		}
+		for (Qry q_i : q.args) {
+			countPostings(q_i, full);
+		}
+	}
+
+	/**
+	 * @return a summary of the queries evaluated so far, or null if
+	 *         there were none
+	 */
+	public static String report() {
+		if (queries == 0) {
+			return null;
+		}
+		return String.format("Static order:  %d of %d queries stopped early; %.1f%% of postings read",
+				earlyQueries, queries, 100.0 * postingsRead / Math.max(1, postingsFull));
+	}
+}
@@ -0,0 +1,174 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The static scores (query-independent priors) of the documents of an
+ * index that {@link IndexReorderer} ordered by decreasing static score,
+ * for {@link StaticOrderEvaluator}.  A static score is in 0..1; it is
+ * the spam score / 99, or the percentile of the document's PageRank.
+ * Because of the order, the score of docid d is an upper bound on the
+ * static scores of docids d and higher.
+ * <p>
+ * The scores are a sidecar file ({@link Idx#getSidecarFile}) of the
+ * ordered index that records its fingerprint; they are ignored if the
+ * index changes.
+ */
+public class StaticScores {
+
+	private static final int MAGIC = 0x53545331;	// "STS1"
+	private static final String FILE_NAME = "static-scores.bin";
+
+	private static StaticScores opened = null;
+	private static String openedIndexId = null;
+
+	private final String prior;
+	private final float[] scores;
+
+	/**
+	 * @param prior the name of the static score (spam or pagerank)
+	 * @param scores the static scores indexed by docid, in decreasing order
+	 * @throws IllegalArgumentException the scores aren't in decreasing order
+	 */
+	public StaticScores(String prior, float[] scores) {
+		for (int docid = 1; docid < scores.length; docid++) {
+			if (scores[docid] > scores[docid - 1]) {
+				throw new IllegalArgumentException("Static scores must decrease with docid.");
+			}
+		}
+		this.prior = prior;
+		this.scores = scores;
+	}
+
+	/**
+	 * @return the name of the static score (spam or pagerank)
+	 */
+	public String getPrior() {
+		return this.prior;
+	}
+
+	/**
+	 * @param docid an internal docid
+	 * @return the document's static score, which is also the largest
+	 *         static score of docids docid and higher
+	 */
+	public float getScore(int docid) {
+		return this.scores[docid];
+	}
+
+	/**
+	 * Compute a static score for each document of the open index.
+	 * @param prior spam or pagerank
+	 * @param pageRank PageRank scores indexed by docid, needed for pagerank
+	 * @return the static scores indexed by docid
+	 * @throws IOException Error accessing the index.
+	 */
+	public static float[] compute(String prior, float[] pageRank) throws IOException {
+		int maxDoc = Idx.getMaxDoc();
+		float[] scores = new float[maxDoc];
+		if (prior.equals("spam")) {
+			AttributeStore attributes = Idx.getAttributeStore();
+			for (int docid = 0; docid < maxDoc; docid++) {
+				int spam = 0;
+				if (attributes != null) {
+					spam = attributes.getSpamScore(docid);
+				} else {
+					String score = Idx.getAttribute("score", docid);
+					spam = (score == null) ? 0 : Integer.parseInt(score.trim());
+				}
+				scores[docid] = spam / 99f;
+			}
+		} else if (prior.equals("pagerank")) {
+			if (pageRank == null) {
+				throw new IllegalArgumentException("The pagerank prior needs PageRank scores.");
+			}
+
+			//  Percentiles come from the rank of each document.
+
+			long[] byPageRank = new long[maxDoc];
+			for (int docid = 0; docid < maxDoc; docid++) {
+				byPageRank[docid] = ((long) Float.floatToIntBits(Math.max(0f, pageRank[docid])) << 32) | docid;
+			}
+			Arrays.sort(byPageRank);
+			for (int rank = 0; rank < maxDoc; rank++) {
+				scores[(int) byPageRank[rank]] = (float) (rank / (double) Math.max(1, maxDoc - 1));
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown static score " + prior);
+		}
+		return scores;
+	}
+
+	/**
+	 * The static scores of the open index, read once per index.
+	 * @return the scores, or null if the index isn't ordered by static score
+	 * @throws IOException Error reading the scores.
+	 */
+	public static synchronized StaticScores get() throws IOException {
+		String indexId = Idx.getIndexId();
+		if (!indexId.equals(openedIndexId)) {
+			opened = open();
+			openedIndexId = indexId;
+		}
+		return opened;
+	}
+
+	private static StaticScores open() throws IOException {
+		File file = Idx.getSidecarFile(FILE_NAME);
+		if (!file.canRead()) {
+			System.err.println("Warning: the index isn't ordered by static score; "
+					+ "reorder it with java IndexReorderer (reorder:method=static)");
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC
+					|| in.readInt() != Idx.getMaxDoc()
+					|| in.readLong() != Idx.getIndexFingerprint()) {
+				System.err.println("Warning: ignoring stale static scores " + file);
+				return null;
+			}
+			String prior = in.readUTF();
+			float[] scores = new float[Idx.getMaxDoc()];
+			for (int docid = 0; docid < scores.length; docid++) {
+				scores[docid] = in.readFloat();
+			}
+			return new StaticScores(prior, scores);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the scores as the sidecar of the open index.
+	 * @throws IOException Error writing the scores.
+	 */
+	public void write() throws IOException {
+		if (this.scores.length != Idx.getMaxDoc()) {
+			throw new IllegalArgumentException("Expecting " + Idx.getMaxDoc() + " static scores.");
+		}
+		File file = Idx.createSidecarFile(FILE_NAME);
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(Idx.getMaxDoc());
+			out.writeLong(Idx.getIndexFingerprint());
+			out.writeUTF(this.prior);
+			for (float score : this.scores) {
+				out.writeFloat(score);
+			}
+		} finally {
+			out.close();
+		}
+		if (!(tmp.renameTo(file) || (file.delete() && tmp.renameTo(file)))) {
+			throw new IOException("Unable to replace " + file);
+		}
+	}
+}
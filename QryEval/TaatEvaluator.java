@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Term-at-a-time evaluation of short BM25 queries.  A query that is a
+ * #SUM of terms (or a single term; see {@link BatchEvaluator#leaves})
+ * is evaluated one posting list at a time: each posting adds its BM25
+ * score ({@link BM25Postings}) to the document's accumulator, with no
+ * per-document calls through the Qry tree.  Accumulators are a dense
+ * array indexed by docid, or a hash table when the query's lists are
+ * short compared with the collection.
+ * <p>
+ * The number of accumulators can be limited, as in Moffat and Zobel's
+ * Quit and Continue strategies.  Terms are then processed in order of
+ * decreasing score upper bound, so the most selective terms create
+ * the accumulators, and when the limit is reached:
+ * <pre>
+ *   quit       evaluation stops
+ *   continue   existing accumulators are updated, but no new ones
+ *              are created
+ * </pre>
+ * Without a limit, terms are processed in argument order and scores
+ * are added in the order that #SUM adds them, so results are identical
+ * to DAAT evaluation.
+ */
+public class TaatEvaluator {
+
+	/**
+	 * A hash table is used when the query's postings are fewer than
+	 * maxDoc / SPARSE_RATIO.
+	 */
+	private static final int SPARSE_RATIO = 16;
+
+	/**
+	 * @param pruning an accumulator pruning strategy name
+	 * @throws IllegalArgumentException the name is unknown
+	 */
+	public static void validate(String pruning) {
+		if (!pruning.equals("quit") && !pruning.equals("continue")) {
+			throw new IllegalArgumentException("Unknown taat:pruning " + pruning);
+		}
+	}
+
+	/**
+	 * Decide whether a query should be evaluated term-at-a-time.  TAAT
+	 * reads postings without positions and does one addition per
+	 * posting, but it holds an accumulator for every document that
+	 * matches any term, so it is chosen for flat queries that have at
+	 * most maxTerms terms; longer queries are evaluated DAAT, as are all
+	 * queries when BM25 uses precomputed weights.
+	 * @param q an optimized query
+	 * @param maxTerms the most terms for TAAT evaluation
+	 * @return true if q should be evaluated by this class
+	 */
+	public static boolean choose(Qry q, int maxTerms) {
+		if (RetrievalModelBM25.weightStore) {
+			return false;	// precomputed weights are read by QrySopScore
+		}
+		QryIopTerm[] terms = BatchEvaluator.leaves(q);
+		return terms != null && terms.length <= maxTerms;
+	}
+
+	/**
+	 * Evaluate a query.
+	 * @param q a query for which {@link BatchEvaluator#leaves} isn't null
+	 * @param maxAccumulators the most accumulators, or 0 for no limit
+	 * @param pruning quit or continue
+	 * @return the query's results
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static ScoreList evaluate(Qry q, int maxAccumulators, String pruning) throws IOException {
+		QryIopTerm[] terms = BatchEvaluator.leaves(q);
+		BM25Postings[] lists = new BM25Postings[terms.length];
+		long postings = 0;
+		for (int i = 0; i < terms.length; i++) {
+			lists[i] = BM25Postings.read(terms[i].getTerm(), terms[i].getField());
+			postings += lists[i].docids.length;
+		}
+		int limit = (maxAccumulators > 0) ? maxAccumulators : Integer.MAX_VALUE;
+		if (limit < Integer.MAX_VALUE) {
+			Arrays.sort(lists, new Comparator<BM25Postings>() {
+				@Override
+				public int compare(BM25Postings l1, BM25Postings l2) {
+					return Double.compare(l2.maxScore, l1.maxScore);
+				}
+			});
+		}
+		boolean quit = pruning.equals("quit");
+
+		int maxDoc = Idx.getMaxDoc();
+		if (postings * SPARSE_RATIO < maxDoc) {
+			return evaluateSparse(lists, limit, quit);
+		}
+
+		double[] acc = new double[maxDoc];
+		long[] seen = new long[(maxDoc + 63) / 64];
+		int count = 0;
+		for (BM25Postings list : lists) {
+			int[] docids = list.docids;
+			double[] scores = list.scores;
+			for (int p = 0; p < docids.length; p++) {
+				int docid = docids[p];
+				long bit = 1L << docid;
+				if ((seen[docid >>> 6] & bit) != 0) {
+					acc[docid] += scores[p];
+				} else if (count < limit) {
+					acc[docid] += scores[p];
+					seen[docid >>> 6] |= bit;
+					count++;
+				} else if (quit) {
+					break;
+				}
+			}
+			if ((quit && count >= limit) || QueryBudget.scored(docids.length)) {
+				break;
+			}
+		}
+
+		ScoreList r = new ScoreList();
+		for (int w = 0; w < seen.length; w++) {
+			long word = seen[w];
+			while (word != 0) {
+				int docid = (w << 6) + Long.numberOfTrailingZeros(word);
+				r.add(docid, acc[docid]);
+				word &= word - 1;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Evaluate with accumulators in an open-addressing hash table.
+	 */
+	private static ScoreList evaluateSparse(BM25Postings[] lists, int limit, boolean quit) {
+		int capacity = 16;
+		int[] keys = new int[capacity];
+		double[] acc = new double[capacity];
+		Arrays.fill(keys, -1);
+		int count = 0;
+		for (BM25Postings list : lists) {
+			int[] docids = list.docids;
+			double[] scores = list.scores;
+			for (int p = 0; p < docids.length; p++) {
+				int docid = docids[p];
+				int slot = (docid * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(capacity));
+				while (keys[slot] != -1 && keys[slot] != docid) {
+					slot = (slot + 1) & (capacity - 1);
+				}
+				if (keys[slot] == docid) {
+					acc[slot] += scores[p];
+				} else if (count < limit) {
+					keys[slot] = docid;
+					acc[slot] += scores[p];
+					count++;
+					if (2 * count > capacity) {
+						capacity *= 2;
+						int[] oldKeys = keys;
+						double[] oldAcc = acc;
+						keys = new int[capacity];
+						acc = new double[capacity];
+						Arrays.fill(keys, -1);
+						for (int i = 0; i < oldKeys.length; i++) {
+							if (oldKeys[i] != -1) {
+								int s = (oldKeys[i] * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(capacity));
+								while (keys[s] != -1) {
+									s = (s + 1) & (capacity - 1);
+								}
+								keys[s] = oldKeys[i];
+								acc[s] = oldAcc[i];
+							}
+						}
+					}
+				} else if (quit) {
+					break;
+				}
+			}
+			if ((quit && count >= limit) || QueryBudget.scored(docids.length)) {
+				break;
+			}
+		}
+
+		//  Report the accumulators in docid order, as DAAT does.
+
+		long[] entries = new long[count];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != -1) {
+				entries[n++] = ((long) keys[i] << 32) | i;
+			}
+		}
+		Arrays.sort(entries);
+		ScoreList r = new ScoreList();
+		for (long entry : entries) {
+			r.add((int) (entry >>> 32), acc[(int) entry]);
+		}
+		return r;
+	}
+}
@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tiered evaluation on a {@link TieredIndex}.  A query is evaluated on
+ * tier 1 first; the terms that are scored directly (the arguments of
+ * #SCORE) read only the tier 1 prefix of their posting lists, and
+ * evaluation stops at the end of tier 1.  The remainder is never read
+ * if tier 1 has at least k matches and its k'th best score is more
+ * than the largest score that a document of the remainder can have,
+ * because then the remainder can't change the top k.  Otherwise the
+ * query is evaluated again on the remainder, and its matches are
+ * added to tier 1's.  Scores use the collection statistics of the
+ * whole index, so a document's score doesn't depend on its tier, and
+ * the top k documents are the same as with full evaluation.
+ * <p>
+ * The remainder's largest score is bounded for BM25 #SUM and #SCORE of
+ * a term: a term's tf weight is largest for its largest tf and its
+ * smallest field length in the remainder
+ * ({@link TieredIndex#getRemainderStats}).  The remainder is always
+ * read for other queries.
+ * <p>
+ * The evaluator counts the postings that it reads and the postings of
+ * the full lists of the same terms, for {@link #report}.
+ */
+public class TieredEvaluator {
+
+	private static long queries = 0;
+	private static long remainderQueries = 0;
+	private static long postingsRead = 0;
+	private static long postingsFull = 0;
+
+	/**
+	 * Evaluate a query.
+	 * @param q a query that hasn't been initialized
+	 * @param r the retrieval model
+	 * @param tiers the tiers of the open index
+	 * @param k the number of top documents that must be exact
+	 * @return the query's results
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	public static ScoreList evaluate(Qry q, RetrievalModel r, TieredIndex tiers, int k) throws IOException {
+		int tier1Docs = tiers.getTier1Docs();
+		ScoreList result = new ScoreList();
+		queries++;
+
+		initialize(q, r, 0, tier1Docs);
+		countPostings(q, true);
+		boolean truncated = evaluate(q, r, tier1Docs, result);
+		if (truncated || tier1Docs >= Idx.getMaxDoc()
+				|| kthScore(result, k) > remainderBound(q, r, tiers)) {
+			return result;
+		}
+
+		remainderQueries++;
+		if (initialize(q, r, tier1Docs, Idx.getMaxDoc())) {
+
+			//  The tier 1 scores are the exact query's; evaluate the
+			//  approximation on the whole index.
+
+			result = new ScoreList();
+			initialize(q, r, 0, Idx.getMaxDoc());
+			countPostings(q, false);
+			evaluate(q, r, Integer.MAX_VALUE, result);
+			return result;
+		}
+		countPostings(q, false);
+		q.docIteratorAdvanceTo(tier1Docs);
+		evaluate(q, r, Integer.MAX_VALUE, result);
+		return result;
+	}
+
+	/**
+	 * Initialize q on the docids from..to-1, or its approximation if the
+	 * budget runs out while its lists are built ({@link QueryBudget#approximate}).
+	 * @return true if q was approximated
+	 */
+	private static boolean initialize(Qry q, RetrievalModel r, int from, int to) throws IOException {
+		restrictTerms(q, from, to);
+		q.initialize(r);
+		if (QueryBudget.approximate(q, r)) {
+			restrictTerms(q, from, to);
+			q.initialize(r);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add q's matches below upTo to result.
+	 * @return true if the query's budget ran out
+	 */
+	private static boolean evaluate(Qry q, RetrievalModel r, int upTo, ScoreList result) throws IOException {
+		int[] docids = new int[BlockKernels.BLOCK_SIZE];
+		double[] scores = new double[BlockKernels.BLOCK_SIZE];
+		int n;
+		while ((n = q.docIteratorNextBlock(r, upTo, docids, scores)) > 0) {
+			for (int i = 0; i < n; i++) {
+				result.add(docids[i], scores[i]);
+			}
+			if (QueryBudget.scored(n)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the k'th best score of result, or -infinity if it has
+	 *         fewer than k documents
+	 */
+	private static double kthScore(ScoreList result, int k) {
+		int n = result.size();
+		if (k < 1 || n < k) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		double[] scores = new double[n];
+		for (int i = 0; i < n; i++) {
+			scores[i] = result.getDocidScore(i);
+		}
+		Arrays.sort(scores);
+		return scores[n - k];
+	}
+
+	/**
+	 * @param q an initialized query
+	 * @return an upper bound on the scores of q's matches in the
+	 *         remainder, or infinity if there isn't one
+	 */
+	private static double remainderBound(Qry q, RetrievalModel r, TieredIndex tiers) throws IOException {
+		if (!(r instanceof RetrievalModelBM25)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		if (q instanceof QrySopSum) {
+			double bound = 0;
+			for (Qry q_i : q.args) {
+				bound += remainderBound(q_i, r, tiers);
+			}
+			return bound;
+		}
+		if (q instanceof QrySopScore && q.args.get(0) instanceof QryIopTerm) {
+			QryIopTerm t = (QryIopTerm) q.args.get(0);
+			int[] stats = tiers.getRemainderStats(t.getTerm(), t.getField());
+			if (stats == null) {
+				return 0;
+			}
+
+			//  Quantization keeps the order of lengths, so the smallest
+			//  quantized length is the quantized smallest length.
+
+			double tf = stats[0];
+			double docLen = Idx.hasQuantizedLengths()
+					? DocLengthStore.decodeLength(DocLengthStore.encodeLength(stats[1])) : stats[1];
+			double k1 = RetrievalModelBM25.k1;
+			double b = RetrievalModelBM25.b;
+			double k3 = RetrievalModelBM25.k3;
+			double N = Idx.getNumDocs();
+			double df = t.getDf();
+			double qtf = 1;
+			double avgdocLen = Idx.getSumOfFieldLengths(t.getField()) / (double) Idx.getDocCount(t.getField());
+			double idf = Math.max(0, Math.log( (N-df+0.5)/(df+0.5) ));
+			double tfWeight = tf / (tf + k1*((1-b)+b*docLen/avgdocLen));
+			if (RetrievalModelBM25.weightStore) {
+				tfWeight += 1 / 65535.0;	// BM25WeightStore rounds weights to 16 bits
+			}
+			double userWeight = (k3+1) * qtf / (k3+qtf);
+			return idf * tfWeight * userWeight;
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Restrict the terms that are scored directly to a range of
+	 * documents.  Terms inside other inverted list operators (e.g.,
+	 * #NEAR/n) need their full lists for the operators' statistics.
+	 */
+	static void restrictTerms(Qry q, int from, int to) {
+		if (q instanceof QrySopScore && q.args.get(0) instanceof QryIopTerm) {
+			((QryIopTerm) q.args.get(0)).restrictTo(from, to);
+		} else if (q instanceof QrySop) {
+			for (Qry q_i : q.args) {
+				restrictTerms(q_i, from, to);
+			}
+		}
+	}
+
+	/**
+	 * Count the postings of the query's initialized terms.
+	 * @param full also count the postings of the terms' full lists
+	 */
+	private static void countPostings(Qry q, boolean full) {
+		if (q instanceof QryIopTerm) {
+			QryIopTerm t = (QryIopTerm) q;
+			postingsRead += t.invertedList.df;
+			if (full) {
+				postingsFull += t.getDf();
+			}
+			return;
+		}
+		for (Qry q_i : q.args) {
+			countPostings(q_i, full);
+		}
+	}
+
+	/**
+	 * @return a summary of the queries evaluated so far, or null if
+	 *         there were none
+	 */
+	public static String report() {
+		if (queries == 0) {
+			return null;
+		}
+		return String.format("Tiers:  the remainder was read for %d of %d queries; %.1f%% of postings read",
+				remainderQueries, queries, 100.0 * postingsRead / Math.max(1, postingsFull));
+	}
+}
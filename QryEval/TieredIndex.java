@@ -0,0 +1,316 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+
+/**
+ * A quality-tiered index.  The documents of tier 1, the most likely
+ * to be in the top results, are the first docids of the index, and
+ * the remainder follow them, so the tier 1 part of every posting list
+ * is a prefix that can be read on its own ({@link TieredEvaluator}).
+ * A document's quality is its spam score (a percentile; higher is
+ * less spammy) plus the percentile of its PageRank, both scaled to
+ * 0..1, and tier 1 is the given fraction of the documents with the
+ * highest quality.  Documents keep their order within a tier.
+ * <p>
+ * The tool writes a copy of an index with the documents in tier order,
+ * and a sidecar file ({@link Idx#getSidecarFile}) that records the
+ * size of tier 1, the tiered index's fingerprint and, for each term of
+ * a field with lengths, the largest tf and the smallest field length
+ * of its postings in the remainder, which bound the term's BM25
+ * scores there:
+ * <pre>
+ *   java TieredIndex indexPath tieredIndexPath pageRankFile [tier1Fraction]
+ * </pre>
+ * Docids change, so other sidecar files (e.g., the
+ * {@link AttributeStore}) must be built for the tiered index.
+ */
+public class TieredIndex {
+
+	private static final int MAGIC = 0x54495232;	// "TIR2"
+	private static final String FILE_NAME = "tiers.bin";
+
+	private static TieredIndex opened = null;
+	private static String openedIndexId = null;
+
+	private final int tier1Docs;
+	private final Map<String, int[]> remainderStats;	// field \0 term -> {max tf, min length}
+
+	private TieredIndex(int tier1Docs, Map<String, int[]> remainderStats) {
+		this.tier1Docs = tier1Docs;
+		this.remainderStats = remainderStats;
+	}
+
+	/**
+	 * @return the number of docids in tier 1; tier 1 is docids
+	 *         0..tier1Docs-1
+	 */
+	public int getTier1Docs() {
+		return this.tier1Docs;
+	}
+
+	/**
+	 * @param term a processed term
+	 * @param field the field that the term occurs in
+	 * @return {the largest tf, the smallest field length} of the
+	 *         term's postings in the remainder, or null if the
+	 *         remainder doesn't have the term
+	 */
+	public int[] getRemainderStats(String term, String field) {
+		return this.remainderStats.get(field + "\u0000" + term);
+	}
+
+	/**
+	 * The tiers of the open index, read once per index.
+	 * @return the tiers, or null if the index isn't tiered
+	 * @throws IOException Error reading the tiers.
+	 */
+	public static synchronized TieredIndex get() throws IOException {
+		String indexId = Idx.getIndexId();
+		if (!indexId.equals(openedIndexId)) {
+			opened = open();
+			openedIndexId = indexId;
+		}
+		return opened;
+	}
+
+	private static TieredIndex open() throws IOException {
+		File file = Idx.getSidecarFile(FILE_NAME);
+		if (!file.canRead()) {
+			System.err.println("Warning: the index isn't tiered; build a tiered index with java TieredIndex");
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC
+					|| in.readInt() != Idx.getMaxDoc()
+					|| in.readLong() != Idx.getIndexFingerprint()) {
+				System.err.println("Warning: ignoring stale tiers " + file);
+				return null;
+			}
+			int tier1Docs = in.readInt();
+			int numTerms = in.readInt();
+			Map<String, int[]> remainderStats = new HashMap<String, int[]>(2 * numTerms);
+			for (int i = 0; i < numTerms; i++) {
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				remainderStats.put(new String(key, StandardCharsets.UTF_8), new int[] { in.readInt(), in.readInt() });
+			}
+			return new TieredIndex(tier1Docs, remainderStats);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Choose tier 1 from the open index's documents.
+	 * @param pageRank PageRank scores indexed by docid
+	 * @param fraction the fraction of the live documents in tier 1
+	 * @return tier 1's docids
+	 * @throws IOException Error accessing the index.
+	 */
+	private static FixedBitSet chooseTier1(float[] pageRank, double fraction) throws IOException {
+		int maxDoc = Idx.getMaxDoc();
+		Bits liveDocs = MultiFields.getLiveDocs(Idx.INDEXREADER);
+		AttributeStore attributes = Idx.getAttributeStore();
+
+		//  PageRank percentiles come from the rank of each document.
+
+		long[] byPageRank = new long[maxDoc];
+		for (int docid = 0; docid < maxDoc; docid++) {
+			byPageRank[docid] = ((long) Float.floatToIntBits(Math.max(0f, pageRank[docid])) << 32) | docid;
+		}
+		Arrays.sort(byPageRank);
+
+		double[] quality = new double[maxDoc];
+		for (int rank = 0; rank < maxDoc; rank++) {
+			quality[(int) byPageRank[rank]] = rank / (double) Math.max(1, maxDoc - 1);
+		}
+		for (int docid = 0; docid < maxDoc; docid++) {
+			int spam = 0;
+			if (attributes != null) {
+				spam = attributes.getSpamScore(docid);
+			} else {
+				String score = Idx.getAttribute("score", docid);
+				spam = (score == null) ? 0 : Integer.parseInt(score.trim());
+			}
+			quality[docid] += spam / 99.0;
+		}
+
+		//  The best documents, ties in docid order.
+
+		Integer[] order = new Integer[maxDoc];
+		int live = 0;
+		for (int docid = 0; docid < maxDoc; docid++) {
+			if (liveDocs == null || liveDocs.get(docid)) {
+				order[live++] = docid;
+			}
+		}
+		final double[] q = quality;
+		Arrays.sort(order, 0, live, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer d1, Integer d2) {
+				int c = Double.compare(q[d2], q[d1]);
+				return (c != 0) ? c : Integer.compare(d1, d2);
+			}
+		});
+		FixedBitSet tier1 = new FixedBitSet(maxDoc);
+		int size = (int) Math.round(fraction * live);
+		for (int i = 0; i < size; i++) {
+			tier1.set(order[i]);
+		}
+		return tier1;
+	}
+
+	/**
+	 * @return a reader of the documents of in that are in docs
+	 */
+	private static AtomicReader select(AtomicReader in, final FixedBitSet docs) {
+		return new FilterAtomicReader(in) {
+			@Override
+			public Bits getLiveDocs() {
+				return docs;
+			}
+
+			@Override
+			public int numDocs() {
+				return docs.cardinality();
+			}
+		};
+	}
+
+	/**
+	 * Write a tiered copy of the open index.  The open index is then
+	 * the tiered index.
+	 * @param tieredPath the directory of the tiered index
+	 * @param pageRank PageRank scores indexed by docid
+	 * @param fraction the fraction of the documents in tier 1
+	 * @return the number of documents in tier 1
+	 * @throws IOException Error reading the index or writing the tiered index.
+	 */
+	public static int build(String tieredPath, float[] pageRank, double fraction) throws IOException {
+		FixedBitSet tier1 = chooseTier1(pageRank, fraction);
+		FixedBitSet remainder = new FixedBitSet(Idx.getMaxDoc());
+		Bits liveDocs = MultiFields.getLiveDocs(Idx.INDEXREADER);
+		for (int docid = 0; docid < Idx.getMaxDoc(); docid++) {
+			if ((liveDocs == null || liveDocs.get(docid)) && !tier1.get(docid)) {
+				remainder.set(docid);
+			}
+		}
+
+		//  Merging keeps the readers' order, so tier 1 gets the first
+		//  docids.
+
+		AtomicReader reader = SlowCompositeReaderWrapper.wrap(Idx.INDEXREADER);
+		IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, null);
+		config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+		IndexWriter writer = new IndexWriter(FSDirectory.open(new File(tieredPath)), config);
+		try {
+			writer.addIndexes(select(reader, tier1), select(reader, remainder));
+		} finally {
+			writer.close();
+		}
+
+		int tier1Docs = tier1.cardinality();
+		Idx.initialize(tieredPath);
+		File file = Idx.createSidecarFile(FILE_NAME);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(Idx.getMaxDoc());
+			out.writeLong(Idx.getIndexFingerprint());
+			out.writeInt(tier1Docs);
+			writeRemainderStats(out, tier1Docs);
+		} finally {
+			out.close();
+		}
+		return tier1Docs;
+	}
+
+	/**
+	 * Write the remainder statistics of the open (tiered) index's terms.
+	 */
+	private static void writeRemainderStats(DataOutputStream out, int tier1Docs) throws IOException {
+		Map<String, int[]> stats = new HashMap<String, int[]>();
+		Bits liveDocs = MultiFields.getLiveDocs(Idx.INDEXREADER);
+		Fields fields = MultiFields.getFields(Idx.INDEXREADER);
+		if (fields != null) {
+			for (String field : fields) {
+				Terms terms = fields.terms(field);
+				if (terms == null || MultiDocValues.getNormValues(Idx.INDEXREADER, field) == null) {
+					continue;	// BM25 needs field lengths
+				}
+				TermsEnum ti = terms.iterator(null);
+				BytesRef termBytes;
+				while ((termBytes = ti.next()) != null) {
+					DocsEnum docs = ti.docs(liveDocs, null, DocsEnum.FLAG_FREQS);
+					int maxTf = 0;
+					int minLength = Integer.MAX_VALUE;
+					for (int docid = docs.advance(tier1Docs); docid != DocIdSetIterator.NO_MORE_DOCS;
+							docid = docs.nextDoc()) {
+						maxTf = Math.max(maxTf, docs.freq());
+						minLength = Math.min(minLength, Idx.getFieldLength(field, docid));
+					}
+					if (maxTf > 0) {
+						stats.put(field + "\u0000" + termBytes.utf8ToString(), new int[] { maxTf, minLength });
+					}
+				}
+			}
+		}
+		out.writeInt(stats.size());
+		for (Map.Entry<String, int[]> entry : stats.entrySet()) {
+			byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(key.length);
+			out.write(key);
+			out.writeInt(entry.getValue()[0]);
+			out.writeInt(entry.getValue()[1]);
+		}
+	}
+
+	/**
+	 * Write a tiered copy of an index.
+	 * @param args indexPath tieredIndexPath pageRankFile [tier1Fraction]
+	 * @throws Exception Error accessing the indexes.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3 || args.length > 4) {
+			System.err.println("Usage:  java TieredIndex indexPath tieredIndexPath pageRankFile [tier1Fraction]");
+			System.exit(1);
+		}
+		if (new File(args[0]).getAbsoluteFile().equals(new File(args[1]).getAbsoluteFile())) {
+			throw new IllegalArgumentException("The tiered index must not be the index that is tiered.");
+		}
+		double fraction = (args.length > 3) ? Double.parseDouble(args[3]) : 0.2;
+		Idx.initialize(args[0]);
+		int tier1Docs = build(args[1], PageRankLoader.load(args[2]), fraction);
+		System.out.println("Wrote " + new File(args[1]).getAbsolutePath() + ":  tier 1 has "
+				+ tier1Docs + " of " + Idx.getNumDocs() + " documents");
+	}
+}
@@ -0,0 +1,72 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link BlockKernels} written with the incubating Vector API
+ * (jdk.incubator.vector, JDK 17).  It is kept apart from the other
+ * sources because it needs the module to compile and to run:
+ * <pre>
+ *   javac --add-modules jdk.incubator.vector -cp bin -d bin QryEval/vector/VectorBlockKernels.java
+ *   java --add-modules jdk.incubator.vector ...
+ * </pre>
+ * BlockKernels loads it by name and uses the scalar loops if it is
+ * missing or the module isn't available.  Each lane does the same
+ * operations in the same order as the scalar loop (no fused
+ * multiply-add), so the scores are bit-identical.
+ */
+public final class VectorBlockKernels implements BlockKernels.Kernels {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public void bm25Norms(int n, double[] len, double k1, double b, double avgdocLen, double[] out) {
+		int i = 0;
+		for (int end = SPECIES.loopBound(n); i < end; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, len, i).mul(b).div(avgdocLen).add(1 - b).mul(k1)
+					.intoArray(out, i);
+		}
+		for (; i < n; i++) {
+			out[i] = k1 * ((1 - b) + b * len[i] / avgdocLen);
+		}
+	}
+
+	@Override
+	public void bm25Accumulate(int n, double[] tf, double[] norm, double idf, double userWeight,
+			double[] scores) {
+		int i = 0;
+		for (int end = SPECIES.loopBound(n); i < end; i += SPECIES.length()) {
+			DoubleVector t = DoubleVector.fromArray(SPECIES, tf, i);
+			DoubleVector s = t.div(t.add(DoubleVector.fromArray(SPECIES, norm, i))).mul(idf).mul(userWeight);
+			DoubleVector.fromArray(SPECIES, scores, i).add(s).intoArray(scores, i);
+		}
+		for (; i < n; i++) {
+			scores[i] += idf * (tf[i] / (tf[i] + norm[i])) * userWeight;
+		}
+	}
+
+	@Override
+	public void indriSmooth(int n, double[] tf, double[] len, double oneMinusLambda, double muPMLE,
+			double mu, double lambdaPMLE, double[] out) {
+		int i = 0;
+		for (int end = SPECIES.loopBound(n); i < end; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, tf, i).add(muPMLE).mul(oneMinusLambda)
+					.div(DoubleVector.fromArray(SPECIES, len, i).add(mu)).add(lambdaPMLE)
+					.intoArray(out, i);
+		}
+		for (; i < n; i++) {
+			out[i] = (oneMinusLambda * (tf[i] + muPMLE) / (len[i] + mu)) + lambdaPMLE;
+		}
+	}
+
+	@Override
+	public void weightedSum(int n, double[] s, double weight, double[] acc) {
+		int i = 0;
+		for (int end = SPECIES.loopBound(n); i < end; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, acc, i).add(DoubleVector.fromArray(SPECIES, s, i).mul(weight))
+					.intoArray(acc, i);
+		}
+		for (; i < n; i++) {
+			acc[i] += weight * s[i];
+		}
+	}
+}